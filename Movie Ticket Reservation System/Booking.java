@@ -0,0 +1,130 @@
+import java.util.*;
+
+/**
+ * Class representing a booking.
+ */
+class Booking {
+    private Movie movie;
+    private String date;
+    private Showtime showtime;
+    private int numTickets;
+    private ArrayList<Integer> seats;
+    private double totalAmount;
+    private String bookingId;
+    
+    /**
+     * Constructor for Booking.
+     */
+    public Booking(Movie movie, String date, Showtime showtime, int numTickets) {
+        this.movie = movie;
+        this.date = date;
+        this.showtime = showtime;
+        this.numTickets = numTickets;
+        this.seats = new ArrayList<>();
+    }
+    
+    /**
+     * Add a seat to the booking.
+     */
+    public void addSeat(int seat) {
+        seats.add(seat);
+    }
+    
+    /**
+     * Remove all seats from the booking.
+     */
+    public void clearSeats() {
+        seats.clear();
+    }
+    
+    /**
+     * Check whether a seat is already in the booking.
+     */
+    public boolean hasSeat(int seat) {
+        return seats.contains(seat);
+    }
+    
+    /**
+     * Get the seats in the booking.
+     */
+    public int[] getSeats() {
+        int[] result = new int[seats.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = seats.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Set total amount for booking.
+     */
+    public void setTotalAmount(double amount) {
+        this.totalAmount = amount;
+    }
+    
+    /**
+     * Get the movie.
+     */
+    public Movie getMovie() {
+        return movie;
+    }
+    
+    /**
+     * Get the date.
+     */
+    public String getDate() {
+        return date;
+    }
+    
+    /**
+     * Get the showtime.
+     */
+    public Showtime getShowtime() {
+        return showtime;
+    }
+    
+    /**
+     * Get number of tickets.
+     */
+    public int getNumTickets() {
+        return numTickets;
+    }
+    
+    /**
+     * Get total amount.
+     */
+    public double getTotalAmount() {
+        return totalAmount;
+    }
+    
+    /**
+     * Set the booking ID issued when the booking is confirmed.
+     */
+    public void setBookingId(String bookingId) {
+        this.bookingId = bookingId;
+    }
+    
+    /**
+     * Get booking ID, or null before the booking is confirmed.
+     */
+    public String getBookingId() {
+        return bookingId;
+    }
+
+   
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Booking ID: ").append(bookingId != null ? bookingId : "issued on confirmation").append("\n");
+        sb.append("Movie: ").append(movie.getName()).append("\n");
+        sb.append("Date: ").append(date).append("\n");
+        sb.append("Time: ").append(showtime.getTime()).append("\n");
+        sb.append("Tickets: ").append(numTickets).append("\n");
+        sb.append("Seats: ");
+        for (int seat : seats) {
+            sb.append(showtime.getLayout().seatLabel(seat)).append(" ");
+        }
+        sb.append("\n");
+        sb.append("Total Amount: $").append(totalAmount);
+        return sb.toString();
+    }
+} 
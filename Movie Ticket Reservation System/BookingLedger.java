@@ -0,0 +1,486 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Durable, append-only ledger of confirmed and cancelled bookings.
+ * 
+ * Callers hand records to a single writer thread and wait. The writer takes
+ * every record queued so far, writes them with one write and makes them
+ * durable with one fsync (group commit), so the cost of an fsync is shared
+ * by everyone who confirmed in the meantime. The writer also hands out
+ * booking IDs from a sequence that continues across restarts, so IDs never
+ * collide.
+ * 
+ * Records are framed with their length and a CRC32 so that a record torn by
+ * a crash is detected and cut off on recovery. The ledger is split into
+ * segment files. Every SNAPSHOT_EVERY records the confirmed seats of every
+ * showtime are written to a snapshot, a new segment is started, and the
+ * segments the snapshot covers are deleted. On startup the snapshot is
+ * loaded and only the ledger tail after it is replayed onto the Showtimes.
+ */
+class BookingLedger {
+    private static final byte CONFIRMED = 1;
+    private static final byte CANCELLED = 2;
+    private static final int SNAPSHOT_EVERY = 100_000;
+    private static final int MAX_BATCH = 4096;
+    private static final int SNAPSHOT_MAGIC = 0x534E4150;
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+    
+    private final File dir;
+    private final HashMap<String, Showtime> showtimesByKey = new HashMap<>();
+    private final HashMap<String, BitSet> confirmedSeats = new HashMap<>();
+    private final LinkedBlockingQueue<PendingRecord> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private FileChannel segment;
+    private long nextSequence = 1;
+    private long recordsSinceSnapshot;
+    private long replayed;
+    private long replayConflicts;
+    private volatile boolean closed;
+    
+    // Set when a failed write could not be cut off; no record is accepted after it
+    private volatile IOException failure;
+    
+    /**
+     * Class representing a record waiting to be written.
+     */
+    private static class PendingRecord {
+        final byte type;
+        final String key;
+        final int[] seats;
+        final double amount;
+        final String email;
+        final CompletableFuture<Long> done = new CompletableFuture<>();
+        
+        PendingRecord(byte type, String key, int[] seats, double amount, String email) {
+            this.type = type;
+            this.key = key;
+            this.seats = seats;
+            this.amount = amount;
+            this.email = email;
+        }
+    }
+    
+    /**
+     * Constructor for BookingLedger. Recovers the booked seats of every
+     * showtime in the database from the snapshot and ledger in the directory.
+     */
+    public BookingLedger(File dir, MovieDatabase movieDB) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create ledger directory " + dir);
+        }
+        for (Screening screening : movieDB.getScreenings()) {
+            showtimesByKey.put(key(screening.getMovie().getCode(), screening.getDate(), 
+                    screening.getShowtime().getTime()), screening.getShowtime());
+        }
+        
+        long snapshotSequence = loadSnapshot();
+        nextSequence = snapshotSequence + 1;
+        File[] segments = segmentFiles();
+        for (int i = 0; i < segments.length; i++) {
+            replaySegment(segments[i], snapshotSequence, i == segments.length - 1);
+        }
+        for (Map.Entry<String, BitSet> entry : confirmedSeats.entrySet()) {
+            restore(entry.getKey(), entry.getValue());
+        }
+        
+        // Append to the last segment, or start the first one
+        File current = segments.length > 0 ? segments[segments.length - 1] : segmentFile(nextSequence);
+        segment = FileChannel.open(current.toPath(), java.nio.file.StandardOpenOption.CREATE, 
+                java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.APPEND);
+        
+        writer = new Thread(this::writeLoop, "booking-ledger");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    /**
+     * Record a confirmed booking and wait until it is durable. Sets and
+     * returns the booking ID.
+     */
+    public String confirm(Booking booking, String email) throws IOException {
+        long sequence = append(new PendingRecord(CONFIRMED, key(booking), booking.getSeats(), 
+                booking.getTotalAmount(), email == null ? "" : email));
+        String bookingId = formatBookingId(sequence);
+        booking.setBookingId(bookingId);
+        return bookingId;
+    }
+    
+    /**
+     * Record a confirmed booking without waiting, so that many bookings can
+     * share one write. The future completes with the booking ID, also set
+     * on the booking, once the booking is durable.
+     */
+    public CompletableFuture<String> confirmLater(Booking booking, String email) throws IOException {
+        PendingRecord record = new PendingRecord(CONFIRMED, key(booking), booking.getSeats(), 
+                booking.getTotalAmount(), email == null ? "" : email);
+        enqueue(record);
+        return record.done.thenApply(sequence -> {
+            String bookingId = formatBookingId(sequence);
+            booking.setBookingId(bookingId);
+            return bookingId;
+        });
+    }
+    
+    /**
+     * Record a cancelled booking and wait until it is durable. The caller
+     * releases the seats on the showtime.
+     */
+    public void cancel(Booking booking) throws IOException {
+        append(new PendingRecord(CANCELLED, key(booking), booking.getSeats(), booking.getTotalAmount(), ""));
+    }
+    
+    /**
+     * Get the number of ledger records replayed on startup.
+     */
+    public long getReplayedRecords() {
+        return replayed;
+    }
+    
+    /**
+     * Get the number of replayed bookings whose seats were already taken in the schedule.
+     */
+    public long getReplayConflicts() {
+        return replayConflicts;
+    }
+    
+    /**
+     * Stop the writer after the queued records are written, and write a snapshot.
+     */
+    public void close() {
+        // No record can be queued after this, so the writer stops once the queue is empty
+        synchronized (queue) {
+            closed = true;
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (recordsSinceSnapshot > 0) {
+                snapshot();
+            }
+            segment.close();
+        } catch (IOException e) {
+            System.out.println("Error closing booking ledger: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Format a ledger sequence number as a booking ID.
+     */
+    public static String formatBookingId(long sequence) {
+        return String.format("BK%08d", sequence);
+    }
+    
+    private long append(PendingRecord record) throws IOException {
+        enqueue(record);
+        try {
+            return record.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the booking ledger");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() 
+                    : new IOException("Booking ledger write failed", e.getCause());
+        }
+    }
+    
+    private void enqueue(PendingRecord record) throws IOException {
+        synchronized (queue) {
+            if (failure != null) {
+                throw new IOException("Booking ledger stopped after a failed write", failure);
+            }
+            if (closed) {
+                throw new IOException("Booking ledger is closed");
+            }
+            queue.add(record);
+        }
+    }
+    
+    private void writeLoop() {
+        ArrayList<PendingRecord> batch = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+        while (true) {
+            // Poll rather than wait for an interrupt, which would close the channel
+            try {
+                PendingRecord first = queue.poll(50, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed && queue.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - batch.size());
+            
+            long firstSequence = nextSequence;
+            long batchStart = -1;
+            try {
+                batchStart = segment.position();
+                bytes.reset();
+                DataOutputStream out = new DataOutputStream(bytes);
+                long sequence = firstSequence;
+                for (PendingRecord record : batch) {
+                    writeRecord(out, sequence++, record);
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+                while (buffer.hasRemaining()) {
+                    segment.write(buffer);
+                }
+                // One fsync makes the whole batch durable
+                segment.force(false);
+                nextSequence = sequence;
+            } catch (IOException e) {
+                for (PendingRecord record : batch) {
+                    record.done.completeExceptionally(e);
+                }
+                batch.clear();
+                // Cut off a partly written batch, or later batches would follow the garbage and be lost on replay
+                if (!truncateTo(batchStart)) {
+                    stop(e);
+                    return;
+                }
+                continue;
+            }
+            
+            long sequence = firstSequence;
+            for (PendingRecord record : batch) {
+                apply(record.type, record.key, record.seats);
+                record.done.complete(sequence++);
+            }
+            recordsSinceSnapshot += batch.size();
+            batch.clear();
+            
+            if (recordsSinceSnapshot >= SNAPSHOT_EVERY) {
+                try {
+                    snapshot();
+                } catch (IOException e) {
+                    System.out.println("Error writing booking snapshot: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Cut the current segment back to a length. Returns false if that failed.
+     */
+    private boolean truncateTo(long length) {
+        if (length < 0) {
+            return false;
+        }
+        try {
+            segment.truncate(length);
+            segment.force(false);
+            return segment.size() == length;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Refuse all further records and fail those still queued.
+     */
+    private void stop(IOException cause) {
+        System.out.println("Booking ledger stopped: " + cause.getMessage());
+        ArrayList<PendingRecord> rejected = new ArrayList<>();
+        synchronized (queue) {
+            failure = cause;
+            queue.drainTo(rejected);
+        }
+        for (PendingRecord record : rejected) {
+            record.done.completeExceptionally(new IOException("Booking ledger stopped after a failed write", cause));
+        }
+    }
+    
+    private static void writeRecord(DataOutputStream out, long sequence, PendingRecord record) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(64);
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        payload.writeLong(sequence);
+        payload.writeByte(record.type);
+        payload.writeUTF(record.key);
+        payload.writeInt(record.seats.length);
+        for (int seat : record.seats) {
+            payload.writeInt(seat);
+        }
+        payload.writeDouble(record.amount);
+        payload.writeUTF(record.email);
+        
+        byte[] data = payloadBytes.toByteArray();
+        java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+        crc.update(data);
+        out.writeInt(data.length);
+        out.writeInt((int) crc.getValue());
+        out.write(data);
+    }
+    
+    /**
+     * Replay one segment. A torn record at the end of the last segment is cut off.
+     */
+    private void replaySegment(File file, long snapshotSequence, boolean last) throws IOException {
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            long length = file.length();
+            while (validLength + 8 <= length) {
+                int size = in.readInt();
+                int expectedCrc = in.readInt();
+                if (size < 0 || validLength + 8 + size > length) {
+                    break;
+                }
+                byte[] data = new byte[size];
+                in.readFully(data);
+                java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+                crc.update(data);
+                if ((int) crc.getValue() != expectedCrc) {
+                    break;
+                }
+                validLength += 8 + size;
+                
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(data));
+                long sequence = record.readLong();
+                byte type = record.readByte();
+                String key = record.readUTF();
+                int[] seats = new int[record.readInt()];
+                for (int i = 0; i < seats.length; i++) {
+                    seats[i] = record.readInt();
+                }
+                nextSequence = Math.max(nextSequence, sequence + 1);
+                if (sequence > snapshotSequence) {
+                    apply(type, key, seats);
+                    recordsSinceSnapshot++;
+                    replayed++;
+                }
+            }
+        }
+        if (validLength < file.length()) {
+            if (!last) {
+                throw new IOException("Corrupt booking ledger segment " + file);
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validLength);
+            }
+        }
+    }
+    
+    private void apply(byte type, String key, int[] seats) {
+        BitSet seatSet = confirmedSeats.computeIfAbsent(key, k -> new BitSet());
+        for (int seat : seats) {
+            seatSet.set(seat, type == CONFIRMED);
+        }
+    }
+    
+    /**
+     * Claim the recovered seats on the showtime they belong to.
+     */
+    private void restore(String key, BitSet seatSet) {
+        Showtime showtime = showtimesByKey.get(key);
+        if (showtime == null || seatSet.isEmpty()) {
+            return;
+        }
+        try {
+            showtime.bookSeats(seatSet.stream().toArray());
+        } catch (OverbookingException e) {
+            // The schedule already counts some of these seats as sold; claim the rest one by one
+            replayConflicts++;
+            for (int seat = seatSet.nextSetBit(0); seat >= 0; seat = seatSet.nextSetBit(seat + 1)) {
+                try {
+                    showtime.bookSeats(new int[] {seat});
+                } catch (OverbookingException taken) {
+                    // Already sold in the schedule
+                }
+            }
+        }
+    }
+    
+    /**
+     * Write the confirmed seats of every showtime, start a new segment and
+     * delete the segments the snapshot covers.
+     */
+    private void snapshot() throws IOException {
+        long lastSequence = nextSequence - 1;
+        File temp = new File(dir, SNAPSHOT_FILE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(lastSequence);
+            out.writeInt(confirmedSeats.size());
+            for (Map.Entry<String, BitSet> entry : confirmedSeats.entrySet()) {
+                out.writeUTF(entry.getKey());
+                long[] words = entry.getValue().toLongArray();
+                out.writeInt(words.length);
+                for (long word : words) {
+                    out.writeLong(word);
+                }
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        java.nio.file.Files.move(temp.toPath(), new File(dir, SNAPSHOT_FILE).toPath(), 
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        
+        // Everything up to lastSequence is in the snapshot now
+        segment.close();
+        for (File old : segmentFiles()) {
+            old.delete();
+        }
+        segment = FileChannel.open(segmentFile(nextSequence).toPath(), java.nio.file.StandardOpenOption.CREATE, 
+                java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.APPEND);
+        recordsSinceSnapshot = 0;
+    }
+    
+    /**
+     * Load the snapshot, returning the last sequence number it covers.
+     */
+    private long loadSnapshot() throws IOException {
+        File file = new File(dir, SNAPSHOT_FILE);
+        if (!file.exists()) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a booking snapshot: " + file);
+            }
+            long lastSequence = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                long[] words = new long[in.readInt()];
+                for (int w = 0; w < words.length; w++) {
+                    words[w] = in.readLong();
+                }
+                confirmedSeats.put(key, BitSet.valueOf(words));
+            }
+            return lastSequence;
+        }
+    }
+    
+    private File[] segmentFiles() {
+        File[] files = dir.listFiles((d, name) -> name.startsWith("ledger-") && name.endsWith(".log"));
+        if (files == null) {
+            return new File[0];
+        }
+        // Names hold the zero-padded first sequence, so name order is ledger order
+        Arrays.sort(files, Comparator.comparing(File::getName));
+        return files;
+    }
+    
+    private File segmentFile(long firstSequence) {
+        return new File(dir, String.format("ledger-%019d.log", firstSequence));
+    }
+    
+    private static String key(Booking booking) {
+        return key(booking.getMovie().getCode(), booking.getDate(), booking.getShowtime().getTime());
+    }
+    
+    private static String key(String movieCode, String date, String time) {
+        return movieCode + "|" + date + "|" + time;
+    }
+} 
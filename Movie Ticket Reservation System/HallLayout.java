@@ -0,0 +1,80 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Class representing the seating plan of a hall: a number of rows with the
+ * same number of seats each. Seats are numbered row by row from 0.
+ */
+class HallLayout {
+    private static final Map<Integer, HallLayout> DEFAULT_LAYOUTS = new ConcurrentHashMap<>();
+    private static final Map<Long, HallLayout> SHAPED_LAYOUTS = new ConcurrentHashMap<>();
+    
+    private final int rows;
+    private final int seatsPerRow;
+    
+    /**
+     * Constructor for HallLayout.
+     */
+    public HallLayout(int rows, int seatsPerRow) {
+        if (rows <= 0 || seatsPerRow <= 0) {
+            throw new IllegalArgumentException("Hall must have at least one row and one seat per row");
+        }
+        this.rows = rows;
+        this.seatsPerRow = seatsPerRow;
+    }
+    
+    /**
+     * Get the layout with the given rows and seats per row. Layouts are
+     * shared between showtimes in halls of the same shape.
+     */
+    public static HallLayout of(int rows, int seatsPerRow) {
+        return SHAPED_LAYOUTS.computeIfAbsent((long) rows << 32 | seatsPerRow, key -> new HallLayout(rows, seatsPerRow));
+    }
+    
+    /**
+     * Get a roughly square layout for a hall with the given number of seats.
+     * Layouts are shared between showtimes with the same capacity.
+     */
+    public static HallLayout forCapacity(int totalSeats) {
+        return DEFAULT_LAYOUTS.computeIfAbsent(totalSeats, total -> {
+            int seatsPerRow = Math.max(1, (int) Math.ceil(Math.sqrt(total)));
+            int rows = Math.max(1, (total + seatsPerRow - 1) / seatsPerRow);
+            return new HallLayout(rows, seatsPerRow);
+        });
+    }
+    
+    /**
+     * Get the seat number for a row and column.
+     */
+    public int seatIndex(int row, int col) {
+        return row * seatsPerRow + col;
+    }
+    
+    /**
+     * Get the row,column label for a seat number.
+     */
+    public String seatLabel(int seat) {
+        return (seat / seatsPerRow) + "," + (seat % seatsPerRow);
+    }
+    
+    /**
+     * Get number of rows.
+     */
+    public int getRows() {
+        return rows;
+    }
+    
+    /**
+     * Get number of seats in each row.
+     */
+    public int getSeatsPerRow() {
+        return seatsPerRow;
+    }
+    
+    /**
+     * Get number of seats in the layout.
+     */
+    public int getCapacity() {
+        return rows * seatsPerRow;
+    }
+}
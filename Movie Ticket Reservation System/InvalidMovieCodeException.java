@@ -0,0 +1,10 @@
+/**
+ * Custom exception for invalid movie codes.
+ */
+class InvalidMovieCodeException extends Exception {
+    private static final long serialVersionUID = 1L;
+    
+    public InvalidMovieCodeException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,55 @@
+import java.util.*;
+
+/**
+ * Class summarising a schedule load: rows loaded and rows rejected.
+ */
+class LoadReport {
+    private static final int MAX_ERRORS = 100;
+    
+    private long rowsLoaded;
+    private long badRows;
+    private long bytes;
+    private long millis;
+    private final ArrayList<String> errors = new ArrayList<>();
+    
+    /**
+     * Record a rejected row. Only the first MAX_ERRORS messages are kept.
+     */
+    public void badRow(long lineNumber, String reason) {
+        badRows++;
+        if (errors.size() < MAX_ERRORS) {
+            errors.add("line " + lineNumber + ": " + reason);
+        }
+    }
+    
+    void finish(long rowsLoaded, long bytes, long millis) {
+        this.rowsLoaded = rowsLoaded;
+        this.bytes = bytes;
+        this.millis = millis;
+    }
+    
+    /**
+     * Get number of rows loaded.
+     */
+    public long getRowsLoaded() {
+        return rowsLoaded;
+    }
+    
+    /**
+     * Get number of rows rejected.
+     */
+    public long getBadRows() {
+        return badRows;
+    }
+    
+    /**
+     * Get the messages for the first rejected rows.
+     */
+    public List<String> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+    
+    public String toString() {
+        return String.format("Loaded %,d rows (%,d bad) from %,d bytes in %,d ms", rowsLoaded, badRows, bytes, millis);
+    }
+}
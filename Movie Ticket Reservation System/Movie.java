@@ -0,0 +1,164 @@
+import java.time.*;
+import java.util.*;
+
+/**
+ * Class representing a Movie.
+ * 
+ * The schedule is kept ready for browsing: dates in chronological order,
+ * each with its showtimes in slot order, and the getters return read-only
+ * views of these lists, so browsing allocates nothing.
+ */
+class Movie {
+    private String code;
+    private String name;
+    private String language;
+    private String genre;
+    private ArrayList<ScheduleDay> days;
+    private ArrayList<String> dates;
+    private List<String> dateView;
+    private HashMap<String, ScheduleDay> daysByDate;
+    
+    /**
+     * Class representing the showtimes of a movie on one date.
+     */
+    private static class ScheduleDay {
+        final long epochDay;
+        final ArrayList<Showtime> showtimes = new ArrayList<>(4);
+        final List<Showtime> view = Collections.unmodifiableList(showtimes);
+        
+        ScheduleDay(long epochDay) {
+            this.epochDay = epochDay;
+        }
+        
+        void add(Showtime showtime) {
+            int i = showtimes.size();
+            while (i > 0 && showtimes.get(i - 1).compareTo(showtime) > 0) {
+                i--;
+            }
+            showtimes.add(i, showtime);
+        }
+    }
+    
+    /**
+     * Constructor for Movie.
+     */
+    public Movie(String code, String name, String language, String genre) {
+        this.code = code;
+        this.name = name;
+        this.language = language;
+        this.genre = genre;
+        this.days = new ArrayList<>();
+        this.dates = new ArrayList<>();
+        this.dateView = Collections.unmodifiableList(dates);
+        this.daysByDate = new HashMap<>();
+    }
+    
+    /**
+     * Add a showtime for this movie. The date must be yyyy-mm-dd.
+     */
+    public void addShowtime(String date, Showtime showtime) {
+        addShowtime(LocalDate.parse(date.trim()).toEpochDay(), date, showtime);
+    }
+    
+    /**
+     * Add a showtime for this movie on a date already converted to days since 1970-01-01.
+     */
+    public void addShowtime(long epochDay, String date, Showtime showtime) {
+        ScheduleDay day = daysByDate.get(date);
+        if (day == null) {
+            // Schedules are mostly loaded in date order, so this is usually an append
+            int i = dayIndex(epochDay);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            day = new ScheduleDay(epochDay);
+            days.add(i, day);
+            dates.add(i, date);
+            daysByDate.put(date, day);
+        }
+        day.add(showtime);
+    }
+    
+    /**
+     * Get available dates for this movie, in chronological order.
+     */
+    public List<String> getAvailableDates() {
+        return dateView;
+    }
+    
+    /**
+     * Get the date at a position of getAvailableDates() as days since 1970-01-01.
+     */
+    public long getEpochDay(int index) {
+        return days.get(index).epochDay;
+    }
+    
+    /**
+     * Get showtimes for a specific date, in slot order.
+     */
+    public List<Showtime> getShowtimesForDate(String date) {
+        ScheduleDay day = daysByDate.get(date);
+        return day == null ? Collections.emptyList() : day.view;
+    }
+    
+    /**
+     * Get showtimes for a date given as days since 1970-01-01, in slot order.
+     */
+    public List<Showtime> getShowtimesForDay(long epochDay) {
+        int i = dayIndex(epochDay);
+        return i < 0 ? Collections.emptyList() : days.get(i).view;
+    }
+    
+    // Binary search over the days; returns -(insertion point) - 1 when absent
+    private int dayIndex(long epochDay) {
+        int lo = 0;
+        int hi = days.size() - 1;
+        if (hi >= 0 && days.get(hi).epochDay < epochDay) {
+            return -(hi + 2);
+        }
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midDay = days.get(mid).epochDay;
+            if (midDay < epochDay) {
+                lo = mid + 1;
+            } else if (midDay > epochDay) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+    
+    /**
+     * Get movie code.
+     */
+    public String getCode() {
+        return code;
+    }
+    
+    /**
+     * Get movie name.
+     */
+    public String getName() {
+        return name;
+    }
+    
+    /**
+     * Get movie language.
+     */
+    public String getLanguage() {
+        return language;
+    }
+    
+    /**
+     * Get movie genre.
+     */
+    public String getGenre() {
+        return genre;
+    }
+    
+    public String toString() {
+        return code + " - " + name + " (" + language + ", " + genre + ")";
+    }
+}
@@ -0,0 +1,204 @@
+import java.io.*;
+import java.time.*;
+import java.util.*;
+
+/**
+ * Class representing a Movie Database that loads data from CSV.
+ */
+class MovieDatabase {
+    private HashMap<String, Movie> movies;
+    private ArrayList<Movie> movieList;
+    private List<Movie> movieView;
+    
+    // Secondary indexes over every screening; genre, language and slot keys are lower case
+    private ScreeningList screenings;
+    private TreeMap<Long, ScreeningList> screeningsByDay;
+    private HashMap<String, ScreeningList> screeningsByGenre;
+    private HashMap<String, ScreeningList> screeningsByLanguage;
+    private HashMap<String, ScreeningList> screeningsBySlot;
+    private HashMap<String, Long> epochDays;
+    private HashMap<String, String> indexKeys;
+    private LoadReport loadReport;
+    
+    /**
+     * Constructor for MovieDatabase. Loads the schedule with a ScheduleLoader;
+     * bad rows are skipped and listed in getLoadReport().
+     */
+    public MovieDatabase(String csvFile) throws IOException {
+        this();
+        loadReport = new ScheduleLoader().load(new File(csvFile), this);
+    }
+    
+    /**
+     * Constructor for an empty MovieDatabase, filled with addMovie().
+     */
+    public MovieDatabase() {
+        movies = new HashMap<>();
+        movieList = new ArrayList<>();
+        movieView = Collections.unmodifiableList(movieList);
+        screenings = new ScreeningList();
+        screeningsByDay = new TreeMap<>();
+        screeningsByGenre = new HashMap<>();
+        screeningsByLanguage = new HashMap<>();
+        screeningsBySlot = new HashMap<>();
+        epochDays = new HashMap<>();
+        indexKeys = new HashMap<>();
+    }
+    
+    /**
+     * Add a movie with its showtimes. Showtimes added to the movie later
+     * must go through addShowtime() to be indexed.
+     */
+    public void addMovie(Movie movie) {
+        if (movies.put(movie.getCode(), movie) == null) {
+            movieList.add(movie);
+        }
+        List<String> dates = movie.getAvailableDates();
+        for (int i = 0; i < dates.size(); i++) {
+            for (Showtime showtime : movie.getShowtimesForDate(dates.get(i))) {
+                index(movie, dates.get(i), movie.getEpochDay(i), showtime);
+            }
+        }
+    }
+    
+    /**
+     * Add a showtime to a movie in the database.
+     */
+    public void addShowtime(Movie movie, String date, Showtime showtime) {
+        if (movies.put(movie.getCode(), movie) == null) {
+            movieList.add(movie);
+        }
+        // Each distinct date is parsed once
+        long epochDay = epochDays.computeIfAbsent(date, d -> LocalDate.parse(d.trim()).toEpochDay());
+        movie.addShowtime(epochDay, date, showtime);
+        index(movie, date, epochDay, showtime);
+    }
+    
+    /**
+     * Start a query over all screenings.
+     */
+    public ScreeningQuery query() {
+        return new ScreeningQuery(this);
+    }
+    
+    /**
+     * Get every screening, in the order they were added.
+     */
+    public List<Screening> getScreenings() {
+        return screenings;
+    }
+    
+    /**
+     * Get the screenings of each day in a range of epoch days, in date order.
+     */
+    public Collection<List<Screening>> getScreeningsByDay(long fromDay, long toDay) {
+        if (fromDay > toDay) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableCollection(screeningsByDay.subMap(fromDay, true, toDay, true).values());
+    }
+    
+    /**
+     * Get the screenings of movies in a genre.
+     */
+    public List<Screening> getScreeningsByGenre(String genre) {
+        return lookup(screeningsByGenre, genre);
+    }
+    
+    /**
+     * Get the screenings of movies in a language.
+     */
+    public List<Screening> getScreeningsByLanguage(String language) {
+        return lookup(screeningsByLanguage, language);
+    }
+    
+    /**
+     * Get the screenings in a showtime slot.
+     */
+    public List<Screening> getScreeningsBySlot(String slot) {
+        return lookup(screeningsBySlot, slot);
+    }
+    
+    private void index(Movie movie, String date, long epochDay, Showtime showtime) {
+        Screening screening = new Screening(movie, date, epochDay, showtime);
+        screenings.append(screening);
+        screeningsByDay.computeIfAbsent(epochDay, d -> new ScreeningList()).append(screening);
+        screeningsByGenre.computeIfAbsent(indexKey(movie.getGenre()), k -> new ScreeningList()).append(screening);
+        screeningsByLanguage.computeIfAbsent(indexKey(movie.getLanguage()), k -> new ScreeningList()).append(screening);
+        screeningsBySlot.computeIfAbsent(indexKey(showtime.getTime()), k -> new ScreeningList()).append(screening);
+    }
+    
+    // Lower-cases each distinct value once rather than on every screening
+    private String indexKey(String value) {
+        return indexKeys.computeIfAbsent(value, MovieDatabase::key);
+    }
+    
+    private List<Screening> lookup(HashMap<String, ScreeningList> index, String value) {
+        String key = indexKeys.get(value);
+        List<Screening> found = index.get(key != null ? key : key(value));
+        return found == null ? Collections.emptyList() : found;
+    }
+    
+    private static String key(String value) {
+        return value.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Get all movies, in the order they were added. The list is a read-only
+     * view, not a copy.
+     */
+    public List<Movie> getAllMovies() {
+        return movieView;
+    }
+    
+    /**
+     * Get the report of the schedule load, or null if not loaded from a file.
+     */
+    public LoadReport getLoadReport() {
+        return loadReport;
+    }
+    
+    /**
+     * Get movie by code, or null if there is none.
+     */
+    public Movie findMovie(String code) {
+        return movies.get(code);
+    }
+    
+    /**
+     * Get movie by code.
+     */
+    public Movie getMovieByCode(String code) throws InvalidMovieCodeException {
+        if (!movies.containsKey(code)) {
+            throw new InvalidMovieCodeException("Movie code " + code + " not found");
+        }
+        return movies.get(code);
+    }
+    
+    /**
+     * Class representing a growable list of screenings that is read-only to
+     * callers, so an index entry can be handed out without wrapping or copying.
+     */
+    private static class ScreeningList extends AbstractList<Screening> implements RandomAccess {
+        private Screening[] items = new Screening[4];
+        private int size;
+        
+        void append(Screening screening) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = screening;
+        }
+        
+        @Override
+        public Screening get(int index) {
+            Objects.checkIndex(index, size);
+            return items[index];
+        }
+        
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
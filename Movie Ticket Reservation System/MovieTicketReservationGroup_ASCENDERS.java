@@ -14,6 +14,7 @@
  *    - InvalidTicketQuantityException for invalid ticket quantities
  *    - OverbookingException for attempting to book more tickets than available
  * 7. Handle user inactivity by saving session
+ *    - Chosen seats are held for a limited time and released if the user walks away
  * 8. Calculate total bill
  * 9. Collect user email for billing
  * 10. Generate bill and simulate email
@@ -28,214 +29,395 @@
  */
 
  import java.io.*;
+ import java.lang.invoke.*;
+ import java.nio.*;
+ import java.nio.channels.*;
+ import java.time.*;
  import java.util.*;
- 
+ import java.util.concurrent.*;
+ import java.util.concurrent.atomic.*;
+
  /**
   * Main class for the Movie Ticket Reservation System.
   */
  public class MovieTicketReservationGroup_ASCENDERS {
-    
+     
+     // How long chosen seats are held while the user enters their details
+     private static final long HOLD_MILLIS = 5 * 60 * 1000;
+     
+     // File where unfinished booking sessions are kept so they can be resumed
+     private static final String SESSION_FILE = "booking_sessions.db";
+     
+     // Schedule read when no file is given on the command line
+     private static final String DEFAULT_SCHEDULE = "Movie Reservation Dataset.csv";
+     
+     // Directory holding the durable ledger of confirmed bookings
+     private static final String LEDGER_DIR = "booking_ledger";
+     
+     // Memory-mapped file kept up to date with the seats left in every screening
+     private static final String AVAILABILITY_FILE = "schedule_availability.dat";
+     
      public static void main(String[] args) {
          System.out.println("Welcome to the Movie Ticket Reservation System!");
          
          MovieDatabase movieDB = null;
          Scanner scanner = new Scanner(System.in);
-         
+         SeatHoldManager holdManager = new SeatHoldManager();
+         SessionStore sessions = null;
+         BookingLedger ledger = null;
+         AvailabilityFile availability = null;
+
          try {
              // Load movies from CSV file
-             movieDB = new MovieDatabase("C:\\Users\\rumar\\Desktop\\Movie Reservation Dataset.csv");
-             
-             // Display all movies
-             System.out.println("\nAvailable Movies:");
-             ArrayList<Movie> movies = movieDB.getAllMovies();
-             for (Movie movie : movies) {
-                 System.out.println(movie);
-             }
-             
-             // Get movie selection
-             Movie selectedMovie = null;
-             while (selectedMovie == null) {
-                 try {
-                     System.out.print("\nEnter movie code: ");
-                     String movieCode = scanner.nextLine();
-                     selectedMovie = movieDB.getMovieByCode(movieCode);
-                 } catch (InvalidMovieCodeException e) {
-                     System.out.println("Error: " + e.getMessage());
+             movieDB = new MovieDatabase(args.length > 0 ? args[0] : DEFAULT_SCHEDULE);
+             LoadReport report = movieDB.getLoadReport();
+             if (report.getBadRows() > 0) {
+                 System.out.println("Warning: skipped " + report.getBadRows() + " bad rows in the schedule:");
+                 for (String error : report.getErrors()) {
+                     System.out.println("  " + error);
                  }
              }
+             sessions = new SessionStore(new File(SESSION_FILE));
              
-             System.out.println("Selected movie: " + selectedMovie.getName());
-             
-             // Get date selection
-             String selectedDate = null;
-             ArrayList<String> dates = selectedMovie.getAvailableDates();
-             System.out.println("\nAvailable Dates:");
-             for (int i = 0; i < dates.size(); i++) {
-                 System.out.println((i+1) + ". " + dates.get(i));
-             }
+             // Bring seat availability up to date with the bookings made before
+             ledger = new BookingLedger(new File(LEDGER_DIR), movieDB);
              
-             while (selectedDate == null) {
-                 try {
-                     System.out.print("\nSelect date (enter number): ");
-                     int dateChoice = Integer.parseInt(scanner.nextLine());
-                     
-                     if (dateChoice < 1 || dateChoice > dates.size()) {
-                         throw new InvalidDateException("Invalid date selection. Please choose between 1 and " + dates.size());
-                     }
-                     
-                     selectedDate = dates.get(dateChoice - 1);
-                 } catch (NumberFormatException e) {
-                     System.out.println("Error: Please enter a valid number");
-                 } catch (InvalidDateException e) {
-                     System.out.println("Error: " + e.getMessage());
+             // Publish seat counts for other processes as bookings are made
+             availability = new AvailabilityFile(new File(AVAILABILITY_FILE), movieDB);
+
+             // Start a new session or pick up an unfinished one
+             BookingSession session = null;
+             System.out.print("\nEnter a session token to resume a booking, or press Enter to start: ");
+             String token = scanner.nextLine().trim();
+             if (!token.isEmpty()) {
+                 session = sessions.load(token);
+                 if (session == null) {
+                     System.out.println("Error: No unfinished booking with token " + token);
+                 } else {
+                     System.out.println("Resuming your booking");
                  }
              }
-             
-             System.out.println("Selected date: " + selectedDate);
-             
-             // Get showtime selection
-             Showtime selectedShowtime = null;
-             ArrayList<Showtime> showtimes = selectedMovie.getShowtimesForDate(selectedDate);
-             
-             System.out.println("\nAvailable Showtimes:");
-             for (int i = 0; i < showtimes.size(); i++) {
-                 System.out.println((i+1) + ". " + showtimes.get(i));
+             if (session == null) {
+                 session = sessions.create();
+                 System.out.println("Your session token is " + session.getToken() + 
+                         ". Use it to resume this booking if you leave.");
              }
              
-             while (selectedShowtime == null) {
+             SeatHold hold = null;
+             while (session.getStep() != BookingSession.DONE) {
+                 Movie selectedMovie = null;
+                 Showtime selectedShowtime = null;
+                 
+                 // Look up the selections made so far; anything that no longer exists sends the user back
                  try {
-                     System.out.print("\nSelect showtime (enter number): ");
-                     int showtimeChoice = Integer.parseInt(scanner.nextLine());
-                     
-                     if (showtimeChoice < 1 || showtimeChoice > showtimes.size()) {
-                         throw new InvalidShowtimeException("Invalid showtime selection. Please choose between 1 and " + showtimes.size());
+                     if (session.getStep() > BookingSession.MOVIE) {
+                         selectedMovie = movieDB.getMovieByCode(session.getMovieCode());
                      }
-                     
-                     selectedShowtime = showtimes.get(showtimeChoice - 1);
-                 } catch (NumberFormatException e) {
-                     System.out.println("Error: Please enter a valid number");
-                 } catch (InvalidShowtimeException e) {
-                     System.out.println("Error: " + e.getMessage());
+                     if (session.getStep() > BookingSession.DATE && 
+                             !selectedMovie.getAvailableDates().contains(session.getDate())) {
+                         throw new InvalidDateException("Date " + session.getDate() + " is no longer available");
+                     }
+                     if (session.getStep() > BookingSession.SHOWTIME) {
+                         selectedShowtime = findShowtime(selectedMovie, session.getDate(), session.getShowtime());
+                     }
+                 } catch (InvalidMovieCodeException | InvalidDateException | InvalidShowtimeException e) {
+                     System.out.println("Error: " + e.getMessage() + ". Please choose again.");
+                     session.restart();
+                     continue;
                  }
-             }
-             
-             System.out.println("Selected showtime: " + selectedShowtime.getTime() + 
-                     " (Available seats: " + selectedShowtime.getAvailableSeats() + ")");
-             
-             // Get number of tickets
-             int numTickets = 0;
-             while (numTickets <= 0) {
-                 try {
-                     System.out.print("\nEnter number of tickets: ");
-                     numTickets = Integer.parseInt(scanner.nextLine());
+                 
+                 switch (session.getStep()) {
+                     case BookingSession.MOVIE:
+                         // Display all movies
+                         System.out.println("\nAvailable Movies:");
+                         List<Movie> movies = movieDB.getAllMovies();
+                         for (Movie movie : movies) {
+                             System.out.println(movie);
+                         }
+                         
+                         // Get movie selection
+                         while (selectedMovie == null) {
+                             try {
+                                 System.out.print("\nEnter movie code: ");
+                                 String movieCode = scanner.nextLine();
+                                 selectedMovie = movieDB.getMovieByCode(movieCode);
+                             } catch (InvalidMovieCodeException e) {
+                                 System.out.println("Error: " + e.getMessage());
+                             }
+                         }
+                         
+                         System.out.println("Selected movie: " + selectedMovie.getName());
+                         session.selectMovie(selectedMovie.getCode());
+                         break;
                      
-                     if (numTickets <= 0) {
-                         throw new InvalidTicketQuantityException("Number of tickets must be positive");
-                     }
+                     case BookingSession.DATE:
+                         // Get date selection
+                         String selectedDate = null;
+                         List<String> dates = selectedMovie.getAvailableDates();
+                         System.out.println("\nAvailable Dates for " + selectedMovie.getName() + ":");
+                         for (int i = 0; i < dates.size(); i++) {
+                             System.out.println((i+1) + ". " + dates.get(i));
+                         }
+                         
+                         while (selectedDate == null) {
+                             try {
+                                 System.out.print("\nSelect date (enter number): ");
+                                 int dateChoice = Integer.parseInt(scanner.nextLine());
+                                 
+                                 if (dateChoice < 1 || dateChoice > dates.size()) {
+                                     throw new InvalidDateException("Invalid date selection. Please choose between 1 and " + dates.size());
+                                 }
+                                 
+                                 selectedDate = dates.get(dateChoice - 1);
+                             } catch (NumberFormatException e) {
+                                 System.out.println("Error: Please enter a valid number");
+                             } catch (InvalidDateException e) {
+                                 System.out.println("Error: " + e.getMessage());
+                             }
+                         }
+                         
+                         System.out.println("Selected date: " + selectedDate);
+                         session.selectDate(selectedDate);
+                         break;
                      
-                     if (numTickets > selectedShowtime.getAvailableSeats()) {
-                         throw new OverbookingException("Not enough seats available. Available: " + 
-                                 selectedShowtime.getAvailableSeats());
-                     }
+                     case BookingSession.SHOWTIME:
+                         // Get showtime selection
+                         List<Showtime> showtimes = selectedMovie.getShowtimesForDate(session.getDate());
+                         
+                         System.out.println("\nAvailable Showtimes on " + session.getDate() + ":");
+                         for (int i = 0; i < showtimes.size(); i++) {
+                             System.out.println((i+1) + ". " + showtimes.get(i));
+                         }
+                         
+                         while (selectedShowtime == null) {
+                             try {
+                                 System.out.print("\nSelect showtime (enter number): ");
+                                 int showtimeChoice = Integer.parseInt(scanner.nextLine());
+                                 
+                                 if (showtimeChoice < 1 || showtimeChoice > showtimes.size()) {
+                                     throw new InvalidShowtimeException("Invalid showtime selection. Please choose between 1 and " + showtimes.size());
+                                 }
+                                 
+                                 selectedShowtime = showtimes.get(showtimeChoice - 1);
+                             } catch (NumberFormatException e) {
+                                 System.out.println("Error: Please enter a valid number");
+                             } catch (InvalidShowtimeException e) {
+                                 System.out.println("Error: " + e.getMessage());
+                             }
+                         }
+                         
+                         System.out.println("Selected showtime: " + selectedShowtime.getTime() + 
+                                 " (Available seats: " + selectedShowtime.getAvailableSeats() + ")");
+                         session.selectShowtime(selectedShowtime.getTime());
+                         break;
                      
-                 } catch (NumberFormatException e) {
-                     System.out.println("Error: Please enter a valid number");
-                 } catch (InvalidTicketQuantityException | OverbookingException e) {
-                     System.out.println("Error: " + e.getMessage());
-                     numTickets = 0;
-                 }
-             }
-             
-             // Create booking
-             Booking booking = new Booking(selectedMovie, selectedDate, selectedShowtime, numTickets);
-             
-             // Simulate inactivity timer
-             System.out.println("\nSimulating inactivity timer (in a real system this would monitor user activity)");
-             System.out.println("Session will be saved if user is inactive for too long");
-             
-             // Select seats (simple implementation)
-             System.out.println("\nSelect your seats:");
-             for (int i = 0; i < numTickets; i++) {
-                 boolean validSeat = false;
-                 while (!validSeat) {
-                     try {
-                         System.out.print("Seat " + (i+1) + " (row,column format e.g. 1,3): ");
-                         String seatInput = scanner.nextLine();
-                         String[] parts = seatInput.split(",");
+                     case BookingSession.TICKETS:
+                         // Get number of tickets
+                         int numTickets = 0;
+                         while (numTickets <= 0) {
+                             try {
+                                 System.out.print("\nEnter number of tickets: ");
+                                 numTickets = Integer.parseInt(scanner.nextLine());
+                                 
+                                 if (numTickets <= 0) {
+                                     throw new InvalidTicketQuantityException("Number of tickets must be positive");
+                                 }
+                                 
+                                 if (numTickets > selectedShowtime.getAvailableSeats()) {
+                                     throw new OverbookingException("Not enough seats available. Available: " + 
+                                             selectedShowtime.getAvailableSeats());
+                                 }
+                             
+                             } catch (NumberFormatException e) {
+                                 System.out.println("Error: Please enter a valid number");
+                             } catch (InvalidTicketQuantityException | OverbookingException e) {
+                                 System.out.println("Error: " + e.getMessage());
+                                 numTickets = 0;
+                             }
+                         }
+                         session.selectTickets(numTickets);
+                         break;
+                     
+                     case BookingSession.SEATS:
+                         // Show the hall so the user can pick free seats
+                         HallLayout layout = selectedShowtime.getLayout();
+                         Booking booking = new Booking(selectedMovie, session.getDate(), selectedShowtime, session.getNumTickets());
+                         System.out.println("\nSeat map (X = taken):");
+                         System.out.print(selectedShowtime.renderSeatMap());
                          
-                         if (parts.length != 2) {
-                             throw new InvalidTicketQuantityException("Invalid seat format. Use row,column (e.g. 1,3)");
+                         // Offer the best available seats before asking for each seat by hand
+                         System.out.print("\nPress Enter for the best available seats, or M to choose your own: ");
+                         if (!scanner.nextLine().trim().equalsIgnoreCase("m")) {
+                             try {
+                                 hold = holdManager.holdBest(selectedShowtime, session.getNumTickets(), HOLD_MILLIS);
+                                 StringBuilder labels = new StringBuilder();
+                                 for (int seat : hold.getSeats()) {
+                                     labels.append(layout.seatLabel(seat)).append(" ");
+                                 }
+                                 System.out.println("Your seats: " + labels.toString().trim());
+                                 System.out.println("\nYour seats are held for " + (HOLD_MILLIS / 60000) + 
+                                         " minutes while you complete the booking.");
+                                 session.selectSeats(hold.getSeats());
+                             } catch (OverbookingException e) {
+                                 System.out.println("Error: " + e.getMessage() + ". Please choose again.");
+                             }
+                             break;
                          }
                          
-                         int row = Integer.parseInt(parts[0].trim());
-                         int col = Integer.parseInt(parts[1].trim());
+                         // Select seats
+                         System.out.println("\nSelect your seats:");
+                         for (int i = 0; i < session.getNumTickets(); i++) {
+                             boolean validSeat = false;
+                             while (!validSeat) {
+                                 try {
+                                     System.out.print("Seat " + (i+1) + " (row,column format e.g. 1,3): ");
+                                     String seatInput = scanner.nextLine();
+                                     String[] parts = seatInput.split(",");
+                                     
+                                     if (parts.length != 2) {
+                                         throw new InvalidTicketQuantityException("Invalid seat format. Use row,column (e.g. 1,3)");
+                                     }
+                                     
+                                     int row = Integer.parseInt(parts[0].trim());
+                                     int col = Integer.parseInt(parts[1].trim());
+                                     
+                                     // Check the seat exists in this hall
+                                     if (!selectedShowtime.isValidSeat(row, col)) {
+                                         throw new InvalidTicketQuantityException("Invalid seat. Row must be between 0 and " + 
+                                                 (layout.getRows() - 1) + " and column between 0 and " + (layout.getSeatsPerRow() - 1));
+                                     }
+                                     
+                                     // Check nobody else has it and it is not already in this booking
+                                     int seat = layout.seatIndex(row, col);
+                                     if (!selectedShowtime.isSeatAvailable(seat) || booking.hasSeat(seat)) {
+                                         throw new OverbookingException("Seat " + row + "," + col + " is already taken");
+                                     }
+                                     
+                                     booking.addSeat(seat);
+                                     validSeat = true;
+                                 
+                                 } catch (NumberFormatException e) {
+                                     System.out.println("Error: Please enter valid numbers for row and column");
+                                 } catch (InvalidTicketQuantityException | OverbookingException e) {
+                                     System.out.println("Error: " + e.getMessage());
+                                 }
+                             }
+                         }
                          
-                         // Check if seat is valid (simple check)
-                         if (row < 0 || row >= 10 || col < 0 || col >= 10) {
-                             throw new InvalidTicketQuantityException("Invalid seat. Row and column must be between 0 and 9");
+                         // Hold the seats so nobody else can take them while the user finishes
+                         try {
+                             hold = holdManager.hold(selectedShowtime, booking.getSeats(), HOLD_MILLIS);
+                             System.out.println("\nYour seats are held for " + (HOLD_MILLIS / 60000) + 
+                                     " minutes while you complete the booking.");
+                             session.selectSeats(booking.getSeats());
+                         } catch (OverbookingException e) {
+                             System.out.println("Error: " + e.getMessage() + ". Please choose again.");
+                         }
+                         break;
+                     
+                     case BookingSession.EMAIL:
+                         // A resumed session has lost its hold, so take the seats again
+                         if (hold == null) {
+                             try {
+                                 hold = holdManager.hold(selectedShowtime, session.getSeats(), HOLD_MILLIS);
+                             } catch (OverbookingException e) {
+                                 System.out.println("Error: " + e.getMessage() + ". Please choose your seats again.");
+                                 session.reselectSeats();
+                                 break;
+                             }
                          }
                          
-                         String seat = row + "," + col;
-                         booking.addSeat(seat);
-                         validSeat = true;
+                         // Display booking details
+                         System.out.println("\n--- Booking Details ---");
+                         System.out.println(session.toBooking(selectedMovie, selectedShowtime));
                          
-                     } catch (NumberFormatException e) {
-                         System.out.println("Error: Please enter valid numbers for row and column");
-                     } catch (InvalidTicketQuantityException e) {
-                         System.out.println("Error: " + e.getMessage());
-                     }
+                         // Get email
+                         String email = "";
+                         while (email.isEmpty()) {
+                             System.out.print("\nEnter your email for billing: ");
+                             email = scanner.nextLine();
+                             
+                             // Simple validation
+                             if (!email.contains("@") || !email.contains(".")) {
+                                 System.out.println("Error: Please enter a valid email address");
+                                 email = "";
+                             }
+                         }
+                         session.enterEmail(email);
+                         break;
+                     
+                     case BookingSession.CONFIRM:
+                         if (hold == null) {
+                             try {
+                                 hold = holdManager.hold(selectedShowtime, session.getSeats(), HOLD_MILLIS);
+                             } catch (OverbookingException e) {
+                                 System.out.println("Error: " + e.getMessage() + ". Please choose your seats again.");
+                                 session.reselectSeats();
+                                 break;
+                             }
+                             System.out.println("\n--- Booking Details ---");
+                             System.out.println(session.toBooking(selectedMovie, selectedShowtime));
+                         }
+                         
+                         // Confirm booking
+                         System.out.print("\nConfirm booking? (y/n): ");
+                         String confirm = scanner.nextLine();
+                         
+                         if (confirm.equalsIgnoreCase("y")) {
+                             if (holdManager.confirm(hold)) {
+                                 Booking confirmed = session.toBooking(selectedMovie, selectedShowtime);
+                                 try {
+                                     String bookingId = ledger.confirm(confirmed, session.getEmail());
+                                     System.out.println("\nBooking confirmed! Your booking ID is " + bookingId);
+                                     System.out.println("A PDF bill would be generated and sent to " + session.getEmail() + " in a real system");
+                                 } catch (IOException e) {
+                                     // The booking could not be saved, so do not keep the seats
+                                     selectedShowtime.releaseSeats(hold.getSeats());
+                                     System.out.println("\nBooking failed: it could not be saved (" + e.getMessage() + ")");
+                                 }
+                             } else {
+                                 System.out.println("\nBooking failed: your seat hold expired and the seats were released");
+                             }
+                         } else {
+                             holdManager.release(hold);
+                             System.out.println("\nBooking cancelled");
+                         }
+                         session.finish();
+                         break;
                  }
-             }
-             
-             // Calculate total
-             double totalAmount = numTickets * selectedShowtime.getTicketPrice();
-             booking.setTotalAmount(totalAmount);
-             
-             // Display booking details
-             System.out.println("\n--- Booking Details ---");
-             System.out.println(booking);
-             
-             // Get email
-             String email = "";
-             while (email.isEmpty()) {
-                 System.out.print("\nEnter your email for billing: ");
-                 email = scanner.nextLine();
                  
-                 // Simple validation
-                 if (!email.contains("@") || !email.contains(".")) {
-                     System.out.println("Error: Please enter a valid email address");
-                     email = "";
-                 }
-             }
-             
-             // Confirm booking
-             System.out.print("\nConfirm booking? (y/n): ");
-             String confirm = scanner.nextLine();
-             
-             if (confirm.equalsIgnoreCase("y")) {
-                 System.out.println("\nBooking confirmed!");
-                 System.out.println("A PDF bill would be generated and sent to " + email + " in a real system");
-             } else {
-                 System.out.println("\nBooking cancelled");
+                 // Persist progress so far; finished sessions are dropped from the store
+                 sessions.save(session);
              }
-             
+         
          } catch (IOException e) {
              System.out.println("Error loading movie database: " + e.getMessage());
          } finally {
+             if (availability != null) {
+                 availability.close();
+             }
+             if (ledger != null) {
+                 ledger.close();
+             }
+             if (sessions != null) {
+                 sessions.close();
+             }
              if (scanner != null) {
                  scanner.close();
              }
          }
      }
- }
- 
- /**
-  * Custom exception for invalid movie codes.
-  */
- class InvalidMovieCodeException extends Exception {
      
-     public InvalidMovieCodeException(String message) {
-         super(message);
+     /**
+      * Find the showtime of a movie on a date by its start time.
+      */
+     private static Showtime findShowtime(Movie movie, String date, String time) throws InvalidShowtimeException {
+         for (Showtime showtime : movie.getShowtimesForDate(date)) {
+             if (showtime.getTime().equals(time)) {
+                 return showtime;
+             }
+         }
+         throw new InvalidShowtimeException("Showtime " + time + " on " + date + " is no longer available");
      }
  }
  
@@ -243,6 +425,7 @@
   * Custom exception for invalid dates.
   */
  class InvalidDateException extends Exception {
+     private static final long serialVersionUID = 1L;
      
      public InvalidDateException(String message) {
          super(message);
@@ -253,6 +436,7 @@
   * Custom exception for invalid showtimes.
   */
  class InvalidShowtimeException extends Exception {
+     private static final long serialVersionUID = 1L;
      
      public InvalidShowtimeException(String message) {
          super(message);
@@ -263,6 +447,7 @@
   * Custom exception for invalid ticket quantities.
   */
  class InvalidTicketQuantityException extends Exception {
+     private static final long serialVersionUID = 1L;
      
      public InvalidTicketQuantityException(String message) {
          super(message);
@@ -270,289 +455,2598 @@
  }
  
  /**
-  * Custom exception for overbooking situations.
+  * Stress test for concurrent seat booking on a single Showtime.
+  * 
+  * Runs with 1, 2, 4, ... threads up to the number of processors. Each
+  * thread books random groups of one to four seats until the hall is sold
+  * out. Afterwards every seat must have been sold exactly once.
+  * Run with: java BookingStressTest [seats] [max threads]
   */
- class OverbookingException extends Exception {
+ class BookingStressTest {
+     private static final int BEST_ROW_SEATS = 40;
      
-     public OverbookingException(String message) {
-         super(message);
+     public static void main(String[] args) throws Exception {
+         int totalSeats = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+         int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+         
+         System.out.println("Seats: " + totalSeats + ", max threads: " + maxThreads);
+         boolean passed = true;
+         for (int threads = 1; threads <= maxThreads; threads *= 2) {
+             passed &= run(totalSeats, threads);
+         }
+         
+         // Best-available bookings go through the seat finder, whose index every claim updates
+         System.out.println("Best available, rows of " + BEST_ROW_SEATS + " seats:");
+         double single = 0;
+         for (int threads = 1; threads <= maxThreads; threads *= 2) {
+             double rate = runBestAvailable(totalSeats, threads, single);
+             passed &= rate > 0;
+             if (threads == 1) {
+                 single = rate;
+             }
+         }
+         System.out.println(passed ? "PASSED: no seat was sold twice" : "FAILED: oversell detected");
+         if (!passed) {
+             System.exit(1);
+         }
      }
- }
+     
+     private static boolean run(int totalSeats, int threads) throws Exception {
+         Showtime showtime = new Showtime("Stress", totalSeats, totalSeats, 10.0);
+         AtomicIntegerArray soldCount = new AtomicIntegerArray(totalSeats);
+         AtomicLong bookings = new AtomicLong();
+         AtomicLong conflicts = new AtomicLong();
+         CountDownLatch start = new CountDownLatch(1);
+         
+         ExecutorService pool = Executors.newFixedThreadPool(threads);
+         List<Future<?>> futures = new ArrayList<>();
+         for (int t = 0; t < threads; t++) {
+             futures.add(pool.submit(() -> {
+                 ThreadLocalRandom random = ThreadLocalRandom.current();
+                 start.await();
+                 int misses = 0;
+                 while (showtime.getAvailableSeats() > 0) {
+                     int size = 1 + random.nextInt(4);
+                     int first = random.nextInt(totalSeats);
+                     int[] seats = new int[Math.min(size, totalSeats - first)];
+                     for (int i = 0; i < seats.length; i++) {
+                         seats[i] = first + i;
+                     }
+                     try {
+                         showtime.bookSeats(seats);
+                         for (int seat : seats) {
+                             soldCount.incrementAndGet(seat);
+                         }
+                         bookings.incrementAndGet();
+                         misses = 0;
+                     } catch (OverbookingException e) {
+                         conflicts.incrementAndGet();
+                         // Random picks rarely hit the last free seats, so sweep them up
+                         if (++misses > 64) {
+                             try {
+                                 for (int seat : showtime.bookSeats(1)) {
+                                     soldCount.incrementAndGet(seat);
+                                 }
+                                 bookings.incrementAndGet();
+                             } catch (OverbookingException soldOut) {
+                                 break;
+                             }
+                         }
+                     }
+                 }
+                 return null;
+             }));
+         }
+         
+         long begin = System.nanoTime();
+         start.countDown();
+         for (Future<?> future : futures) {
+             future.get();
+         }
+         double seconds = (System.nanoTime() - begin) / 1e9;
+         pool.shutdown();
+         
+         int sold = 0;
+         int oversold = 0;
+         for (int seat = 0; seat < totalSeats; seat++) {
+             sold += soldCount.get(seat);
+             if (soldCount.get(seat) > 1) {
+                 oversold++;
+             }
+         }
+         boolean ok = oversold == 0 && sold == totalSeats && showtime.getAvailableSeats() == 0;
+         System.out.println(String.format(
+                 "%2d threads: %,10.0f bookings/s, %,d bookings, %,d conflicts, %,d seats sold, %d oversold%s",
+                 threads, bookings.get() / seconds, bookings.get(), conflicts.get(), sold, oversold,
+                 ok ? "" : "  <-- FAILED"));
+         return ok;
+     }
+     
+     /**
+      * Sell out a hall through best-available bookings of one to four seats.
+      * Returns bookings per second, negated if a seat was sold twice or left
+      * unsold, and prints the speedup over the single-thread rate if known.
+      */
+     private static double runBestAvailable(int totalSeats, int threads, double single) throws Exception {
+         int rows = (totalSeats + BEST_ROW_SEATS - 1) / BEST_ROW_SEATS;
+         Showtime showtime = new Showtime("Stress", totalSeats, totalSeats, 10.0, 
+                 HallLayout.of(rows, BEST_ROW_SEATS));
+         AtomicIntegerArray soldCount = new AtomicIntegerArray(totalSeats);
+         AtomicLong bookings = new AtomicLong();
+         CountDownLatch start = new CountDownLatch(1);
+         
+         ExecutorService pool = Executors.newFixedThreadPool(threads);
+         List<Future<?>> futures = new ArrayList<>();
+         for (int t = 0; t < threads; t++) {
+             futures.add(pool.submit(() -> {
+                 ThreadLocalRandom random = ThreadLocalRandom.current();
+                 start.await();
+                 while (showtime.getAvailableSeats() > 0) {
+                     int[] seats = showtime.tryBookBestAvailable(
+                             Math.min(1 + random.nextInt(4), Math.max(1, showtime.getAvailableSeats())));
+                     if (seats == null) {
+                         continue;
+                     }
+                     for (int seat : seats) {
+                         soldCount.incrementAndGet(seat);
+                     }
+                     bookings.incrementAndGet();
+                 }
+                 return null;
+             }));
+         }
+         
+         long begin = System.nanoTime();
+         start.countDown();
+         for (Future<?> future : futures) {
+             future.get();
+         }
+         double seconds = (System.nanoTime() - begin) / 1e9;
+         pool.shutdown();
+         
+         int sold = 0;
+         int oversold = 0;
+         for (int seat = 0; seat < totalSeats; seat++) {
+             sold += soldCount.get(seat);
+             if (soldCount.get(seat) > 1) {
+                 oversold++;
+             }
+         }
+         boolean ok = oversold == 0 && sold == totalSeats;
+         double rate = bookings.get() / seconds;
+         System.out.println(String.format(
+                 "%2d threads: %,10.0f bookings/s (%.2fx), %,d bookings, %,d seats sold, %d oversold%s",
+                 threads, rate, single > 0 ? rate / single : 1.0, bookings.get(), sold, oversold, 
+                 ok ? "" : "  <-- FAILED"));
+         return ok ? rate : -rate;
+     }
+ } 
  
  /**
-  * Class representing a Movie.
+  * Class implementing a hierarchical timing wheel (Varghese and Lauck).
+  * 
+  * Four levels of 64 slots cover 64^4 ticks. Scheduling and cancelling an
+  * entry are O(1), and each entry is moved down a level at most three times
+  * before it expires, so expiry is O(1) per entry. There is one reaper
+  * thread for the whole wheel and no per-entry timer threads. Other threads
+  * hand new entries over through a lock-free queue; only the reaper thread
+  * touches the slots.
   */
- class Movie {
-     private String code;
-     private String name;
-     private String language;
-     private String genre;
-     private HashMap<String, ArrayList<Showtime>> showtimes;
+ class TimingWheel {
+     private static final int SLOT_BITS = 6;
+     private static final int SLOTS = 1 << SLOT_BITS;
+     private static final int LEVELS = 4;
+     
+     /**
+      * Class representing something scheduled on the wheel.
+      */
+     abstract static class Entry {
+         private long deadlineTick;
+         private Entry next;
+         private volatile boolean cancelled;
+         
+         /**
+          * Called on the reaper thread when the entry's deadline passes.
+          */
+         protected abstract void expired();
+         
+         /**
+          * Stop the entry from expiring. It is unlinked lazily when its
+          * slot comes round.
+          */
+         public void cancel() {
+             cancelled = true;
+         }
+     }
+     
+     private final long tickMillis;
+     private final long startMillis;
+     private final Entry[][] slots;
+     private final ConcurrentLinkedQueue<Entry> incoming;
+     private long currentTick;
      
      /**
-      * Constructor for Movie.
+      * Constructor for TimingWheel. Starts the reaper thread.
       */
-     public Movie(String code, String name, String language, String genre) {
-         this.code = code;
-         this.name = name;
-         this.language = language;
-         this.genre = genre;
-         this.showtimes = new HashMap<>();
+     public TimingWheel(long tickMillis, String name) {
+         this.tickMillis = tickMillis;
+         this.startMillis = System.currentTimeMillis();
+         this.slots = new Entry[LEVELS][SLOTS];
+         this.incoming = new ConcurrentLinkedQueue<>();
+         
+         Thread reaper = new Thread(this::run, name);
+         reaper.setDaemon(true);
+         reaper.start();
      }
      
      /**
-      * Add a showtime for this movie.
+      * Schedule an entry to expire after the given delay.
       */
-     public void addShowtime(String date, Showtime showtime) {
-         if (!showtimes.containsKey(date)) {
-             showtimes.put(date, new ArrayList<>());
+     public void schedule(Entry entry, long delayMillis) {
+         long deadlineMillis = System.currentTimeMillis() + delayMillis;
+         // Round up so an entry never expires early
+         entry.deadlineTick = (deadlineMillis - startMillis + tickMillis - 1) / tickMillis;
+         incoming.add(entry);
+     }
+     
+     private void run() {
+         while (true) {
+             long nowTick = (System.currentTimeMillis() - startMillis) / tickMillis;
+             while (currentTick < nowTick) {
+                 advance();
+             }
+             try {
+                 Thread.sleep(tickMillis);
+             } catch (InterruptedException e) {
+                 return;
+             }
+         }
+     }
+     
+     private void advance() {
+         currentTick++;
+         
+         Entry entry;
+         while ((entry = incoming.poll()) != null) {
+             place(entry);
+         }
+         
+         // When a lower level wraps, move the next slot of each level above down
+         for (int level = LEVELS - 1; level > 0; level--) {
+             if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                 int index = (int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+                 Entry list = slots[level][index];
+                 slots[level][index] = null;
+                 while (list != null) {
+                     Entry next = list.next;
+                     place(list);
+                     list = next;
+                 }
+             }
+         }
+         
+         int index = (int) (currentTick & (SLOTS - 1));
+         Entry list = slots[0][index];
+         slots[0][index] = null;
+         while (list != null) {
+             Entry next = list.next;
+             list.next = null;
+             if (!list.cancelled) {
+                 expire(list);
+             }
+             list = next;
          }
-         showtimes.get(date).add(showtime);
      }
      
      /**
-      * Get available dates for this movie.
+      * Put an entry in the lowest level whose higher bits match the current tick.
       */
-     public ArrayList<String> getAvailableDates() {
-         return new ArrayList<>(showtimes.keySet());
+     private void place(Entry entry) {
+         entry.next = null;
+         if (entry.cancelled) {
+             return;
+         }
+         if (entry.deadlineTick <= currentTick) {
+             expire(entry);
+             return;
+         }
+         for (int level = 0; level < LEVELS; level++) {
+             int shift = SLOT_BITS * (level + 1);
+             if (level == LEVELS - 1 || (entry.deadlineTick >>> shift) == (currentTick >>> shift)) {
+                 long slotTick = level == LEVELS - 1 
+                         ? Math.min(entry.deadlineTick, currentTick + (1L << shift) - 1) : entry.deadlineTick;
+                 int index = (int) ((slotTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+                 entry.next = slots[level][index];
+                 slots[level][index] = entry;
+                 return;
+             }
+         }
+     }
+     
+     private void expire(Entry entry) {
+         try {
+             entry.expired();
+         } catch (RuntimeException e) {
+             System.err.println("Timer entry failed: " + e.getMessage());
+         }
      }
+ }
+ 
+ /**
+  * Class representing seats held for a user for a limited time.
+  * The seats are taken in the showtime's seat map for as long as the hold
+  * lasts, so other users see them as unavailable.
+  */
+ class SeatHold extends TimingWheel.Entry {
+     static final int HELD = 0;
+     static final int CONFIRMED = 1;
+     static final int EXPIRED = 2;
+     static final int RELEASED = 3;
+     
+     private final Showtime showtime;
+     private final int[] seats;
+     private final AtomicInteger state;
      
      /**
-      * Get showtimes for a specific date.
+      * Constructor for SeatHold.
       */
-     public ArrayList<Showtime> getShowtimesForDate(String date) {
-         return showtimes.getOrDefault(date, new ArrayList<>());
+     public SeatHold(Showtime showtime, int[] seats) {
+         this.showtime = showtime;
+         this.seats = seats;
+         this.state = new AtomicInteger(HELD);
      }
      
      /**
-      * Get movie code.
+      * Turn the hold into a confirmed booking. Fails if it already expired.
       */
-     public String getCode() {
-         return code;
+     public boolean confirm() {
+         if (state.compareAndSet(HELD, CONFIRMED)) {
+             cancel();
+             return true;
+         }
+         return state.get() == CONFIRMED;
      }
      
      /**
-      * Get movie name.
+      * Give the seats back before the hold expires.
       */
-     public String getName() {
-         return name;
+     public boolean release() {
+         if (state.compareAndSet(HELD, RELEASED)) {
+             cancel();
+             showtime.releaseSeats(seats);
+             return true;
+         }
+         return false;
+     }
+     
+     @Override
+     protected void expired() {
+         if (state.compareAndSet(HELD, EXPIRED)) {
+             showtime.releaseSeats(seats);
+         }
      }
      
      /**
-      * Get movie language.
+      * Get the showtime.
       */
-     public String getLanguage() {
-         return language;
+     public Showtime getShowtime() {
+         return showtime;
      }
      
      /**
-      * Get movie genre.
+      * Get the held seats.
       */
-     public String getGenre() {
-         return genre;
+     public int[] getSeats() {
+         return seats;
      }
      
-     public String toString() {
-         return code + " - " + name + " (" + language + ", " + genre + ")";
+     /**
+      * Get the hold state.
+      */
+     public int getState() {
+         return state.get();
      }
  }
  
  /**
-  * Class representing a Showtime.
+  * Class managing temporary seat holds, expired by a shared timing wheel.
   */
- class Showtime {
-     private String time;
-     private int totalSeats;
-     private int availableSeats;
-     private double ticketPrice;
+ class SeatHoldManager {
+     private static final long TICK_MILLIS = 100;
+     
+     private final TimingWheel wheel;
      
      /**
-      * Constructor for Showtime.
+      * Constructor for SeatHoldManager.
       */
-     public Showtime(String time, int totalSeats, int availableSeats, double ticketPrice) {
-         this.time = time;
-         this.totalSeats = totalSeats;
-         this.availableSeats = availableSeats;
-         this.ticketPrice = ticketPrice;
+     public SeatHoldManager() {
+         this.wheel = new TimingWheel(TICK_MILLIS, "seat-hold-reaper");
      }
      
      /**
-      * Get showtime.
+      * Hold seats for the given time. Either all seats are held or none are.
       */
-     public String getTime() {
-         return time;
+     public SeatHold hold(Showtime showtime, int[] seats, long holdMillis) throws OverbookingException {
+         showtime.bookSeats(seats);
+         return track(showtime, seats, holdMillis);
      }
      
      /**
-      * Get total seats.
+      * Hold any free seats for the given time.
       */
-     public int getTotalSeats() {
-         return totalSeats;
+     public SeatHold holdAny(Showtime showtime, int numSeats, long holdMillis) throws OverbookingException {
+         return track(showtime, showtime.bookSeats(numSeats), holdMillis);
      }
      
      /**
-      * Get available seats.
+      * Hold the best available seats for the given time.
       */
-     public int getAvailableSeats() {
-         return availableSeats;
+     public SeatHold holdBest(Showtime showtime, int numSeats, long holdMillis) throws OverbookingException {
+         return track(showtime, showtime.bookBestAvailable(numSeats), holdMillis);
      }
-     
+
      /**
-      * Get ticket price.
+      * Confirm a hold as a booking. Returns false if the hold had expired.
       */
-     public double getTicketPrice() {
-         return ticketPrice;
+     public boolean confirm(SeatHold hold) {
+         return hold.confirm();
      }
      
      /**
-      * Book seats.
+      * Release a hold the user no longer wants.
       */
-     public void bookSeats(int numSeats) throws OverbookingException {
-         if (numSeats > availableSeats) {
-             throw new OverbookingException("Not enough seats available");
-         }
-         availableSeats -= numSeats;
+     public void release(SeatHold hold) {
+         hold.release();
      }
      
-
-     public String toString() {
-         return time + " - Available: " + availableSeats + "/" + totalSeats + " - Price: $" + ticketPrice;
-
+     private SeatHold track(Showtime showtime, int[] seats, long holdMillis) {
+         SeatHold hold = new SeatHold(showtime, seats);
+         wheel.schedule(hold, holdMillis);
+         return hold;
      }
- }
+ } 
  
  /**
-  * Class representing a Movie Database that loads data from CSV.
+  * Class representing a first-come, first-served waitlist for a showtime.
+  * Requests queue for a number of seats; whenever seats are freed, by a
+  * cancellation or an expired hold, the request at the front is given a
+  * hold on the best available seats as soon as enough are free. Joining,
+  * cancelling and allocating take no lock: one thread at a time allocates,
+  * and a thread that frees seats while another is allocating leaves the
+  * work to it.
   */
- class MovieDatabase {
-     private HashMap<String, Movie> movies;
+ class Waitlist implements SeatListener {
+     private static final int WAIT_BUCKETS = 40;
+     
+     /**
+      * Class representing a place in the waitlist.
+      */
+     static class Request {
+         private final int numSeats;
+         private final long joinedNanos;
+         private final CompletableFuture<SeatHold> hold = new CompletableFuture<>();
+         private final Waitlist waitlist;
+         
+         private Request(Waitlist waitlist, int numSeats) {
+             this.waitlist = waitlist;
+             this.numSeats = numSeats;
+             this.joinedNanos = System.nanoTime();
+         }
+         
+         /**
+          * Get the number of seats wanted.
+          */
+         public int getNumSeats() {
+             return numSeats;
+         }
+         
+         /**
+          * Get the hold, completed once seats are allocated.
+          */
+         public CompletableFuture<SeatHold> getHold() {
+             return hold;
+         }
+         
+         /**
+          * Wait for seats. Returns the hold, or null if none came within the
+          * time, in which case the request leaves the waitlist.
+          */
+         public SeatHold await(long timeoutMillis) throws InterruptedException {
+             try {
+                 return hold.get(timeoutMillis, TimeUnit.MILLISECONDS);
+             } catch (TimeoutException e) {
+                 // Seats may be allocated just as the wait ends; then keep them
+                 return cancel() ? null : hold.join();
+             } catch (CancellationException e) {
+                 return null;
+             } catch (ExecutionException e) {
+                 throw new IllegalStateException(e.getCause());
+             }
+         }
+         
+         /**
+          * Leave the waitlist. Returns false if seats were already allocated.
+          */
+         public boolean cancel() {
+             if (hold.cancel(false)) {
+                 waitlist.cancelled.incrementAndGet();
+                 waitlist.depth.decrementAndGet();
+                 return true;
+             }
+             return false;
+         }
+     }
+     
+     private final Showtime showtime;
+     private final SeatHoldManager holdManager;
+     private final long holdMillis;
+     private final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<>();
+     
+     // Number of allocation passes asked for; only the thread that raises it from zero allocates
+     private final AtomicInteger pending = new AtomicInteger();
+     private final AtomicInteger depth = new AtomicInteger();
+     private final AtomicInteger maxDepth = new AtomicInteger();
+     private final AtomicLong joined = new AtomicLong();
+     private final AtomicLong fulfilled = new AtomicLong();
+     private final AtomicLong cancelled = new AtomicLong();
+     private final AtomicLong totalWaitNanos = new AtomicLong();
+     private final AtomicLong maxWaitNanos = new AtomicLong();
+     
+     // Fulfilled requests by wait time, bucket i holding waits under 2^i microseconds
+     private final AtomicLongArray waitBuckets = new AtomicLongArray(WAIT_BUCKETS);
      
      /**
-      * Constructor for MovieDatabase.
+      * Constructor for Waitlist. Seats freed on the showtime from now on go
+      * to the waitlist first.
       */
-     public MovieDatabase(String csvFile) throws IOException {
-         movies = new HashMap<>();
-         loadMoviesFromCSV(csvFile);
+     public Waitlist(Showtime showtime, SeatHoldManager holdManager, long holdMillis) {
+         this.showtime = showtime;
+         this.holdManager = holdManager;
+         this.holdMillis = holdMillis;
+         showtime.addSeatListener(this);
      }
      
      /**
-      * Load movies from CSV file.
+      * Join the back of the waitlist for a number of seats.
       */
-     private void loadMoviesFromCSV(String csvFile) throws IOException {
-         BufferedReader reader = null;
-         
-         try {
-             reader = new BufferedReader(new FileReader(csvFile));
-             String line;
-             
-             // Skip header line
-             reader.readLine();
-             
-             while ((line = reader.readLine()) != null) {
-                 String[] data = line.split(",");
-                 
-                 // Parse data
-                 String movieCode = data[0];
-                 String movieName = data[1];
-                 String date = data[2];
-                 String showtime = data[3];
-                 int totalSeats = Integer.parseInt(data[4]);
-                 int availableSeats = Integer.parseInt(data[5]);
-                 double ticketPrice = Double.parseDouble(data[6]);
-                 String language = data[7];
-                 String genre = data[8];
-
-                 // Get or create movie
-                 Movie movie;
-                 if (movies.containsKey(movieCode)) {
-                     movie = movies.get(movieCode);
+     public Request join(int numSeats) throws InvalidTicketQuantityException {
+         if (numSeats <= 0 || numSeats > showtime.getTotalSeats()) {
+             throw new InvalidTicketQuantityException("Cannot wait for " + numSeats + " seats in a hall of " + 
+                     showtime.getTotalSeats());
+         }
+         Request request = new Request(this, numSeats);
+         joined.incrementAndGet();
+         maxDepth.accumulateAndGet(depth.incrementAndGet(), Math::max);
+         queue.add(request);
+         // Seats freed before the request was queued would otherwise wait for the next release
+         allocate();
+         return request;
+     }
+     
+     @Override
+     public void seatsChanged(Showtime changed, int[] seats, boolean taken) {
+         if (!taken) {
+             allocate();
+         }
+     }
+     
+     /**
+      * Give free seats to the requests at the front, in order, stopping at
+      * the first one that does not fit yet.
+      */
+     private void allocate() {
+         if (pending.getAndIncrement() != 0) {
+             return;
+         }
+         int missed = 1;
+         do {
+             Request head;
+             while ((head = queue.peek()) != null) {
+                 if (head.hold.isDone()) {
+                     queue.poll();
+                     continue;
+                 }
+                 if (head.numSeats > showtime.getAvailableSeats()) {
+                     break;
+                 }
+                 SeatHold hold;
+                 try {
+                     hold = holdManager.holdBest(showtime, head.numSeats, holdMillis);
+                 } catch (OverbookingException e) {
+                     // Taken by a direct booking first; the next release tries again
+                     break;
+                 }
+                 queue.poll();
+                 if (head.hold.complete(hold)) {
+                     recordFulfilled(System.nanoTime() - head.joinedNanos);
                  } else {
-                     movie = new Movie(movieCode, movieName, language, genre);
-                     movies.put(movieCode, movie);
+                     // Cancelled meanwhile; this release brings us back round the loop
+                     holdManager.release(hold);
                  }
-                 
-                 // Add showtime
-                 Showtime show = new Showtime(showtime, totalSeats, availableSeats, ticketPrice);
-                 movie.addShowtime(date, show);
-             }
-         } finally {
-             if (reader != null) {
-                 reader.close();
              }
-         }
+             missed = pending.addAndGet(-missed);
+         } while (missed != 0);
+     }
+     
+     private void recordFulfilled(long waitNanos) {
+         depth.decrementAndGet();
+         fulfilled.incrementAndGet();
+         totalWaitNanos.addAndGet(waitNanos);
+         maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+         int bucket = 64 - Long.numberOfLeadingZeros(waitNanos / 1000);
+         waitBuckets.incrementAndGet(Math.min(bucket, WAIT_BUCKETS - 1));
      }
      
      /**
-      * Get all movies.
+      * Get the showtime.
       */
-     public ArrayList<Movie> getAllMovies() {
-         return new ArrayList<>(movies.values());
+     public Showtime getShowtime() {
+         return showtime;
      }
      
      /**
-      * Get movie by code.
+      * Get the number of requests waiting.
       */
-     public Movie getMovieByCode(String code) throws InvalidMovieCodeException {
-         if (!movies.containsKey(code)) {
-             throw new InvalidMovieCodeException("Movie code " + code + " not found");
-         }
-         return movies.get(code);
+     public int getDepth() {
+         return depth.get();
      }
- }
- 
- /**
-  * Class representing a booking.
-  */
- class Booking {
-     private Movie movie;
-     private String date;
-     private Showtime showtime;
-     private int numTickets;
-     private ArrayList<String> seats;
-     private double totalAmount;
-     private String bookingId;
      
      /**
-      * Constructor for Booking.
+      * Get the most requests ever waiting at once.
       */
-     public Booking(Movie movie, String date, Showtime showtime, int numTickets) {
-         this.movie = movie;
-         this.date = date;
-         this.showtime = showtime;
-         this.numTickets = numTickets;
-         this.seats = new ArrayList<>();
-         // Generate simple booking ID
-         this.bookingId = "BK" + (int)(Math.random() * 10000);
+     public int getMaxDepth() {
+         return maxDepth.get();
      }
      
      /**
-      * Add a seat to the booking.
+      * Get the number of requests that joined.
       */
-     public void addSeat(String seat) {
-         seats.add(seat);
+     public long getJoined() {
+         return joined.get();
      }
      
      /**
-      * Set total amount for booking.
+      * Get the number of requests given seats.
       */
-     public void setTotalAmount(double amount) {
-         this.totalAmount = amount;
+     public long getFulfilled() {
+         return fulfilled.get();
      }
      
-    
-     public String toString() {
-         StringBuilder sb = new StringBuilder();
-         sb.append("Booking ID: ").append(bookingId).append("\n");
-         sb.append("Movie: ").append(movie.getName()).append("\n");
-         sb.append("Date: ").append(date).append("\n");
-         sb.append("Time: ").append(showtime.getTime()).append("\n");
-         sb.append("Tickets: ").append(numTickets).append("\n");
-         sb.append("Seats: ");
-         for (String seat : seats) {
-             sb.append(seat).append(" ");
-         }
-         sb.append("\n");
-         sb.append("Total Amount: $").append(totalAmount);
-         return sb.toString();
+     /**
+      * Get the number of requests that left without seats.
+      */
+     public long getCancelled() {
+         return cancelled.get();
+     }
+     
+     /**
+      * Get the average time from joining to being given seats, in milliseconds.
+      */
+     public double getAverageWaitMillis() {
+         long count = fulfilled.get();
+         return count == 0 ? 0 : totalWaitNanos.get() / 1e6 / count;
+     }
+     
+     /**
+      * Get the longest time from joining to being given seats, in milliseconds.
+      */
+     public double getMaxWaitMillis() {
+         return maxWaitNanos.get() / 1e6;
+     }
+     
+     /**
+      * Get an upper bound on the given percentile (0 to 100) of the time
+      * from joining to being given seats, in milliseconds, to within a
+      * factor of two.
+      */
+     public double getWaitPercentileMillis(double percentile) {
+         long count = 0;
+         for (int i = 0; i < WAIT_BUCKETS; i++) {
+             count += waitBuckets.get(i);
+         }
+         long rank = (long) Math.ceil(count * percentile / 100);
+         long seen = 0;
+         for (int i = 0; i < WAIT_BUCKETS; i++) {
+             seen += waitBuckets.get(i);
+             if (seen >= rank && seen > 0) {
+                 return Math.min((1L << i) / 1e3, getMaxWaitMillis());
+             }
+         }
+         return 0;
+     }
+     
+     public String toString() {
+         return String.format("Waitlist %s: %d waiting (max %d), %d served, %d gave up, wait avg %.1f ms, "
+                 + "p99 %.1f ms, max %.1f ms", showtime.getTime(), getDepth(), getMaxDepth(), getFulfilled(), 
+                 getCancelled(), getAverageWaitMillis(), getWaitPercentileMillis(99), getMaxWaitMillis());
+     }
+ }
+ 
+ /**
+  * Class representing a booking in progress: the step the user has reached
+  * and the choices made so far. Sessions are encoded in a compact binary form
+  * so that they can be stored and resumed later by their token.
+  */
+ class BookingSession {
+     
+     // Steps of the booking, in order
+     public static final int MOVIE = 0;
+     public static final int DATE = 1;
+     public static final int SHOWTIME = 2;
+     public static final int TICKETS = 3;
+     public static final int SEATS = 4;
+     public static final int EMAIL = 5;
+     public static final int CONFIRM = 6;
+     public static final int DONE = 7;
+     
+     private final long token;
+     private int step;
+     private String movieCode = "";
+     private String date = "";
+     private String showtime = "";
+     private int numTickets;
+     private int[] seats = new int[0];
+     private String email = "";
+     
+     /**
+      * Constructor for BookingSession.
+      */
+     public BookingSession(long token) {
+         this.token = token;
+         this.step = MOVIE;
+     }
+     
+     /**
+      * Record the chosen movie.
+      */
+     public void selectMovie(String movieCode) {
+         this.movieCode = movieCode;
+         step = DATE;
+     }
+     
+     /**
+      * Record the chosen date.
+      */
+     public void selectDate(String date) {
+         this.date = date;
+         step = SHOWTIME;
+     }
+     
+     /**
+      * Record the chosen showtime by its start time.
+      */
+     public void selectShowtime(String showtime) {
+         this.showtime = showtime;
+         step = TICKETS;
+     }
+     
+     /**
+      * Record the number of tickets.
+      */
+     public void selectTickets(int numTickets) {
+         this.numTickets = numTickets;
+         step = SEATS;
+     }
+     
+     /**
+      * Record the held seats.
+      */
+     public void selectSeats(int[] seats) {
+         this.seats = seats.clone();
+         step = EMAIL;
+     }
+     
+     /**
+      * Go back to seat selection after the seats were lost.
+      */
+     public void reselectSeats() {
+         seats = new int[0];
+         step = SEATS;
+     }
+     
+     /**
+      * Record the billing email.
+      */
+     public void enterEmail(String email) {
+         this.email = email;
+         step = CONFIRM;
+     }
+     
+     /**
+      * Mark the booking as confirmed or cancelled.
+      */
+     public void finish() {
+         step = DONE;
+     }
+     
+     /**
+      * Start the booking again from the movie selection.
+      */
+     public void restart() {
+         movieCode = "";
+         date = "";
+         showtime = "";
+         numTickets = 0;
+         seats = new int[0];
+         email = "";
+         step = MOVIE;
+     }
+     
+     /**
+      * Build the booking for the chosen movie and showtime.
+      */
+     public Booking toBooking(Movie movie, Showtime selectedShowtime) {
+         Booking booking = new Booking(movie, date, selectedShowtime, numTickets);
+         for (int seat : seats) {
+             booking.addSeat(seat);
+         }
+         booking.setTotalAmount(numTickets * selectedShowtime.getTicketPrice());
+         return booking;
+     }
+     
+     /**
+      * Get the session token as shown to the user.
+      */
+     public String getToken() {
+         return formatToken(token);
+     }
+     
+     /**
+      * Get the session token as stored.
+      */
+     public long getTokenValue() {
+         return token;
+     }
+     
+     /**
+      * Get the step the user has reached.
+      */
+     public int getStep() {
+         return step;
+     }
+     
+     /**
+      * Get the chosen movie code.
+      */
+     public String getMovieCode() {
+         return movieCode;
+     }
+     
+     /**
+      * Get the chosen date.
+      */
+     public String getDate() {
+         return date;
+     }
+     
+     /**
+      * Get the start time of the chosen showtime.
+      */
+     public String getShowtime() {
+         return showtime;
+     }
+     
+     /**
+      * Get the number of tickets.
+      */
+     public int getNumTickets() {
+         return numTickets;
+     }
+     
+     /**
+      * Get the held seats.
+      */
+     public int[] getSeats() {
+         return seats.clone();
+     }
+     
+     /**
+      * Get the billing email.
+      */
+     public String getEmail() {
+         return email;
+     }
+     
+     /**
+      * Encode the session. Seat numbers are sorted and written as
+      * variable-length gaps, so a group of neighbouring seats takes a byte each.
+      */
+     public byte[] encode() {
+         try {
+             ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+             DataOutputStream out = new DataOutputStream(bytes);
+             out.writeByte(step);
+             out.writeUTF(movieCode);
+             out.writeUTF(date);
+             out.writeUTF(showtime);
+             writeVarInt(out, numTickets);
+             int[] sorted = seats.clone();
+             Arrays.sort(sorted);
+             writeVarInt(out, sorted.length);
+             int previous = 0;
+             for (int seat : sorted) {
+                 writeVarInt(out, seat - previous);
+                 previous = seat;
+             }
+             out.writeUTF(email);
+             return bytes.toByteArray();
+         } catch (IOException e) {
+             throw new UncheckedIOException(e);
+         }
+     }
+     
+     /**
+      * Decode a session written by encode().
+      */
+     public static BookingSession decode(long token, byte[] data) throws IOException {
+         DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+         BookingSession session = new BookingSession(token);
+         session.step = in.readUnsignedByte();
+         session.movieCode = in.readUTF();
+         session.date = in.readUTF();
+         session.showtime = in.readUTF();
+         session.numTickets = readVarInt(in);
+         session.seats = new int[readVarInt(in)];
+         int previous = 0;
+         for (int i = 0; i < session.seats.length; i++) {
+             previous += readVarInt(in);
+             session.seats[i] = previous;
+         }
+         session.email = in.readUTF();
+         if (session.step > DONE) {
+             throw new IOException("Corrupt session " + formatToken(token));
+         }
+         return session;
+     }
+     
+     /**
+      * Format a token for display.
+      */
+     public static String formatToken(long token) {
+         return Long.toString(token, 36).toUpperCase();
+     }
+     
+     /**
+      * Parse a displayed token, returning 0 if it is not a valid token.
+      */
+     public static long parseToken(String text) {
+         try {
+             long token = Long.parseLong(text.trim(), 36);
+             return token > 0 ? token : 0;
+         } catch (NumberFormatException e) {
+             return 0;
+         }
+     }
+     
+     private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+         while ((value & ~0x7F) != 0) {
+             out.writeByte((value & 0x7F) | 0x80);
+             value >>>= 7;
+         }
+         out.writeByte(value);
+     }
+     
+     private static int readVarInt(DataInputStream in) throws IOException {
+         int value = 0;
+         for (int shift = 0; shift < 35; shift += 7) {
+             int b = in.readUnsignedByte();
+             value |= (b & 0x7F) << shift;
+             if ((b & 0x80) == 0) {
+                 return value;
+             }
+         }
+         throw new IOException("Malformed number in session");
+     }
+ }
+ 
+ /**
+  * Open-addressing hash map from long keys to long values. Avoids boxing so
+  * that hundreds of thousands of entries take two arrays and no objects.
+  * Key 0 is reserved for empty slots.
+  */
+ class LongLongMap {
+     private long[] keys;
+     private long[] values;
+     private int size;
+     
+     /**
+      * Constructor for LongLongMap.
+      */
+     public LongLongMap(int expected) {
+         int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+         keys = new long[capacity];
+         values = new long[capacity];
+     }
+     
+     /**
+      * Get the value for a key, or -1 if absent.
+      */
+     public long get(long key) {
+         int mask = keys.length - 1;
+         for (int i = slot(key, mask); keys[i] != 0; i = (i + 1) & mask) {
+             if (keys[i] == key) {
+                 return values[i];
+             }
+         }
+         return -1;
+     }
+     
+     /**
+      * Check whether a key is present.
+      */
+     public boolean containsKey(long key) {
+         return get(key) != -1;
+     }
+     
+     /**
+      * Set the value for a key.
+      */
+     public void put(long key, long value) {
+         if ((size + 1) * 2 > keys.length) {
+             resize(keys.length * 2);
+         }
+         int mask = keys.length - 1;
+         int i = slot(key, mask);
+         while (keys[i] != 0 && keys[i] != key) {
+             i = (i + 1) & mask;
+         }
+         if (keys[i] == 0) {
+             keys[i] = key;
+             size++;
+         }
+         values[i] = value;
+     }
+     
+     /**
+      * Remove a key. Later entries of the same cluster are shifted back so
+      * that lookups never need tombstones.
+      */
+     public void remove(long key) {
+         int mask = keys.length - 1;
+         int i = slot(key, mask);
+         while (keys[i] != key) {
+             if (keys[i] == 0) {
+                 return;
+             }
+             i = (i + 1) & mask;
+         }
+         keys[i] = 0;
+         size--;
+         for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+             int home = slot(keys[j], mask);
+             // Move the entry into the hole if the hole lies between its home slot and j
+             if (((j - home) & mask) >= ((j - i) & mask)) {
+                 keys[i] = keys[j];
+                 values[i] = values[j];
+                 keys[j] = 0;
+                 i = j;
+             }
+         }
+     }
+     
+     /**
+      * Get the number of entries.
+      */
+     public int size() {
+         return size;
+     }
+     
+     /**
+      * Call the action for every entry.
+      */
+     public void forEach(LongLongConsumer action) {
+         for (int i = 0; i < keys.length; i++) {
+             if (keys[i] != 0) {
+                 action.accept(keys[i], values[i]);
+             }
+         }
+     }
+     
+     private void resize(int capacity) {
+         long[] oldKeys = keys;
+         long[] oldValues = values;
+         keys = new long[capacity];
+         values = new long[capacity];
+         size = 0;
+         for (int i = 0; i < oldKeys.length; i++) {
+             if (oldKeys[i] != 0) {
+                 put(oldKeys[i], oldValues[i]);
+             }
+         }
+     }
+     
+     private static int slot(long key, int mask) {
+         long h = key * 0x9E3779B97F4A7C15L;
+         return (int) (h ^ (h >>> 32)) & mask;
+     }
+     
+     /**
+      * Callback for each entry of a LongLongMap.
+      */
+     interface LongLongConsumer {
+         void accept(long key, long value);
+     }
+ }
+ 
+ /**
+  * Store of unfinished booking sessions, kept in an append-only log file.
+  * 
+  * Each record is the token, the length of the encoded session (-1 when the
+  * session was finished) and the session bytes. An in-memory index maps every
+  * live token to the offset and length of its latest record, packed into one
+  * long, so a resume is one seek and one read however many sessions are
+  * stored.
+  * 
+  * Saves are debounced: they only replace the pending copy of the session,
+  * and a background thread appends all pending sessions in one write every
+  * FLUSH_MILLIS and syncs the log. When most of the log is superseded
+  * records it is compacted, on open or after a flush.
+  */
+ class SessionStore {
+     
+     private static final long FLUSH_MILLIS = 500;
+     private static final byte[] REMOVED = new byte[0];
+     
+     private final File file;
+     private RandomAccessFile log;
+     private final LongLongMap index;
+     private final ConcurrentHashMap<Long, byte[]> pending = new ConcurrentHashMap<>();
+     private final ScheduledExecutorService flusher;
+     private final Thread shutdownHook;
+     // Tokens resume someone's booking, so they must not be predictable from earlier ones
+     private final java.security.SecureRandom random = new java.security.SecureRandom();
+     private long liveBytes;
+     
+     /**
+      * Constructor for SessionStore. Builds the index by scanning the log.
+      */
+     public SessionStore(File file) throws IOException {
+         this.file = file;
+         this.index = new LongLongMap(1024);
+         this.log = new RandomAccessFile(file, "rw");
+         rebuildIndex();
+         if (needsCompaction()) {
+             compact();
+         }
+         
+         flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+             Thread thread = new Thread(r, "session-flusher");
+             thread.setDaemon(true);
+             return thread;
+         });
+         flusher.scheduleWithFixedDelay(this::flushQuietly, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+         
+         // Write out pending sessions when the user quits the program abruptly
+         shutdownHook = new Thread(this::flushQuietly, "session-shutdown");
+         Runtime.getRuntime().addShutdownHook(shutdownHook);
+     }
+     
+     /**
+      * Start a new session with an unused token.
+      */
+     public synchronized BookingSession create() {
+         long token;
+         do {
+             // Keep tokens at nine or more base-36 digits, 54 random bits, so they are hard to guess
+             token = 101559956668416L + (random.nextLong() & 0x3FFFFFFFFFFFFFL);
+         } while (index.containsKey(token) || pending.containsKey(token));
+         BookingSession session = new BookingSession(token);
+         pending.put(token, session.encode());
+         return session;
+     }
+     
+     /**
+      * Save a session, or forget it once the booking is done. The write
+      * happens on the next flush, so a crash loses at most FLUSH_MILLIS
+      * of changes.
+      */
+     public void save(BookingSession session) {
+         pending.put(session.getTokenValue(), 
+                 session.getStep() == BookingSession.DONE ? REMOVED : session.encode());
+     }
+     
+     /**
+      * Load an unfinished session by its displayed token, or null if there is none.
+      */
+     public BookingSession load(String token) throws IOException {
+         long key = BookingSession.parseToken(token);
+         if (key == 0) {
+             return null;
+         }
+         byte[] data = pending.get(key);
+         if (data == null) {
+             data = read(key);
+         }
+         return data == null || data == REMOVED ? null : BookingSession.decode(key, data);
+     }
+     
+     /**
+      * Get the number of stored unfinished sessions.
+      */
+     public synchronized int size() {
+         return index.size();
+     }
+     
+     /**
+      * Append all pending sessions to the log in one write and sync it.
+      */
+     public synchronized void flush() throws IOException {
+         if (pending.isEmpty()) {
+             return;
+         }
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         DataOutputStream out = new DataOutputStream(bytes);
+         long end = log.length();
+         ArrayList<Long> offsets = new ArrayList<>();
+         ArrayList<Map.Entry<Long, byte[]>> written = new ArrayList<>();
+         for (Map.Entry<Long, byte[]> entry : pending.entrySet()) {
+             byte[] data = entry.getValue();
+             offsets.add(end + out.size());
+             out.writeLong(entry.getKey());
+             out.writeInt(data == REMOVED ? -1 : data.length);
+             out.write(data);
+             written.add(new AbstractMap.SimpleEntry<>(entry.getKey(), data));
+         }
+         log.seek(end);
+         log.write(bytes.toByteArray());
+         log.getFD().sync();
+         
+         for (int i = 0; i < written.size(); i++) {
+             long token = written.get(i).getKey();
+             byte[] data = written.get(i).getValue();
+             replaceLive(token, data == REMOVED ? -1 : entry(offsets.get(i), data.length));
+             // Keep the entry if the session was saved again while writing
+             pending.remove(token, data);
+         }
+         
+         if (needsCompaction()) {
+             try {
+                 compact();
+             } catch (IOException e) {
+                 // The sessions are saved; the log is compacted on a later flush
+                 System.out.println("Error compacting booking sessions: " + e.getMessage());
+             }
+         }
+     }
+     
+     /**
+      * Flush and close the store.
+      */
+     public void close() {
+         flusher.shutdown();
+         try {
+             Runtime.getRuntime().removeShutdownHook(shutdownHook);
+         } catch (IllegalStateException e) {
+             // Already shutting down; the hook does the final flush
+         }
+         flushQuietly();
+         synchronized (this) {
+             try {
+                 log.close();
+             } catch (IOException e) {
+                 System.out.println("Error closing session store: " + e.getMessage());
+             }
+         }
+     }
+     
+     private void flushQuietly() {
+         try {
+             flush();
+         } catch (IOException e) {
+             System.out.println("Error saving booking sessions: " + e.getMessage());
+         }
+     }
+     
+     private synchronized byte[] read(long token) throws IOException {
+         long entry = index.get(token);
+         if (entry < 0) {
+             return null;
+         }
+         byte[] data = new byte[length(entry)];
+         log.seek(offset(entry) + 12);
+         log.readFully(data);
+         return data;
+     }
+     
+     private void replaceLive(long token, long entry) {
+         long previous = index.get(token);
+         if (previous >= 0) {
+             liveBytes -= 12 + length(previous);
+         }
+         if (entry < 0) {
+             index.remove(token);
+         } else {
+             index.put(token, entry);
+             liveBytes += 12 + length(entry);
+         }
+     }
+     
+     // Index entries keep the record offset in the high 40 bits and the session length in the low 24
+     private static long entry(long offset, int length) {
+         return offset << 24 | length;
+     }
+     
+     private static long offset(long entry) {
+         return entry >>> 24;
+     }
+     
+     private static int length(long entry) {
+         return (int) (entry & 0xFFFFFF);
+     }
+     
+     private void rebuildIndex() throws IOException {
+         DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+         long offset = 0;
+         long length = log.length();
+         try {
+             while (offset + 12 <= length) {
+                 long token = in.readLong();
+                 int size = in.readInt();
+                 if (size > 0xFFFFFF || offset + 12 + Math.max(size, 0) > length) {
+                     break;
+                 }
+                 if (size > 0) {
+                     in.skipBytes(size);
+                 }
+                 replaceLive(token, size < 0 ? -1 : entry(offset, size));
+                 offset += 12 + Math.max(size, 0);
+             }
+         } finally {
+             in.close();
+         }
+         // Drop a record cut short by a crash so the next append starts cleanly
+         if (offset < length) {
+             log.setLength(offset);
+         }
+     }
+     
+     // Compact once the log is over a megabyte and mostly superseded records
+     private boolean needsCompaction() throws IOException {
+         return log.length() > 1 << 20 && liveBytes * 2 < log.length();
+     }
+     
+     private void compact() throws IOException {
+         File temp = new File(file.getPath() + ".tmp");
+         LongLongMap compacted = new LongLongMap(index.size());
+         long[] position = {0};
+         IOException[] failure = {null};
+         FileOutputStream tempStream = new FileOutputStream(temp);
+         try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tempStream, 1 << 16))) {
+             index.forEach((token, entry) -> {
+                 if (failure[0] != null) {
+                     return;
+                 }
+                 try {
+                     byte[] data = new byte[length(entry)];
+                     log.seek(offset(entry) + 12);
+                     log.readFully(data);
+                     out.writeLong(token);
+                     out.writeInt(data.length);
+                     out.write(data);
+                     compacted.put(token, entry(position[0], data.length));
+                     position[0] += 12 + data.length;
+                 } catch (IOException e) {
+                     failure[0] = e;
+                 }
+             });
+             if (failure[0] == null) {
+                 // The compacted log must be on disk before it replaces the old one
+                 out.flush();
+                 tempStream.getFD().sync();
+             }
+         } catch (IOException e) {
+             failure[0] = e;
+         }
+         if (failure[0] != null) {
+             temp.delete();
+             throw failure[0];
+         }
+         
+         // Swap the compacted log in and reopen it; if the move fails the old log is still in place
+         log.close();
+         try {
+             java.nio.file.Files.move(temp.toPath(), file.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+         } finally {
+             log = new RandomAccessFile(file, "rw");
+         }
+         compacted.forEach(index::put);
+         liveBytes = position[0];
+     }
+ } 
+ 
+ /**
+  * Headless booking service: the browse, select, hold and confirm steps of the
+  * console flow as methods that many users can call at once. There is no
+  * shared lock; seats are claimed on the lock-free Showtime seat map and
+  * holds expire on the SeatHoldManager's timing wheel.
+  */
+ class BookingService {
+     private final MovieDatabase movieDB;
+     private final SeatHoldManager holdManager;
+     private final long holdMillis;
+     private final HashMap<String, Showtime> showtimesByKey;
+     private final AtomicLong confirmedBookings;
+     private final ConcurrentHashMap<Showtime, Waitlist> waitlists;
+     private volatile BookingLedger ledger;
+
+     /**
+      * Constructor for BookingService.
+      */
+     public BookingService(MovieDatabase movieDB, SeatHoldManager holdManager, long holdMillis) {
+         this.movieDB = movieDB;
+         this.holdManager = holdManager;
+         this.holdMillis = holdMillis;
+         this.confirmedBookings = new AtomicLong();
+         this.waitlists = new ConcurrentHashMap<>();
+         
+         // Index every showtime so select() is a single lookup; read-only after this
+         this.showtimesByKey = new HashMap<>();
+         for (Screening screening : movieDB.getScreenings()) {
+             showtimesByKey.put(key(screening.getMovie().getCode(), screening.getDate(), 
+                     screening.getShowtime().getTime()), screening.getShowtime());
+         }
+     }
+     
+     /**
+      * Get all movies.
+      */
+     public List<Movie> browse() {
+         return movieDB.getAllMovies();
+     }
+     
+     /**
+      * Get the dates a movie is showing.
+      */
+     public List<String> getDates(String movieCode) throws InvalidMovieCodeException {
+         return movieDB.getMovieByCode(movieCode).getAvailableDates();
+     }
+     
+     /**
+      * Get the showtimes of a movie on a date.
+      */
+     public List<Showtime> getShowtimes(String movieCode, String date) throws InvalidMovieCodeException {
+         return movieDB.getMovieByCode(movieCode).getShowtimesForDate(date);
+     }
+     
+     /**
+      * Start a booking for a number of tickets at a showtime.
+      */
+     public Booking select(String movieCode, String date, String time, int numTickets) 
+             throws InvalidMovieCodeException, InvalidShowtimeException, InvalidTicketQuantityException {
+         Movie movie = movieDB.getMovieByCode(movieCode);
+         Showtime showtime = showtimesByKey.get(key(movieCode, date, time));
+         if (showtime == null) {
+             throw new InvalidShowtimeException("No showtime " + time + " on " + date + " for " + movieCode);
+         }
+         if (numTickets <= 0) {
+             throw new InvalidTicketQuantityException("Number of tickets must be positive");
+         }
+         return new Booking(movie, date, showtime, numTickets);
+     }
+     
+     /**
+      * Hold the given seats for a booking.
+      */
+     public SeatHold hold(Booking booking, int[] seats) throws OverbookingException {
+         if (seats.length != booking.getNumTickets()) {
+             throw new OverbookingException("Expected " + booking.getNumTickets() + " seats but got " + seats.length);
+         }
+         SeatHold hold = holdManager.hold(booking.getShowtime(), seats, holdMillis);
+         addSeats(booking, hold);
+         return hold;
+     }
+     
+     /**
+      * Hold any free seats for a booking.
+      */
+     public SeatHold holdAny(Booking booking) throws OverbookingException {
+         SeatHold hold = holdManager.holdAny(booking.getShowtime(), booking.getNumTickets(), holdMillis);
+         addSeats(booking, hold);
+         return hold;
+     }
+     
+     /**
+      * Hold the best available seats for a booking, together where possible.
+      */
+     public SeatHold holdBest(Booking booking) throws OverbookingException {
+         SeatHold hold = holdManager.holdBest(booking.getShowtime(), booking.getNumTickets(), holdMillis);
+         addSeats(booking, hold);
+         return hold;
+     }
+
+     /**
+      * Join the waitlist of a booking's showtime, for when it has too few
+      * seats left. Wait for the seats with awaitWaitlist().
+      */
+     public Waitlist.Request joinWaitlist(Booking booking) throws InvalidTicketQuantityException {
+         return getWaitlist(booking.getShowtime()).join(booking.getNumTickets());
+     }
+     
+     /**
+      * Wait for seats from the waitlist. Returns the hold, with its seats
+      * added to the booking, or null if none came within the time.
+      */
+     public SeatHold awaitWaitlist(Booking booking, Waitlist.Request request, long timeoutMillis) 
+             throws InterruptedException {
+         SeatHold hold = request.await(timeoutMillis);
+         if (hold != null) {
+             addSeats(booking, hold);
+         }
+         return hold;
+     }
+     
+     /**
+      * Get the waitlist of a showtime, starting it on first use.
+      */
+     public Waitlist getWaitlist(Showtime showtime) {
+         return waitlists.computeIfAbsent(showtime, s -> new Waitlist(s, holdManager, holdMillis));
+     }
+     
+     /**
+      * Record confirmed bookings in a ledger from now on.
+      */
+     public void setLedger(BookingLedger ledger) {
+         this.ledger = ledger;
+     }
+     
+     /**
+      * Confirm a held booking. Returns false if the hold had expired.
+      */
+     public boolean confirm(Booking booking, SeatHold hold) throws IOException {
+         return confirm(booking, hold, "");
+     }
+     
+     /**
+      * Confirm a held booking billed to an email address. Returns false if
+      * the hold had expired. With a ledger, returns once the booking is
+      * durable; if it cannot be saved the seats are released.
+      */
+     public boolean confirm(Booking booking, SeatHold hold, String email) throws IOException {
+         if (!holdManager.confirm(hold)) {
+             return false;
+         }
+         booking.setTotalAmount(booking.getNumTickets() * booking.getShowtime().getTicketPrice());
+         BookingLedger current = ledger;
+         if (current != null) {
+             try {
+                 current.confirm(booking, email);
+             } catch (IOException e) {
+                 booking.getShowtime().releaseSeats(hold.getSeats());
+                 throw e;
+             }
+         }
+         confirmedBookings.incrementAndGet();
+         return true;
+     }
+     
+     /**
+      * Give up a held booking.
+      */
+     public void release(SeatHold hold) {
+         holdManager.release(hold);
+     }
+     
+     /**
+      * Get the number of bookings confirmed so far.
+      */
+     public long getConfirmedBookings() {
+         return confirmedBookings.get();
+     }
+     
+     private static void addSeats(Booking booking, SeatHold hold) {
+         booking.clearSeats();
+         for (int seat : hold.getSeats()) {
+             booking.addSeat(seat);
+         }
+     }
+     
+     private static String key(String movieCode, String date, String time) {
+         return movieCode + "|" + date + "|" + time;
+     }
+ }
+ 
+ /**
+  * Load generator simulating a premiere opening on BookingService.
+  * 
+  * Every simulated user arrives at once, browses, picks a showtime of the
+  * premiere (most of them want the evening show), holds the best available
+  * one to six seats, thinks for a moment and then confirms or walks away.
+  * Users who find their showtime sold out join its waitlist, unless it is
+  * already long, and wait a while for seats given back by those who walk
+  * away.
+  * Users run on virtual threads when the JVM has them (Java 21+) and on a
+  * thread pool otherwise.
+  * Afterwards every seat is checked to have been confirmed at most once.
+  * With a ledger directory, every confirmation is also made durable in a
+  * BookingLedger, to measure group commit under load.
+  * Run with: java PremiereLoadGenerator [users] [seats per show] [think millis] [ledger dir]
+  */
+ class PremiereLoadGenerator {
+     
+     private static final String MOVIE = "PREMIERE";
+     private static final String DATE = "2025-05-01";
+     private static final String[] TIMES = {"Afternoon", "Evening", "Night"};
+     private static final long WAITLIST_PATIENCE_MILLIS = 2_000;
+     private static final int WAITLIST_LIMIT = 100;
+
+     public static void main(String[] args) throws Exception {
+         int users = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+         int seatsPerShow = args.length > 1 ? Integer.parseInt(args[1]) : 5_000;
+         int thinkMillis = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+         
+         MovieDatabase movieDB = new MovieDatabase();
+         Movie premiere = new Movie(MOVIE, "Premiere Night", "English", "Action");
+         for (String time : TIMES) {
+             premiere.addShowtime(DATE, new Showtime(time, seatsPerShow, seatsPerShow, 15.0));
+         }
+         movieDB.addMovie(premiere);
+         BookingService service = new BookingService(movieDB, new SeatHoldManager(), 60_000);
+         BookingLedger ledger = null;
+         if (args.length > 3) {
+             ledger = new BookingLedger(new File(args[3]), movieDB);
+             service.setLedger(ledger);
+         }
+
+         // Seats confirmed per showtime, to catch a seat sold twice
+         HashMap<String, AtomicIntegerArray> confirmedSeats = new HashMap<>();
+         for (String time : TIMES) {
+             confirmedSeats.put(time, new AtomicIntegerArray(seatsPerShow));
+         }
+         long[] latencies = new long[users];
+         AtomicInteger soldOut = new AtomicInteger();
+         AtomicInteger walkedAway = new AtomicInteger();
+         AtomicLong lastConfirmed = new AtomicLong();
+         CountDownLatch start = new CountDownLatch(1);
+         
+         ExecutorService executor = newPerTaskExecutor(users);
+         List<Future<?>> futures = new ArrayList<>(users);
+         for (int u = 0; u < users; u++) {
+             final int user = u;
+             futures.add(executor.submit(() -> {
+                 ThreadLocalRandom random = ThreadLocalRandom.current();
+                 start.await();
+                 long begin = System.nanoTime();
+                 
+                 service.browse();
+                 int pick = random.nextInt(10);
+                 String time = TIMES[pick < 6 ? 1 : pick < 8 ? 0 : 2];
+                 service.getShowtimes(MOVIE, DATE);
+                 Booking booking = service.select(MOVIE, DATE, time, 1 + random.nextInt(6));
+                 SeatHold hold;
+                 long waited = 0;
+                 try {
+                     hold = service.holdBest(booking);
+                 } catch (OverbookingException e) {
+                     // Time on the waitlist is not part of the measured latency either
+                     long joined = System.nanoTime();
+                     if (service.getWaitlist(booking.getShowtime()).getDepth() < WAITLIST_LIMIT) {
+                         hold = service.awaitWaitlist(booking, service.joinWaitlist(booking), WAITLIST_PATIENCE_MILLIS);
+                     } else {
+                         hold = null;
+                     }
+                     waited = System.nanoTime() - joined;
+                     if (hold == null) {
+                         soldOut.incrementAndGet();
+                         latencies[user] = System.nanoTime() - begin - waited;
+                         return null;
+                     }
+                 }
+                 long held = System.nanoTime() - waited;
+
+                 // Thinking time is not part of the measured latency
+                 Thread.sleep(thinkMillis > 0 ? random.nextInt(thinkMillis + 1) : 0);
+                 long resumed = System.nanoTime();
+                 if (random.nextInt(10) == 0) {
+                     service.release(hold);
+                     walkedAway.incrementAndGet();
+                 } else if (service.confirm(booking, hold)) {
+                     lastConfirmed.accumulateAndGet(System.nanoTime(), Math::max);
+                     AtomicIntegerArray sold = confirmedSeats.get(time);
+                     for (int seat : booking.getSeats()) {
+                         sold.incrementAndGet(seat);
+                     }
+                 }
+                 latencies[user] = (held - begin) + (System.nanoTime() - resumed);
+                 return null;
+             }));
+         }
+         
+         long begin = System.nanoTime();
+         start.countDown();
+         for (Future<?> future : futures) {
+             future.get();
+         }
+         // Users giving up on the waitlist at the end do not count towards the booking rate
+         double seconds = (Math.max(lastConfirmed.get(), begin) - begin) / 1e9;
+         executor.shutdown();
+         if (ledger != null) {
+             ledger.close();
+         }
+         
+         int oversold = 0;
+         boolean consistent = true;
+         for (String time : TIMES) {
+             AtomicIntegerArray sold = confirmedSeats.get(time);
+             int soldSeats = 0;
+             for (int seat = 0; seat < seatsPerShow; seat++) {
+                 soldSeats += sold.get(seat) > 0 ? 1 : 0;
+                 if (sold.get(seat) > 1) {
+                     oversold++;
+                 }
+             }
+             Showtime showtime = service.getShowtimes(MOVIE, DATE).stream()
+                     .filter(s -> s.getTime().equals(time)).findFirst().get();
+             consistent &= soldSeats + showtime.getAvailableSeats() == seatsPerShow;
+         }
+         Arrays.sort(latencies);
+         
+         System.out.println(String.format("Users: %,d, seats: %,d x %d shows, executor: %s",
+                 users, seatsPerShow, TIMES.length, executor.getClass().getSimpleName()));
+         System.out.println(String.format("Confirmed: %,d bookings in %.2f s = %,.0f bookings/s",
+                 service.getConfirmedBookings(), seconds, service.getConfirmedBookings() / seconds));
+         System.out.println(String.format("Sold out: %,d, walked away: %,d", soldOut.get(), walkedAway.get()));
+         for (Showtime showtime : service.getShowtimes(MOVIE, DATE)) {
+             System.out.println(service.getWaitlist(showtime));
+         }
+         System.out.println(String.format("Latency: p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+                 latencies[users / 2] / 1e6, latencies[(int) (users * 0.99)] / 1e6, latencies[users - 1] / 1e6));
+         System.out.println("Oversold seats: " + oversold + (consistent ? "" : " (seat counts do not add up)"));
+         if (oversold > 0 || !consistent) {
+             System.exit(1);
+         }
+     }
+     
+     /**
+      * Use a virtual thread per task when available, otherwise a thread pool
+      * sized for users that mostly sleep.
+      */
+     private static ExecutorService newPerTaskExecutor(int users) {
+         try {
+             return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+         } catch (ReflectiveOperationException e) {
+             return Executors.newFixedThreadPool(Math.min(users, 512));
+         }
+     }
+ } 
+ 
+ /**
+  * Benchmark for ScheduleLoader on a generated chain-wide schedule.
+  * 
+  * Writes a schedule with the given number of rows (titles are quoted and
+  * some contain commas, and about one row in ten thousand is broken) and
+  * loads it with 1, 2, 4, ... threads up to the number of processors.
+  * Run with: java ScheduleLoaderBenchmark [rows] [file]
+  */
+ class ScheduleLoaderBenchmark {
+     
+     private static final String[] SLOTS = {"Morning", "Afternoon", "Evening", "Night"};
+     private static final String[] GENRES = {"Action", "Drama", "Comedy", "Sci-Fi", "Horror", "Animation"};
+     private static final String[] LANGUAGES = {"English", "Sinhala", "Tamil", "Hindi"};
+     
+     public static void main(String[] args) throws Exception {
+         int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+         File file = new File(args.length > 1 ? args[1] : "schedule-benchmark.csv");
+         
+         long begin = System.nanoTime();
+         generate(file, rows);
+         System.out.println(String.format("Wrote %,d rows (%,d MB) in %,d ms", rows, file.length() >> 20, 
+                 (System.nanoTime() - begin) / 1_000_000));
+         
+         int maxThreads = Runtime.getRuntime().availableProcessors();
+         for (int threads = 1; threads <= maxThreads; threads *= 2) {
+             System.gc();
+             MovieDatabase movieDB = new MovieDatabase();
+             long start = System.nanoTime();
+             LoadReport report = new ScheduleLoader(threads).load(file, movieDB);
+             double seconds = (System.nanoTime() - start) / 1e9;
+             System.out.println(String.format("%2d threads: %,10.0f rows/s, %6.1f MB/s - %s", threads, 
+                     report.getRowsLoaded() / seconds, file.length() / seconds / (1 << 20), report));
+         }
+         file.delete();
+     }
+     
+     private static void generate(File file, int rows) throws IOException {
+         Random random = new Random(42);
+         try (BufferedWriter out = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+             out.write("Movie Code,Movie Name,Date,Showtime,Total Seats,Available Seats,Ticket Price,Language,Genre\n");
+             LocalDate firstDay = LocalDate.of(2025, 1, 1);
+             int movies = Math.max(1, rows / 1000);
+             for (int i = 0; i < rows; i++) {
+                 int movie = random.nextInt(movies);
+                 int total = 100 + 50 * random.nextInt(5);
+                 if (i % 10_000 == 9_999) {
+                     out.write("M" + movie + ",\"Broken, row,2025-13-40,Evening,x,y\n");
+                     continue;
+                 }
+                 out.write("M" + movie + ",\"Feature " + movie + ", Part " + (movie % 3 + 1) + "\"," 
+                         + firstDay.plusDays(i % 365) + "," + SLOTS[i % SLOTS.length] + "," + total + "," 
+                         + random.nextInt(total + 1) + "," + (8 + random.nextInt(8)) + ".50," 
+                         + LANGUAGES[movie % LANGUAGES.length] + "," + GENRES[movie % GENRES.length] + "\n");
+             }
+         }
+     }
+ } 
+ 
+ /**
+  * Memory-mapped file with the current availability of every screening.
+  * 
+  * The file is a 64-byte header followed by one fixed-width 64-byte record
+  * per screening, in MovieDatabase screening order: a hash of the
+  * movie|date|time key, total seats, available seats, and the key text
+  * (truncated) for people reading the file. A booking only marks its record
+  * dirty. A flusher thread writes the dirty records in place through the
+  * mapping every FLUSH_MILLIS and then forces the mapping to disk once, so
+  * keeping the file current never rewrites it.
+  * 
+  * Each batch is written under a sequence lock in the header: the version
+  * is odd while records are being written and even otherwise. A reader
+  * (read(), in this or another process) copies the records and retries if
+  * the version was odd or changed meanwhile, so it always sees the state
+  * between two batches and never half of one.
+  */
+ class AvailabilityFile {
+     private static final int MAGIC = 0x41564C31;
+     private static final int HEADER_SIZE = 64;
+     private static final int RECORD_SIZE = 64;
+     private static final int KEY_OFFSET = 16;
+     private static final int VERSION_OFFSET = 16;
+     private static final long FLUSH_MILLIS = 250;
+     private static final VarHandle VERSION = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+     
+     private final File file;
+     private final Showtime[] showtimes;
+     private final AtomicLongArray dirty;
+     private final MappedByteBuffer map;
+     private final ScheduledExecutorService flusher;
+     private final SeatListener[] listeners;
+     private long flushes;
+     private long recordsWritten;
+     
+     /**
+      * Constructor for AvailabilityFile. Reuses the file if it was written
+      * for the same schedule, otherwise creates it, and brings every record
+      * up to date with the showtimes.
+      */
+     public AvailabilityFile(File file, MovieDatabase movieDB) throws IOException {
+         this.file = file;
+         List<Screening> screenings = movieDB.getScreenings();
+         int count = screenings.size();
+         this.showtimes = new Showtime[count];
+         this.dirty = new AtomicLongArray((count + 63) >>> 6);
+         long[] hashes = new long[count];
+         for (int i = 0; i < count; i++) {
+             Screening screening = screenings.get(i);
+             showtimes[i] = screening.getShowtime();
+             hashes[i] = hash(key(screening));
+         }
+         
+         long size = HEADER_SIZE + (long) RECORD_SIZE * count;
+         try (FileChannel channel = FileChannel.open(file.toPath(), java.nio.file.StandardOpenOption.CREATE, 
+                 java.nio.file.StandardOpenOption.READ, java.nio.file.StandardOpenOption.WRITE)) {
+             boolean reuse = channel.size() == size;
+             this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+             reuse = reuse && map.getInt(0) == MAGIC && map.getInt(4) == RECORD_SIZE && map.getInt(8) == count;
+             for (int i = 0; reuse && i < count; i++) {
+                 reuse = map.getLong(recordOffset(i)) == hashes[i];
+             }
+             if (!reuse) {
+                 // A different schedule: lay the file out again
+                 map.putInt(0, MAGIC);
+                 map.putInt(4, RECORD_SIZE);
+                 map.putInt(8, count);
+                 VERSION.setVolatile(map, VERSION_OFFSET, 0L);
+                 for (int i = 0; i < count; i++) {
+                     int offset = recordOffset(i);
+                     map.putLong(offset, hashes[i]);
+                     map.putInt(offset + 8, showtimes[i].getTotalSeats());
+                     map.putInt(offset + 12, -1);
+                     byte[] key = key(screenings.get(i)).getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                     for (int b = 0; b < RECORD_SIZE - KEY_OFFSET; b++) {
+                         map.put(offset + KEY_OFFSET + b, b < key.length ? key[b] : 0);
+                     }
+                 }
+             }
+         }
+         
+         // Mark records that are out of date, then follow every booking
+         this.listeners = new SeatListener[count];
+         for (int i = 0; i < count; i++) {
+             if (map.getInt(recordOffset(i) + 12) != showtimes[i].getAvailableSeats()) {
+                 markDirty(i);
+             }
+             final int record = i;
+             listeners[i] = (showtime, seats, taken) -> markDirty(record);
+             showtimes[i].addSeatListener(listeners[i]);
+         }
+         flush();
+         
+         flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+             Thread thread = new Thread(r, "availability-flusher");
+             thread.setDaemon(true);
+             return thread;
+         });
+         flusher.scheduleWithFixedDelay(this::flush, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+     }
+     
+     /**
+      * Write every dirty record in place as one batch, then force the mapping to disk.
+      */
+     public synchronized void flush() {
+         int written = 0;
+         for (int w = 0; w < dirty.length(); w++) {
+             if (dirty.get(w) == 0) {
+                 continue;
+             }
+             long bits = dirty.getAndSet(w, 0);
+             if (written == 0) {
+                 beginBatch();
+             }
+             while (bits != 0) {
+                 int record = (w << 6) + Long.numberOfTrailingZeros(bits);
+                 bits &= bits - 1;
+                 map.putInt(recordOffset(record) + 12, showtimes[record].getAvailableSeats());
+                 written++;
+             }
+         }
+         if (written > 0) {
+             endBatch();
+             map.force();
+             flushes++;
+             recordsWritten += written;
+         }
+     }
+     
+     /**
+      * Stop following the showtimes and write the last batch.
+      */
+     public void close() {
+         flusher.shutdown();
+         try {
+             flusher.awaitTermination(5, TimeUnit.SECONDS);
+         } catch (InterruptedException e) {
+             Thread.currentThread().interrupt();
+         }
+         for (int i = 0; i < showtimes.length; i++) {
+             showtimes[i].removeSeatListener(listeners[i]);
+         }
+         flush();
+     }
+     
+     /**
+      * Get the number of batches written.
+      */
+     public synchronized long getFlushes() {
+         return flushes;
+     }
+     
+     /**
+      * Get the number of records written in all batches.
+      */
+     public synchronized long getRecordsWritten() {
+         return recordsWritten;
+     }
+     
+     /**
+      * Read a consistent copy of the available seats of every record.
+      */
+     public static int[] read(File file) throws IOException {
+         try (FileChannel channel = FileChannel.open(file.toPath(), java.nio.file.StandardOpenOption.READ)) {
+             MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+             if (channel.size() < HEADER_SIZE || map.getInt(0) != MAGIC) {
+                 throw new IOException("Not an availability file: " + file);
+             }
+             int[] available = new int[map.getInt(8)];
+             while (true) {
+                 long before = (long) VERSION.getAcquire(map, VERSION_OFFSET);
+                 if ((before & 1) != 0) {
+                     Thread.onSpinWait();
+                     continue;
+                 }
+                 for (int i = 0; i < available.length; i++) {
+                     available[i] = map.getInt(recordOffset(i) + 12);
+                 }
+                 VarHandle.acquireFence();
+                 if ((long) VERSION.getAcquire(map, VERSION_OFFSET) == before) {
+                     return available;
+                 }
+             }
+         }
+     }
+     
+     private void markDirty(int record) {
+         int w = record >>> 6;
+         long bit = 1L << record;
+         long bits;
+         while (((bits = dirty.get(w)) & bit) == 0) {
+             if (dirty.compareAndSet(w, bits, bits | bit)) {
+                 return;
+             }
+         }
+     }
+     
+     private void beginBatch() {
+         long version = (long) VERSION.getVolatile(map, VERSION_OFFSET);
+         VERSION.setVolatile(map, VERSION_OFFSET, version + 1);
+         VarHandle.releaseFence();
+     }
+     
+     private void endBatch() {
+         long version = (long) VERSION.getVolatile(map, VERSION_OFFSET);
+         VERSION.setRelease(map, VERSION_OFFSET, version + 1);
+     }
+     
+     private static int recordOffset(int record) {
+         return HEADER_SIZE + record * RECORD_SIZE;
+     }
+     
+     private static String key(Screening screening) {
+         return screening.getMovie().getCode() + "|" + screening.getDate() + "|" + screening.getShowtime().getTime();
+     }
+     
+     // 64-bit FNV-1a
+     private static long hash(String key) {
+         long hash = 0xcbf29ce484222325L;
+         for (int i = 0; i < key.length(); i++) {
+             hash ^= key.charAt(i);
+             hash *= 0x100000001b3L;
+         }
+         return hash;
+     }
+ } 
+ 
+ /**
+  * Helper for the CSV files read by the batch tools: one record per line,
+  * with fields optionally quoted.
+  */
+ class CsvLine {
+     /**
+      * Split a CSV line into fields, allowing quoted fields. Returns the
+      * number of fields; fields past the end are set to null.
+      */
+     static int split(String line, String[] fields) {
+         Arrays.fill(fields, null);
+         int count = 0;
+         int pos = 0;
+         StringBuilder field = new StringBuilder();
+         while (count < fields.length) {
+             field.setLength(0);
+             if (pos < line.length() && line.charAt(pos) == '"') {
+                 pos++;
+                 while (pos < line.length()) {
+                     char c = line.charAt(pos++);
+                     if (c != '"') {
+                         field.append(c);
+                     } else if (pos < line.length() && line.charAt(pos) == '"') {
+                         field.append('"');
+                         pos++;
+                     } else {
+                         break;
+                     }
+                 }
+             }
+             int comma = line.indexOf(',', pos);
+             int end = comma < 0 ? line.length() : comma;
+             field.append(line, pos, end);
+             fields[count++] = field.toString().trim();
+             if (comma < 0) {
+                 break;
+             }
+             pos = comma + 1;
+         }
+         return count;
+     }
+ }
+ 
+ /**
+  * Batch importer for group bookings, such as a school or company booking
+  * seats at many screenings from one spreadsheet.
+  * 
+  * Requests are read from a CSV file with the columns Request ID, Movie
+  * Code, Date, Showtime, Tickets and Email. They are grouped by showtime,
+  * keeping file order within each group, and the groups are booked in
+  * parallel, so no two threads ever compete for the same seats. Each
+  * request gets the best available seats. Rejections are recorded as an
+  * Outcome rather than thrown, and an outcome line is written for every
+  * request in the order of the input file. With a ledger, bookings are
+  * confirmed durably in large group commits.
+  * Run with: java BulkBookingImporter <requests.csv> [outcomes.csv] [schedule.csv] [ledger dir]
+  */
+ class BulkBookingImporter {
+     private static final int FIELDS = 6;
+     
+     /**
+      * Result of one booking request.
+      */
+     enum Outcome {
+         BOOKED, BAD_ROW, UNKNOWN_MOVIE, UNKNOWN_SHOWTIME, BAD_QUANTITY, SOLD_OUT, LEDGER_FAILED
+     }
+     
+     private final MovieDatabase movieDB;
+     private final BookingLedger ledger;
+     private final int threads;
+     private final HashMap<String, Screening> screeningsByKey = new HashMap<>();
+     
+     /**
+      * Constructor for BulkBookingImporter. The ledger may be null.
+      */
+     public BulkBookingImporter(MovieDatabase movieDB, BookingLedger ledger, int threads) {
+         this.movieDB = movieDB;
+         this.ledger = ledger;
+         this.threads = Math.max(1, threads);
+         for (Screening screening : movieDB.getScreenings()) {
+             screeningsByKey.put(key(screening.getMovie().getCode(), screening.getDate(), 
+                     screening.getShowtime().getTime()), screening);
+         }
+     }
+     
+     /**
+      * Book every request in a file and write the outcomes. Returns the
+      * number of requests with each outcome.
+      */
+     public EnumMap<Outcome, Integer> importFile(File requests, File outcomes) throws IOException {
+         ArrayList<String> lines = new ArrayList<>();
+         try (BufferedReader reader = new BufferedReader(new FileReader(requests), 1 << 16)) {
+             reader.readLine();
+             String line;
+             while ((line = reader.readLine()) != null) {
+                 if (!line.trim().isEmpty()) {
+                     lines.add(line);
+                 }
+             }
+         }
+         int count = lines.size();
+         String[] requestIds = new String[count];
+         Screening[] screenings = new Screening[count];
+         int[] tickets = new int[count];
+         String[] emails = new String[count];
+         Outcome[] results = new Outcome[count];
+         Booking[] bookings = new Booking[count];
+         
+         // Validate and group by showtime; a LinkedHashMap keeps the groups in file order
+         LinkedHashMap<Showtime, ArrayList<Integer>> partitions = new LinkedHashMap<>();
+         String[] fields = new String[FIELDS];
+         for (int i = 0; i < count; i++) {
+             if (CsvLine.split(lines.get(i), fields) < FIELDS - 1) {
+                 requestIds[i] = fields[0];
+                 results[i] = Outcome.BAD_ROW;
+                 continue;
+             }
+             requestIds[i] = fields[0];
+             emails[i] = fields[5] == null ? "" : fields[5];
+             tickets[i] = parseTickets(fields[4]);
+             screenings[i] = screeningsByKey.get(key(fields[1], fields[2], fields[3]));
+             if (screenings[i] == null) {
+                 results[i] = movieDB.findMovie(fields[1]) == null ? Outcome.UNKNOWN_MOVIE : Outcome.UNKNOWN_SHOWTIME;
+             } else if (tickets[i] <= 0 || tickets[i] > screenings[i].getShowtime().getTotalSeats()) {
+                 results[i] = Outcome.BAD_QUANTITY;
+             } else {
+                 partitions.computeIfAbsent(screenings[i].getShowtime(), s -> new ArrayList<>()).add(i);
+             }
+         }
+         
+         // Book each showtime's requests in order, one showtime per task
+         ExecutorService pool = Executors.newFixedThreadPool(threads);
+         ArrayList<CompletableFuture<String>> pending = new ArrayList<>();
+         try {
+             ArrayList<Callable<ArrayList<CompletableFuture<String>>>> tasks = new ArrayList<>();
+             for (ArrayList<Integer> partition : partitions.values()) {
+                 tasks.add(() -> bookPartition(partition, screenings, tickets, emails, results, bookings));
+             }
+             for (Future<ArrayList<CompletableFuture<String>>> done : pool.invokeAll(tasks)) {
+                 pending.addAll(done.get());
+             }
+         } catch (InterruptedException e) {
+             Thread.currentThread().interrupt();
+             throw new InterruptedIOException("Booking import interrupted");
+         } catch (ExecutionException e) {
+             if (e.getCause() instanceof IOException) {
+                 throw (IOException) e.getCause();
+             }
+             throw new IOException("Error importing bookings", e.getCause());
+         } finally {
+             pool.shutdownNow();
+         }
+         
+         // Wait for the ledger; a booking that could not be saved gives its seats back
+         if (ledger != null) {
+             for (CompletableFuture<String> saved : pending) {
+                 try {
+                     saved.join();
+                 } catch (CompletionException e) {
+                     // The booking has no ID and is handled below
+                 }
+             }
+             for (int i = 0; i < count; i++) {
+                 if (results[i] == Outcome.BOOKED && bookings[i].getBookingId() == null) {
+                     bookings[i].getShowtime().releaseSeats(bookings[i].getSeats());
+                     results[i] = Outcome.LEDGER_FAILED;
+                 }
+             }
+         }
+         
+         EnumMap<Outcome, Integer> summary = new EnumMap<>(Outcome.class);
+         try (BufferedWriter out = new BufferedWriter(new FileWriter(outcomes), 1 << 16)) {
+             out.write("Line,Request ID,Outcome,Booking ID,Seats,Amount");
+             out.newLine();
+             StringBuilder sb = new StringBuilder();
+             for (int i = 0; i < count; i++) {
+                 summary.merge(results[i], 1, Integer::sum);
+                 sb.setLength(0);
+                 sb.append(i + 2).append(',').append(quote(requestIds[i])).append(',').append(results[i]).append(',');
+                 Booking booking = bookings[i];
+                 if (results[i] == Outcome.BOOKED) {
+                     if (booking.getBookingId() != null) {
+                         sb.append(booking.getBookingId());
+                     }
+                     sb.append(',');
+                     HallLayout layout = booking.getShowtime().getLayout();
+                     StringBuilder labels = new StringBuilder();
+                     for (int seat : booking.getSeats()) {
+                         labels.append(labels.length() > 0 ? " " : "").append(layout.seatLabel(seat));
+                     }
+                     sb.append(quote(labels.toString())).append(',').append(String.format("%.2f", booking.getTotalAmount()));
+                 } else {
+                     sb.append(",,");
+                 }
+                 out.write(sb.toString());
+                 out.newLine();
+             }
+         }
+         return summary;
+     }
+     
+     private ArrayList<CompletableFuture<String>> bookPartition(ArrayList<Integer> partition, Screening[] screenings, 
+             int[] tickets, String[] emails, Outcome[] results, Booking[] bookings) throws IOException {
+         ArrayList<CompletableFuture<String>> pending = new ArrayList<>();
+         for (int i : partition) {
+             Screening screening = screenings[i];
+             Showtime showtime = screening.getShowtime();
+             int[] seats = showtime.tryBookBestAvailable(tickets[i]);
+             if (seats == null) {
+                 results[i] = Outcome.SOLD_OUT;
+                 continue;
+             }
+             Booking booking = new Booking(screening.getMovie(), screening.getDate(), showtime, tickets[i]);
+             for (int seat : seats) {
+                 booking.addSeat(seat);
+             }
+             booking.setTotalAmount(tickets[i] * showtime.getTicketPrice());
+             if (ledger != null) {
+                 pending.add(ledger.confirmLater(booking, emails[i]));
+             }
+             bookings[i] = booking;
+             results[i] = Outcome.BOOKED;
+         }
+         return pending;
+     }
+     
+     // Returns -1 if the field is not a whole number
+     private static int parseTickets(String text) {
+         if (text.isEmpty() || text.length() > 9) {
+             return -1;
+         }
+         int value = 0;
+         for (int i = 0; i < text.length(); i++) {
+             char c = text.charAt(i);
+             if (c < '0' || c > '9') {
+                 return -1;
+             }
+             value = value * 10 + (c - '0');
+         }
+         return value;
+     }
+     
+     private static String quote(String text) {
+         if (text == null) {
+             return "";
+         }
+         if (text.indexOf(',') < 0 && text.indexOf('"') < 0) {
+             return text;
+         }
+         return "\"" + text.replace("\"", "\"\"") + "\"";
+     }
+     
+     private static String key(String movieCode, String date, String time) {
+         return movieCode + "|" + date + "|" + time;
+     }
+     
+     public static void main(String[] args) throws Exception {
+         if (args.length < 1) {
+             System.out.println("Usage: java BulkBookingImporter <requests.csv> [outcomes.csv] [schedule.csv] [ledger dir]");
+             return;
+         }
+         File outcomes = new File(args.length > 1 ? args[1] : "booking_outcomes.csv");
+         MovieDatabase movieDB = new MovieDatabase(args.length > 2 ? args[2] : "Movie Reservation Dataset.csv");
+         BookingLedger ledger = args.length > 3 ? new BookingLedger(new File(args[3]), movieDB) : null;
+         try {
+             BulkBookingImporter importer = new BulkBookingImporter(movieDB, ledger, 
+                     Runtime.getRuntime().availableProcessors());
+             long begin = System.nanoTime();
+             EnumMap<Outcome, Integer> summary = importer.importFile(new File(args[0]), outcomes);
+             double seconds = (System.nanoTime() - begin) / 1e9;
+             
+             int total = 0;
+             for (int n : summary.values()) {
+                 total += n;
+             }
+             System.out.println(String.format("Imported %,d requests in %.2f s = %,.0f requests/s", 
+                     total, seconds, total / seconds));
+             for (Map.Entry<Outcome, Integer> entry : summary.entrySet()) {
+                 System.out.println(String.format("  %-16s %,d", entry.getKey(), entry.getValue()));
+             }
+             System.out.println("Outcomes written to " + outcomes);
+         } finally {
+             if (ledger != null) {
+                 ledger.close();
+             }
+         }
+     }
+ } 
+ 
+ /**
+  * Occupancy and revenue analytics by movie, genre, language, date and slot.
+  * 
+  * Built over a MovieDatabase, the figures start from the seats already sold
+  * and follow every seat taken or freed from then on, held seats included,
+  * through the showtimes' seat listeners. Every group keeps running totals,
+  * so reading one is a hash lookup. The same figures can be computed in one
+  * streaming pass over historical schedule files with fromSchedules(),
+  * without loading them into a database.
+  * Run with: java OccupancyAnalytics [schedule.csv ...]
+  */
+ class OccupancyAnalytics {
+     private static final int FIELDS = 9;
+     
+     /**
+      * What to group screenings by.
+      */
+     enum Dimension {
+         MOVIE, GENRE, LANGUAGE, DATE, SLOT
+     }
+     
+     /**
+      * Class representing the running totals of one group of screenings.
+      */
+     static class Group {
+         private final String key;
+         private final long startMillis;
+         private long screenings;
+         private long capacity;
+         private final AtomicLong soldSeats = new AtomicLong();
+         private final AtomicLong revenueCents = new AtomicLong();
+         private final AtomicLong seatsSinceStart = new AtomicLong();
+         
+         Group(String key, long startMillis) {
+             this.key = key;
+             this.startMillis = startMillis;
+         }
+         
+         private void addScreening(int totalSeats, int sold, long priceCents) {
+             screenings++;
+             capacity += totalSeats;
+             soldSeats.addAndGet(sold);
+             revenueCents.addAndGet(sold * priceCents);
+         }
+         
+         private void seatsChanged(int seats, long priceCents) {
+             soldSeats.addAndGet(seats);
+             revenueCents.addAndGet(seats * priceCents);
+             seatsSinceStart.addAndGet(seats);
+         }
+         
+         /**
+          * Get the group's key, e.g. the genre.
+          */
+         public String getKey() {
+             return key;
+         }
+         
+         /**
+          * Get the number of screenings.
+          */
+         public long getScreenings() {
+             return screenings;
+         }
+         
+         /**
+          * Get the total seats over all screenings.
+          */
+         public long getCapacity() {
+             return capacity;
+         }
+         
+         /**
+          * Get the seats sold.
+          */
+         public long getSoldSeats() {
+             return soldSeats.get();
+         }
+         
+         /**
+          * Get the revenue from the seats sold.
+          */
+         public double getRevenue() {
+             return revenueCents.get() / 100.0;
+         }
+         
+         /**
+          * Get the share of seats sold, from 0 to 1.
+          */
+         public double getFillRate() {
+             return capacity == 0 ? 0 : (double) soldSeats.get() / capacity;
+         }
+         
+         /**
+          * Get the revenue per seat on offer, sold or not.
+          */
+         public double getRevenuePerSeat() {
+             return capacity == 0 ? 0 : getRevenue() / capacity;
+         }
+         
+         /**
+          * Get the sell-through velocity: net seats sold per hour since the
+          * analytics started. Zero for figures from historical files, which
+          * only record the seats sold in the end.
+          */
+         public double getSeatsPerHour() {
+             double hours = (System.currentTimeMillis() - startMillis) / 3_600_000.0;
+             return hours <= 0 ? 0 : seatsSinceStart.get() / hours;
+         }
+         
+         public String toString() {
+             return String.format("%-20s %,8d shows %,11d seats  fill %5.1f%%  revenue $%,14.2f  $%6.2f/seat", 
+                     key, screenings, capacity, getFillRate() * 100, getRevenue(), getRevenuePerSeat());
+         }
+     }
+     
+     private final long startMillis = System.currentTimeMillis();
+     private final EnumMap<Dimension, HashMap<String, Group>> groups = new EnumMap<>(Dimension.class);
+     private final Group total = new Group("Total", startMillis);
+     private final ArrayList<Showtime> tracked = new ArrayList<>();
+     private final ArrayList<SeatListener> listeners = new ArrayList<>();
+     
+     private OccupancyAnalytics() {
+         for (Dimension dimension : Dimension.values()) {
+             groups.put(dimension, new HashMap<>());
+         }
+     }
+     
+     /**
+      * Constructor for OccupancyAnalytics, following the bookings made on the
+      * database's showtimes from now on.
+      */
+     public OccupancyAnalytics(MovieDatabase movieDB) {
+         this();
+         for (Screening screening : movieDB.getScreenings()) {
+             Movie movie = screening.getMovie();
+             Showtime showtime = screening.getShowtime();
+             long priceCents = Math.round(showtime.getTicketPrice() * 100);
+             Group[] owners = add(movie.getCode(), movie.getGenre(), movie.getLanguage(), screening.getDate(), 
+                     showtime.getTime(), showtime.getTotalSeats(), showtime.getTotalSeats() - showtime.getAvailableSeats(), 
+                     priceCents);
+             SeatListener listener = (changed, seats, taken) -> {
+                 int delta = taken ? seats.length : -seats.length;
+                 for (Group group : owners) {
+                     group.seatsChanged(delta, priceCents);
+                 }
+             };
+             showtime.addSeatListener(listener);
+             tracked.add(showtime);
+             listeners.add(listener);
+         }
+     }
+     
+     /**
+      * Compute the analytics of historical schedule files in one streaming
+      * pass. Rows that cannot be read are skipped.
+      */
+     public static OccupancyAnalytics fromSchedules(File... files) throws IOException {
+         OccupancyAnalytics analytics = new OccupancyAnalytics();
+         String[] fields = new String[FIELDS];
+         for (File file : files) {
+             try (BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16)) {
+                 reader.readLine();
+                 String line;
+                 while ((line = reader.readLine()) != null) {
+                     if (CsvLine.split(line, fields) < FIELDS) {
+                         continue;
+                     }
+                     try {
+                         int totalSeats = Integer.parseInt(fields[4]);
+                         int availableSeats = Integer.parseInt(fields[5]);
+                         long priceCents = Math.round(Double.parseDouble(fields[6]) * 100);
+                         if (totalSeats < 0 || availableSeats < 0 || availableSeats > totalSeats) {
+                             continue;
+                         }
+                         Slot slot = Slot.of(fields[3]);
+                         analytics.add(fields[0], fields[8], fields[7], fields[2], slot != null ? slot.getLabel() : fields[3], 
+                                 totalSeats, totalSeats - availableSeats, priceCents);
+                     } catch (NumberFormatException e) {
+                         // Skip the row
+                     }
+                 }
+             }
+         }
+         return analytics;
+     }
+     
+     /**
+      * Add a screening to its group in every dimension and the total, and
+      * return those groups.
+      */
+     private Group[] add(String movieCode, String genre, String language, String date, String time, 
+             int totalSeats, int sold, long priceCents) {
+         Group[] owners = {
+             group(Dimension.MOVIE, movieCode), group(Dimension.GENRE, genre), group(Dimension.LANGUAGE, language), 
+             group(Dimension.DATE, date), group(Dimension.SLOT, time), total
+         };
+         for (Group group : owners) {
+             group.addScreening(totalSeats, sold, priceCents);
+         }
+         return owners;
+     }
+     
+     private Group group(Dimension dimension, String key) {
+         return groups.get(dimension).computeIfAbsent(key, k -> new Group(k, startMillis));
+     }
+     
+     /**
+      * Get the figures of one group, e.g. get(Dimension.GENRE, "Drama"), or
+      * null if there are no screenings in it.
+      */
+     public Group get(Dimension dimension, String key) {
+         return groups.get(dimension).get(key);
+     }
+     
+     /**
+      * Get every group in a dimension.
+      */
+     public Collection<Group> getGroups(Dimension dimension) {
+         return Collections.unmodifiableCollection(groups.get(dimension).values());
+     }
+     
+     /**
+      * Get the figures over all screenings.
+      */
+     public Group getTotal() {
+         return total;
+     }
+     
+     /**
+      * Stop following bookings.
+      */
+     public void close() {
+         for (int i = 0; i < tracked.size(); i++) {
+             tracked.get(i).removeSeatListener(listeners.get(i));
+         }
+     }
+     
+     /**
+      * Print the groups of a dimension with the highest revenue first.
+      */
+     public void print(Dimension dimension, int limit) {
+         ArrayList<Group> sorted = new ArrayList<>(groups.get(dimension).values());
+         sorted.sort((a, b) -> Long.compare(b.revenueCents.get(), a.revenueCents.get()));
+         System.out.println("\nBy " + dimension.name().toLowerCase() + 
+                 (sorted.size() > limit ? " (top " + limit + " of " + sorted.size() + ")" : "") + ":");
+         for (int i = 0; i < Math.min(limit, sorted.size()); i++) {
+             System.out.println("  " + sorted.get(i));
+         }
+     }
+     
+     public static void main(String[] args) throws IOException {
+         File[] files = new File[Math.max(1, args.length)];
+         for (int i = 0; i < files.length; i++) {
+             files[i] = new File(args.length > 0 ? args[i] : "Movie Reservation Dataset.csv");
+         }
+         long begin = System.nanoTime();
+         OccupancyAnalytics analytics = fromSchedules(files);
+         double seconds = (System.nanoTime() - begin) / 1e9;
+         
+         System.out.println(String.format("Analysed %,d screenings in %.2f s", analytics.getTotal().getScreenings(), seconds));
+         System.out.println("  " + analytics.getTotal());
+         for (Dimension dimension : Dimension.values()) {
+             analytics.print(dimension, 10);
+         }
      }
  }
\ No newline at end of file
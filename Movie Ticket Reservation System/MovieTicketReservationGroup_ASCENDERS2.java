@@ -1,28 +1,56 @@
 import javax.swing.*;
 import javax.swing.border.*;
+import javax.swing.event.*;
+import javax.swing.table.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.*;
 
 /**
  * Movie Ticket Reservation System with improved navigation
  */
 public class MovieTicketReservationGroup_ASCENDERS2 {
     
+    // Schedule loaded when no file is given on the command line
+    private static final String DEFAULT_SCHEDULE = "Movie Reservation Dataset.csv";
+    
+    // Directory of the booking ledger shared with the console application
+    private static final String LEDGER_DIR = "booking_ledger";
+    
+    // Most tickets in one booking
+    private static final int MAX_TICKETS = 10;
+    
     // GUI components
     private static JFrame frame;
     private static JPanel cardPanel;
     private static CardLayout cardLayout;
+    private static JLabel statusLabel;
+    private static JButton movieNextButton;
+    private static MovieTableModel movieTableModel;
+    private static ListComboBoxModel<String> dateModel;
+    private static ListComboBoxModel<Showtime> showtimeModel;
+    private static SpinnerNumberModel ticketModel;
+    private static SeatMapPanel seatMapPanel;
+    
+    // Schedule and booking ledger, set once they have loaded
+    private static MovieDatabase movieDB;
+    private static BookingLedger ledger;
     
     // Selected data
-    private static String selectedMovieCode = "";
-    private static String selectedMovieName = "";
+    private static Movie selectedMovie;
     private static String selectedDate = "";
-    private static String selectedShowtime = "";
+    private static Showtime selectedShowtime;
     private static int selectedTickets = 1;
     private static String userEmail = "";
     
+    // Seats shown on the confirmation screen; exactly these are booked
+    private static int[] confirmedSeats = new int[0];
+    private static String confirmedLabels = "";
+    
     /**
      * Main method - entry point of the application.
      */
@@ -32,9 +60,11 @@ public class MovieTicketReservationGroup_ASCENDERS2 {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
             
             // Create GUI on Event Dispatch Thread
+            String scheduleFile = args.length > 0 ? args[0] : DEFAULT_SCHEDULE;
             SwingUtilities.invokeLater(new Runnable() {
                 public void run() {
                     createAndShowGUI();
+                    loadSchedule(scheduleFile);
                 }
             });
         } catch (Exception e) {
@@ -49,7 +79,16 @@ public class MovieTicketReservationGroup_ASCENDERS2 {
         // Create main frame
         frame = new JFrame("Movie Ticket Reservation System");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        frame.setSize(700, 500);
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                // Write the ledger snapshot before the application exits
+                if (ledger != null) {
+                    ledger.close();
+                }
+            }
+        });
+        frame.setSize(800, 650);
         frame.setLocationRelativeTo(null);
         
         // Create card layout for navigation
@@ -69,6 +108,51 @@ public class MovieTicketReservationGroup_ASCENDERS2 {
         frame.setVisible(true);
     }
     
+    /**
+     * Load the schedule on a background thread so the window stays
+     * responsive, then show its movies.
+     */
+    private static void loadSchedule(String scheduleFile) {
+        statusLabel.setText("Loading schedule from " + scheduleFile + "...");
+        new SwingWorker<MovieDatabase, Void>() {
+            private BookingLedger loadedLedger;
+            
+            @Override
+            protected MovieDatabase doInBackground() throws IOException {
+                MovieDatabase loaded = new MovieDatabase(scheduleFile);
+                // Bring seat availability up to date with the bookings made before
+                loadedLedger = new BookingLedger(new File(LEDGER_DIR), loaded);
+                return loaded;
+            }
+            
+            @Override
+            protected void done() {
+                try {
+                    movieDB = get();
+                    ledger = loadedLedger;
+                } catch (InterruptedException | ExecutionException e) {
+                    Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                    statusLabel.setText("No schedule loaded");
+                    JOptionPane.showMessageDialog(frame, 
+                        "Error loading movie database: " + cause.getMessage(), 
+                        "Load Failed", 
+                        JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                
+                movieTableModel.setMovies(movieDB.getAllMovies());
+                LoadReport report = movieDB.getLoadReport();
+                String status = String.format("%,d movies, %,d showtimes", 
+                        movieDB.getAllMovies().size(), movieDB.getScreenings().size());
+                if (report != null && report.getBadRows() > 0) {
+                    status += String.format(" (%,d bad rows skipped)", report.getBadRows());
+                }
+                statusLabel.setText(status);
+                movieNextButton.setEnabled(true);
+            }
+        }.execute();
+    }
+    
     /**
      * Create the movie selection panel.
      */
@@ -81,16 +165,9 @@ public class MovieTicketReservationGroup_ASCENDERS2 {
         titleLabel.setFont(new Font("Arial", Font.BOLD, 18));
         panel.add(titleLabel, BorderLayout.NORTH);
         
-        // Movie table
-        String[] columnNames = {"Code", "Name", "Language", "Genre"};
-        Object[][] data = {
-            {"M001", "Avengers: Endgame", "English", "Action"},
-            {"M002", "The Lion King", "English", "Animation"},
-            {"M003", "Joker", "English", "Drama"},
-            {"M004", "Parasite", "Korean", "Thriller"}
-        };
-        
-        JTable movieTable = new JTable(data, columnNames);
+        // Movie table, filled once the schedule has loaded
+        movieTableModel = new MovieTableModel();
+        JTable movieTable = new JTable(movieTableModel);
         movieTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         movieTable.setRowHeight(25);
         
@@ -100,6 +177,8 @@ public class MovieTicketReservationGroup_ASCENDERS2 {
         // Button panel
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
         JButton nextButton = new JButton("Next");
+        nextButton.setEnabled(false);
+        movieNextButton = nextButton;
         
         nextButton.addActionListener(new ActionListener() {
             @Override
@@ -107,8 +186,7 @@ public class MovieTicketReservationGroup_ASCENDERS2 {
                 int selectedRow = movieTable.getSelectedRow();
                 if (selectedRow != -1) {
                     // Save selected movie info
-                    selectedMovieCode = (String) movieTable.getValueAt(selectedRow, 0);
-                    selectedMovieName = (String) movieTable.getValueAt(selectedRow, 1);
+                    selectedMovie = movieTableModel.getMovie(selectedRow);
                     
                     // Update booking panel with selected movie
                     updateBookingPanel();
@@ -125,7 +203,13 @@ public class MovieTicketReservationGroup_ASCENDERS2 {
         });
         
         buttonPanel.add(nextButton);
-        panel.add(buttonPanel, BorderLayout.SOUTH);
+        
+        // Loading progress and schedule size
+        statusLabel = new JLabel(" ");
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        bottomPanel.add(statusLabel, BorderLayout.WEST);
+        bottomPanel.add(buttonPanel, BorderLayout.EAST);
+        panel.add(bottomPanel, BorderLayout.SOUTH);
         
         return panel;
     }
@@ -159,27 +243,30 @@ public class MovieTicketReservationGroup_ASCENDERS2 {
         JPanel formPanel = new JPanel(new GridLayout(4, 2, 15, 15));
         formPanel.setBorder(new EmptyBorder(10, 0, 10, 0));
         
-        // Date selection
+        // Date selection, from the selected movie's schedule
         JLabel dateLabel = new JLabel("Date:", JLabel.LEFT);
-        String[] dates = {"2023-03-26", "2023-03-27", "2023-03-28"};
-        JComboBox<String> dateCombo = new JComboBox<>(dates);
+        dateModel = new ListComboBoxModel<>();
+        JComboBox<String> dateCombo = new JComboBox<>(dateModel);
+        // A fixed width saves measuring every date of a long schedule
+        dateCombo.setPrototypeDisplayValue("0000-00-00");
         dateCombo.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                selectedDate = (String) dateCombo.getSelectedItem();
+                updateShowtimes();
             }
         });
         formPanel.add(dateLabel);
         formPanel.add(dateCombo);
         
-        // Showtime selection
+        // Showtime selection, with the seats left and price of each
         JLabel showtimeLabel = new JLabel("Showtime:", JLabel.LEFT);
-        String[] showtimes = {"10:00 AM", "2:00 PM", "6:00 PM", "9:00 PM"};
-        JComboBox<String> showtimeCombo = new JComboBox<>(showtimes);
+        showtimeModel = new ListComboBoxModel<>();
+        JComboBox<Showtime> showtimeCombo = new JComboBox<>(showtimeModel);
+        showtimeCombo.setPrototypeDisplayValue(new Showtime("Afternoon", 9999, 9999, 99.99));
         showtimeCombo.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                selectedShowtime = (String) showtimeCombo.getSelectedItem();
+                updateTickets();
             }
         });
         formPanel.add(showtimeLabel);
@@ -187,10 +274,11 @@ public class MovieTicketReservationGroup_ASCENDERS2 {
         
         // Ticket quantity
         JLabel ticketsLabel = new JLabel("Number of Tickets:", JLabel.LEFT);
-        SpinnerNumberModel ticketModel = new SpinnerNumberModel(1, 1, 10, 1);
+        ticketModel = new SpinnerNumberModel(1, 1, MAX_TICKETS, 1);
         JSpinner ticketSpinner = new JSpinner(ticketModel);
         ticketSpinner.addChangeListener(e -> {
             selectedTickets = (Integer) ticketSpinner.getValue();
+            seatMapPanel.setMaxSelected(selectedTickets);
         });
         formPanel.add(ticketsLabel);
         formPanel.add(ticketSpinner);
@@ -201,7 +289,21 @@ public class MovieTicketReservationGroup_ASCENDERS2 {
         formPanel.add(emailLabel);
         formPanel.add(emailField);
         
-        panel.add(formPanel, BorderLayout.CENTER);
+        // Seat map of the selected showtime, kept up to date as others book
+        seatMapPanel = new SeatMapPanel();
+        JScrollPane seatScrollPane = new JScrollPane(seatMapPanel);
+        seatScrollPane.setBorder(BorderFactory.createTitledBorder("Seats (click to choose)"));
+        JLabel seatsLabel = new JLabel("Chosen seats: none");
+        seatMapPanel.addChangeListener(e -> {
+            String labels = seatMapPanel.getSelectedLabels();
+            seatsLabel.setText("Chosen seats: " + (labels.isEmpty() ? "none" : labels));
+        });
+        
+        JPanel centerPanel = new JPanel(new BorderLayout());
+        centerPanel.add(formPanel, BorderLayout.NORTH);
+        centerPanel.add(seatScrollPane, BorderLayout.CENTER);
+        centerPanel.add(seatsLabel, BorderLayout.SOUTH);
+        panel.add(centerPanel, BorderLayout.CENTER);
         
         // Button panel
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
@@ -213,6 +315,23 @@ public class MovieTicketReservationGroup_ASCENDERS2 {
         nextButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
+                // Check the showtime still has enough seats
+                if (selectedShowtime == null || selectedTickets > selectedShowtime.getAvailableSeats()) {
+                    JOptionPane.showMessageDialog(panel, 
+                        selectedShowtime == null ? "Please select a showtime" 
+                            : "Only " + selectedShowtime.getAvailableSeats() + " seats are left for this showtime", 
+                        "Not Enough Seats", 
+                        JOptionPane.WARNING_MESSAGE);
+                    return;
+                }
+                if (seatMapPanel.getSelectedSeats().length != selectedTickets) {
+                    JOptionPane.showMessageDialog(panel, 
+                        "Please choose " + selectedTickets + " seats on the seat map", 
+                        "Choose Seats", 
+                        JOptionPane.WARNING_MESSAGE);
+                    return;
+                }
+                
                 // Validate and save email
                 userEmail = emailField.getText().trim();
                 
@@ -224,6 +343,10 @@ public class MovieTicketReservationGroup_ASCENDERS2 {
                     return;
                 }
                 
+                // Freeze the seats the confirmation screen will show
+                confirmedSeats = seatMapPanel.getSelectedSeats();
+                confirmedLabels = seatMapPanel.getSelectedLabels();
+                
                 // Update confirmation details
                 updateConfirmationPanel();
                 
@@ -273,18 +396,65 @@ public class MovieTicketReservationGroup_ASCENDERS2 {
         confirmButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                String bookingId = "BK" + (int)(Math.random() * 10000);
-                
-                JOptionPane.showMessageDialog(panel, 
-                    "Booking Confirmed!\n\n" +
-                    "Booking ID: " + bookingId + "\n\n" +
-                    "A PDF bill has been sent to " + userEmail,
-                    "Booking Successful", 
-                    JOptionPane.INFORMATION_MESSAGE);
+                // Book the seats that were shown; someone else may have booked one meanwhile
+                int[] seats = confirmedSeats;
+                if (seats.length != selectedTickets) {
+                    cardLayout.show(cardPanel, "BookTickets");
+                    return;
+                }
+                try {
+                    selectedShowtime.bookSeats(seats);
+                } catch (OverbookingException ex) {
+                    JOptionPane.showMessageDialog(panel, 
+                        ex.getMessage() + ". Please choose other seats.", 
+                        "Seat Taken", 
+                        JOptionPane.WARNING_MESSAGE);
+                    cardLayout.show(cardPanel, "BookTickets");
+                    return;
+                }
+                Booking booking = new Booking(selectedMovie, selectedDate, selectedShowtime, selectedTickets);
+                for (int seat : seats) {
+                    booking.addSeat(seat);
+                }
+                booking.setTotalAmount(seats.length * selectedShowtime.getTicketPrice());
                 
-                // Reset and go back to first step
-                resetBookingData();
-                cardLayout.show(cardPanel, "SelectMovie");
+                // Record the booking in the ledger off the EDT; it returns once the booking is durable
+                confirmButton.setEnabled(false);
+                new SwingWorker<String, Void>() {
+                    @Override
+                    protected String doInBackground() throws IOException {
+                        return ledger.confirm(booking, userEmail);
+                    }
+                    
+                    @Override
+                    protected void done() {
+                        confirmButton.setEnabled(true);
+                        String bookingId;
+                        try {
+                            bookingId = get();
+                        } catch (InterruptedException | ExecutionException ex) {
+                            Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+                            booking.getShowtime().releaseSeats(seats);
+                            JOptionPane.showMessageDialog(panel, 
+                                "Booking could not be saved: " + cause.getMessage(), 
+                                "Booking Failed", 
+                                JOptionPane.ERROR_MESSAGE);
+                            return;
+                        }
+                        seatMapPanel.clearSelection();
+                        
+                        JOptionPane.showMessageDialog(panel, 
+                            "Booking Confirmed!\n\n" +
+                            "Booking ID: " + bookingId + "\n\n" +
+                            "A PDF bill has been sent to " + userEmail,
+                            "Booking Successful", 
+                            JOptionPane.INFORMATION_MESSAGE);
+                        
+                        // Reset and go back to first step
+                        resetBookingData();
+                        cardLayout.show(cardPanel, "SelectMovie");
+                    }
+                }.execute();
             }
         });
         
@@ -310,7 +480,36 @@ public class MovieTicketReservationGroup_ASCENDERS2 {
         
         // Update movie label
         JLabel movieLabel = (JLabel) movieInfoPanel.getComponent(0);
-        movieLabel.setText("Movie: " + selectedMovieName + " (" + selectedMovieCode + ")");
+        movieLabel.setText("Movie: " + selectedMovie.getName() + " (" + selectedMovie.getCode() + ")");
+        
+        // Offer the dates the movie is showing; the list is shown as it is, not copied
+        dateModel.setItems(selectedMovie.getAvailableDates());
+        updateShowtimes();
+    }
+    
+    /**
+     * Offer the showtimes of the selected movie on the selected date.
+     */
+    private static void updateShowtimes() {
+        String date = (String) dateModel.getSelectedItem();
+        selectedDate = date == null ? "" : date;
+        showtimeModel.setItems(date == null ? Collections.<Showtime>emptyList() 
+                : selectedMovie.getShowtimesForDate(date));
+        updateTickets();
+    }
+    
+    /**
+     * Limit the number of tickets to the seats left at the selected showtime.
+     */
+    private static void updateTickets() {
+        selectedShowtime = (Showtime) showtimeModel.getSelectedItem();
+        int available = selectedShowtime == null ? 0 : selectedShowtime.getAvailableSeats();
+        int maximum = Math.max(1, Math.min(MAX_TICKETS, available));
+        if (selectedTickets > maximum) {
+            ticketModel.setValue(maximum);
+        }
+        ticketModel.setMaximum(maximum);
+        seatMapPanel.setShowtime(selectedShowtime, selectedTickets);
     }
     
     /**
@@ -324,16 +523,17 @@ public class MovieTicketReservationGroup_ASCENDERS2 {
         JScrollPane scrollPane = (JScrollPane) confirmPanel.getComponent(1);
         JTextArea confirmationArea = (JTextArea) scrollPane.getViewport().getView();
         
-        // Calculate total price (assume $10 per ticket)
-        double totalPrice = selectedTickets * 10.0;
+        // Calculate total price at the showtime's ticket price
+        double totalPrice = selectedTickets * selectedShowtime.getTicketPrice();
         
         // Update confirmation text
         String confirmationText = "Booking Details:\n\n";
-        confirmationText += "Movie: " + selectedMovieName + " (" + selectedMovieCode + ")\n";
+        confirmationText += "Movie: " + selectedMovie.getName() + " (" + selectedMovie.getCode() + ")\n";
         confirmationText += "Date: " + selectedDate + "\n";
-        confirmationText += "Showtime: " + selectedShowtime + "\n";
+        confirmationText += "Showtime: " + selectedShowtime.getTime() + "\n";
         confirmationText += "Number of Tickets: " + selectedTickets + "\n";
-        confirmationText += "Total Price: $" + totalPrice + "\n";
+        confirmationText += "Seats: " + confirmedLabels + "\n";
+        confirmationText += "Total Price: $" + String.format("%.2f", totalPrice) + "\n";
         confirmationText += "Email: " + userEmail + "\n\n";
         confirmationText += "Please review your booking details above and click 'Confirm Booking' to finalize.";
         
@@ -344,11 +544,437 @@ public class MovieTicketReservationGroup_ASCENDERS2 {
      * Reset all booking data for a new booking.
      */
     private static void resetBookingData() {
-        selectedMovieCode = "";
-        selectedMovieName = "";
+        selectedMovie = null;
         selectedDate = "";
-        selectedShowtime = "";
+        selectedShowtime = null;
         selectedTickets = 1;
         userEmail = "";
+        confirmedSeats = new int[0];
+        confirmedLabels = "";
+    }
+}
+
+/**
+ * Table model listing the movies of a schedule. Cells are read from the
+ * movie list only when the table paints them, and JTable paints only the
+ * visible rows, so thousands of movies cost no more than a screenful.
+ */
+class MovieTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    private static final String[] COLUMNS = {"Code", "Name", "Language", "Genre", "Dates"};
+    
+    private List<Movie> movies = Collections.emptyList();
+    
+    /**
+     * Show a list of movies. The list is used as it is, not copied.
+     */
+    public void setMovies(List<Movie> movies) {
+        this.movies = movies;
+        fireTableDataChanged();
+    }
+    
+    /**
+     * Get the movie in a row.
+     */
+    public Movie getMovie(int row) {
+        return movies.get(row);
+    }
+    
+    @Override
+    public int getRowCount() {
+        return movies.size();
+    }
+    
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+    
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+    
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return column == 4 ? Integer.class : String.class;
+    }
+    
+    @Override
+    public Object getValueAt(int row, int column) {
+        Movie movie = movies.get(row);
+        switch (column) {
+            case 0:
+                return movie.getCode();
+            case 1:
+                return movie.getName();
+            case 2:
+                return movie.getLanguage();
+            case 3:
+                return movie.getGenre();
+            default:
+                return movie.getAvailableDates().size();
+        }
+    }
+}
+
+/**
+ * Combo box model showing a list without copying it. The first item is
+ * selected whenever the list changes.
+ */
+class ListComboBoxModel<E> extends AbstractListModel<E> implements ComboBoxModel<E> {
+    private static final long serialVersionUID = 1L;
+    private List<E> items = Collections.emptyList();
+    private Object selected;
+    
+    /**
+     * Show a list of items.
+     */
+    public void setItems(List<E> items) {
+        int oldSize = this.items.size();
+        this.items = Collections.<E>emptyList();
+        if (oldSize > 0) {
+            fireIntervalRemoved(this, 0, oldSize - 1);
+        }
+        this.items = items;
+        if (!items.isEmpty()) {
+            fireIntervalAdded(this, 0, items.size() - 1);
+        }
+        setSelectedItem(items.isEmpty() ? null : items.get(0));
+    }
+    
+    @Override
+    public int getSize() {
+        return items.size();
+    }
+    
+    @Override
+    public E getElementAt(int index) {
+        return items.get(index);
+    }
+    
+    @Override
+    public Object getSelectedItem() {
+        return selected;
+    }
+    
+    @Override
+    public void setSelectedItem(Object item) {
+        selected = item;
+        fireContentsChanged(this, -1, -1);
+    }
+}
+
+/**
+ * Seat map of a showtime that the user can choose seats on. It follows
+ * the showtime's seat changes while it is on screen: changed seats are
+ * marked in a bitset from whichever thread booked them, and a Swing timer
+ * repaints just those seats once per frame, however many changed in
+ * between. Painting covers only the seats inside the clip.
+ */
+class SeatMapPanel extends JComponent implements Scrollable {
+    private static final long serialVersionUID = 1L;
+    private static final int SEAT_SIZE = 18;
+    private static final int GAP = 4;
+    private static final int PITCH = SEAT_SIZE + GAP;
+    private static final int MARGIN = 10;
+    private static final int FRAME_MILLIS = 16;
+    private static final Color FREE = new Color(120, 190, 120);
+    private static final Color TAKEN = new Color(170, 170, 170);
+    private static final Color SELECTED = new Color(60, 110, 220);
+    
+    private Showtime showtime;
+    private HallLayout layout;
+    private int maxSelected;
+    private final TreeSet<Integer> selected = new TreeSet<>();
+    
+    // Seats changed since the last frame, set from booking threads
+    private volatile AtomicLongArray dirtySeats = new AtomicLongArray(0);
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private final SeatListener listener = this::markDirty;
+    private final javax.swing.Timer frameTimer;
+    
+    /**
+     * Constructor for SeatMapPanel, showing no showtime.
+     */
+    public SeatMapPanel() {
+        frameTimer = new javax.swing.Timer(FRAME_MILLIS, e -> repaintChanges());
+        frameTimer.setCoalesce(true);
+        setToolTipText("");
+        addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                toggle(seatAt(e.getX(), e.getY()));
+            }
+        });
+    }
+    
+    /**
+     * Show a showtime, or none, with no seats chosen.
+     */
+    public void setShowtime(Showtime showtime, int maxSelected) {
+        if (showtime == this.showtime) {
+            setMaxSelected(maxSelected);
+            return;
+        }
+        if (this.showtime != null && isDisplayable()) {
+            this.showtime.removeSeatListener(listener);
+        }
+        this.showtime = showtime;
+        this.layout = showtime == null ? null : showtime.getLayout();
+        this.maxSelected = maxSelected;
+        selected.clear();
+        dirtySeats = new AtomicLongArray(showtime == null ? 0 : (showtime.getTotalSeats() + 63) >>> 6);
+        if (showtime != null && isDisplayable()) {
+            showtime.addSeatListener(listener);
+        }
+        fireStateChanged();
+        revalidate();
+        repaint();
+    }
+    
+    /**
+     * Set how many seats may be chosen, dropping the last chosen if too many are.
+     */
+    public void setMaxSelected(int maxSelected) {
+        this.maxSelected = maxSelected;
+        boolean changed = false;
+        while (selected.size() > maxSelected) {
+            repaintSeat(selected.pollLast());
+            changed = true;
+        }
+        if (changed) {
+            fireStateChanged();
+        }
+    }
+    
+    /**
+     * Get the chosen seats in seat order.
+     */
+    public int[] getSelectedSeats() {
+        int[] seats = new int[selected.size()];
+        int i = 0;
+        for (int seat : selected) {
+            seats[i++] = seat;
+        }
+        return seats;
+    }
+    
+    /**
+     * Get the row,column labels of the chosen seats.
+     */
+    public String getSelectedLabels() {
+        StringBuilder labels = new StringBuilder();
+        for (int seat : selected) {
+            labels.append(labels.length() > 0 ? " " : "").append(layout.seatLabel(seat));
+        }
+        return labels.toString();
+    }
+    
+    /**
+     * Forget the chosen seats.
+     */
+    public void clearSelection() {
+        for (int seat : selected) {
+            repaintSeat(seat);
+        }
+        selected.clear();
+        fireStateChanged();
+    }
+    
+    /**
+     * Be told when the chosen seats change.
+     */
+    public void addChangeListener(ChangeListener changeListener) {
+        listenerList.add(ChangeListener.class, changeListener);
+    }
+    
+    /**
+     * Stop being told when the chosen seats change.
+     */
+    public void removeChangeListener(ChangeListener changeListener) {
+        listenerList.remove(ChangeListener.class, changeListener);
+    }
+    
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        if (showtime != null) {
+            showtime.addSeatListener(listener);
+        }
+        frameTimer.start();
+        // Seats may have changed while the panel was not listening
+        repaint();
+    }
+    
+    @Override
+    public void removeNotify() {
+        frameTimer.stop();
+        if (showtime != null) {
+            showtime.removeSeatListener(listener);
+        }
+        super.removeNotify();
+    }
+    
+    /**
+     * Called on the booking thread; only marks the seats for the next frame.
+     */
+    private void markDirty(Showtime changed, int[] seats, boolean taken) {
+        AtomicLongArray bits = dirtySeats;
+        for (int seat : seats) {
+            int word = seat >>> 6;
+            if (word >= bits.length()) {
+                // Late news from the showtime shown before
+                continue;
+            }
+            long bit = 1L << seat;
+            long current;
+            while (((current = bits.get(word)) & bit) == 0) {
+                if (bits.compareAndSet(word, current, current | bit)) {
+                    break;
+                }
+            }
+        }
+        dirty.set(true);
+    }
+    
+    /**
+     * Repaint the seats changed since the last frame. Runs on the EDT.
+     */
+    private void repaintChanges() {
+        if (!dirty.getAndSet(false)) {
+            return;
+        }
+        AtomicLongArray bits = dirtySeats;
+        boolean lostSelection = false;
+        for (int word = 0; word < bits.length(); word++) {
+            long changed = bits.getAndSet(word, 0);
+            while (changed != 0) {
+                int seat = (word << 6) + Long.numberOfTrailingZeros(changed);
+                changed &= changed - 1;
+                // A chosen seat booked by someone else is no longer ours to choose
+                if (selected.contains(seat) && !showtime.isSeatAvailable(seat)) {
+                    selected.remove(seat);
+                    lostSelection = true;
+                }
+                repaintSeat(seat);
+            }
+        }
+        if (lostSelection) {
+            fireStateChanged();
+        }
+    }
+    
+    private void toggle(int seat) {
+        if (seat < 0) {
+            return;
+        }
+        if (selected.remove(seat)) {
+            fireStateChanged();
+        } else if (showtime.isSeatAvailable(seat) && selected.size() < maxSelected) {
+            selected.add(seat);
+            fireStateChanged();
+        } else {
+            Toolkit.getDefaultToolkit().beep();
+            return;
+        }
+        repaintSeat(seat);
+    }
+    
+    private void repaintSeat(int seat) {
+        int row = seat / layout.getSeatsPerRow();
+        int col = seat % layout.getSeatsPerRow();
+        repaint(MARGIN + col * PITCH, MARGIN + row * PITCH, SEAT_SIZE, SEAT_SIZE);
+    }
+    
+    /**
+     * Get the seat at a point, or -1 if there is none.
+     */
+    private int seatAt(int x, int y) {
+        if (showtime == null || x < MARGIN || y < MARGIN) {
+            return -1;
+        }
+        int col = (x - MARGIN) / PITCH;
+        int row = (y - MARGIN) / PITCH;
+        if ((x - MARGIN) % PITCH >= SEAT_SIZE || (y - MARGIN) % PITCH >= SEAT_SIZE || !showtime.isValidSeat(row, col)) {
+            return -1;
+        }
+        return layout.seatIndex(row, col);
+    }
+    
+    private void fireStateChanged() {
+        ChangeEvent event = new ChangeEvent(this);
+        for (ChangeListener changeListener : listenerList.getListeners(ChangeListener.class)) {
+            changeListener.stateChanged(event);
+        }
+    }
+    
+    @Override
+    protected void paintComponent(Graphics g) {
+        g.setColor(getBackground() != null ? getBackground() : Color.WHITE);
+        Rectangle clip = g.getClipBounds();
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        if (showtime == null) {
+            return;
+        }
+        
+        // Only the rows and columns inside the clip
+        int firstRow = Math.max(0, (clip.y - MARGIN) / PITCH);
+        int lastRow = Math.min(layout.getRows() - 1, (clip.y + clip.height - MARGIN) / PITCH);
+        int firstCol = Math.max(0, (clip.x - MARGIN) / PITCH);
+        int lastCol = Math.min(layout.getSeatsPerRow() - 1, (clip.x + clip.width - MARGIN) / PITCH);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                int seat = layout.seatIndex(row, col);
+                if (seat >= showtime.getTotalSeats()) {
+                    break;
+                }
+                g.setColor(selected.contains(seat) ? SELECTED : showtime.isSeatAvailable(seat) ? FREE : TAKEN);
+                g.fillRect(MARGIN + col * PITCH, MARGIN + row * PITCH, SEAT_SIZE, SEAT_SIZE);
+            }
+        }
+    }
+    
+    @Override
+    public String getToolTipText(MouseEvent e) {
+        int seat = seatAt(e.getX(), e.getY());
+        if (seat < 0) {
+            return null;
+        }
+        return "Seat " + layout.seatLabel(seat) + (showtime.isSeatAvailable(seat) ? "" : " (taken)");
+    }
+    
+    @Override
+    public Dimension getPreferredSize() {
+        if (layout == null) {
+            return new Dimension(2 * MARGIN, 2 * MARGIN);
+        }
+        return new Dimension(2 * MARGIN + layout.getSeatsPerRow() * PITCH - GAP, 
+                2 * MARGIN + layout.getRows() * PITCH - GAP);
+    }
+    
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+    
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visible, int orientation, int direction) {
+        return PITCH;
+    }
+    
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visible, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? visible.height : visible.width;
+    }
+    
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return false;
+    }
+    
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        return false;
     }
 }
\ No newline at end of file
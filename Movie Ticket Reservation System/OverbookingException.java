@@ -0,0 +1,10 @@
+/**
+ * Custom exception for overbooking situations.
+ */
+class OverbookingException extends Exception {
+    private static final long serialVersionUID = 1L;
+    
+    public OverbookingException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,456 @@
+import java.io.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Streaming, parallel loader for schedule CSV files.
+ * 
+ * The file is read in chunks of CHUNK_BYTES that are parsed on a thread
+ * pool; each chunk starts at the first line that begins inside it. Fields
+ * may be quoted ("Crouching Tiger, Hidden Dragon", with "" for a quote), but
+ * a record must fit on one line. Parsing works on the raw bytes: numbers are
+ * read without creating strings, repeated text such as dates, slots and
+ * genres is shared through a per-chunk pool, and Showtimes are built on the
+ * worker threads. Chunks are then added to the MovieDatabase one at a time
+ * in file order while later chunks are still being parsed. A bad row is
+ * reported with its line number and skipped.
+ */
+class ScheduleLoader {
+    private static final int CHUNK_BYTES = 8 << 20;
+    private static final int REQUIRED_FIELDS = 9;
+    private static final int MAX_FIELDS = 11;
+    
+    private final int threads;
+    
+    /**
+     * Constructor for ScheduleLoader using one thread per processor.
+     */
+    public ScheduleLoader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Constructor for ScheduleLoader with the given number of threads.
+     */
+    public ScheduleLoader(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+    
+    /**
+     * Load a schedule file into the database.
+     */
+    public LoadReport load(File file, MovieDatabase movieDB) throws IOException {
+        long begin = System.nanoTime();
+        LoadReport report = new LoadReport();
+        long rows = 0;
+        
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long size = in.length();
+            long dataStart = skipHeader(in);
+            
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                ArrayDeque<Future<ParsedChunk>> inFlight = new ArrayDeque<>();
+                long position = dataStart;
+                long lineNumber = 2;
+                while (position < size || !inFlight.isEmpty()) {
+                    // Keep a few chunks per thread queued so merging never waits long
+                    while (position < size && inFlight.size() < threads * 2) {
+                        long start = position;
+                        long end = Math.min(size, start + CHUNK_BYTES);
+                        inFlight.add(pool.submit(() -> parseChunk(file, start, end, start == dataStart)));
+                        position = end;
+                    }
+                    ParsedChunk chunk = inFlight.poll().get();
+                    rows += chunk.addTo(movieDB, lineNumber, report);
+                    lineNumber += chunk.lines;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Schedule load interrupted");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Error loading schedule", e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+            report.finish(rows, size, (System.nanoTime() - begin) / 1_000_000);
+        }
+        return report;
+    }
+    
+    /**
+     * Get the offset of the first byte after the header line.
+     */
+    private static long skipHeader(RandomAccessFile in) throws IOException {
+        byte[] buffer = new byte[4096];
+        long position = 0;
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            for (int i = 0; i < n; i++) {
+                if (buffer[i] == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += n;
+        }
+        return position;
+    }
+    
+    /**
+     * Parse the lines that begin in [start, end). The last of them may run past end.
+     */
+    private static ParsedChunk parseChunk(File file, long start, long end, boolean atLineStart) throws IOException {
+        byte[] data;
+        int length;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            // Read one byte before the chunk to tell whether it starts on a line boundary
+            long from = atLineStart ? start : start - 1;
+            data = new byte[(int) (end - from) + 4096];
+            in.seek(from);
+            length = readFully(in, data, 0, (int) (end - from));
+            
+            // Finish the last line from the following bytes
+            while (length > 0 && data[length - 1] != '\n') {
+                if (length == data.length) {
+                    data = Arrays.copyOf(data, data.length + (data.length >> 1));
+                }
+                int n = in.read(data, length, Math.min(4096, data.length - length));
+                if (n < 0) {
+                    break;
+                }
+                int scanFrom = length;
+                length += n;
+                for (int i = scanFrom; i < length; i++) {
+                    if (data[i] == '\n') {
+                        length = i + 1;
+                        break;
+                    }
+                }
+            }
+        }
+        
+        int pos = 0;
+        if (!atLineStart) {
+            // The line in progress at the chunk start belongs to the previous chunk
+            if (data[0] == '\n') {
+                pos = 1;
+            } else {
+                while (pos < length && data[pos] != '\n') {
+                    pos++;
+                }
+                pos++;
+            }
+        }
+        
+        ParsedChunk chunk = new ParsedChunk();
+        RowParser parser = new RowParser();
+        while (pos < length) {
+            int lineEnd = pos;
+            while (lineEnd < length && data[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            int contentEnd = lineEnd > pos && data[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+            if (contentEnd > pos) {
+                parser.parse(data, pos, contentEnd, chunk);
+            }
+            chunk.lines++;
+            pos = lineEnd + 1;
+        }
+        return chunk;
+    }
+    
+    private static int readFully(RandomAccessFile in, byte[] data, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int n = in.read(data, offset + total, length - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+    
+    /**
+     * Class holding the rows of one chunk, parsed but not yet in the database.
+     */
+    private static class ParsedChunk {
+        int lines;
+        final ArrayList<String> codes = new ArrayList<>();
+        final ArrayList<String> names = new ArrayList<>();
+        final ArrayList<String> languages = new ArrayList<>();
+        final ArrayList<String> genres = new ArrayList<>();
+        final ArrayList<String> dates = new ArrayList<>();
+        final ArrayList<Showtime> showtimes = new ArrayList<>();
+        final ArrayList<Integer> badLines = new ArrayList<>();
+        final ArrayList<String> badReasons = new ArrayList<>();
+        
+        void add(String code, String name, String language, String genre, String date, Showtime showtime) {
+            codes.add(code);
+            names.add(name);
+            languages.add(language);
+            genres.add(genre);
+            dates.add(date);
+            showtimes.add(showtime);
+        }
+        
+        void bad(String reason) {
+            badLines.add(lines);
+            badReasons.add(reason);
+        }
+        
+        /**
+         * Add the rows to the database; returns the number added.
+         */
+        int addTo(MovieDatabase movieDB, long firstLine, LoadReport report) {
+            for (int i = 0; i < badLines.size(); i++) {
+                report.badRow(firstLine + badLines.get(i), badReasons.get(i));
+            }
+            for (int i = 0; i < showtimes.size(); i++) {
+                Movie movie = movieDB.findMovie(codes.get(i));
+                if (movie == null) {
+                    movie = new Movie(codes.get(i), names.get(i), languages.get(i), genres.get(i));
+                }
+                movieDB.addShowtime(movie, dates.get(i), showtimes.get(i));
+            }
+            return showtimes.size();
+        }
+    }
+    
+    /**
+     * Class parsing one CSV line from bytes, reusing its buffers between lines.
+     */
+    private static class RowParser {
+        private final int[] fieldStart = new int[MAX_FIELDS + 1];
+        private final int[] fieldEnd = new int[MAX_FIELDS + 1];
+        private byte[] scratch = new byte[256];
+        private final StringPool pool = new StringPool();
+        private final HashMap<String, Boolean> validDates = new HashMap<>();
+        
+        void parse(byte[] line, int start, int end, ParsedChunk chunk) {
+            // Split into fields, unquoting into scratch as we go
+            if (scratch.length < end - start) {
+                scratch = new byte[end - start];
+            }
+            int fields = 0;
+            int out = 0;
+            int pos = start;
+            while (true) {
+                if (fields == fieldStart.length) {
+                    chunk.bad("more than " + MAX_FIELDS + " fields");
+                    return;
+                }
+                fieldStart[fields] = out;
+                if (pos < end && line[pos] == '"') {
+                    pos++;
+                    while (true) {
+                        if (pos >= end) {
+                            chunk.bad("unterminated quoted field");
+                            return;
+                        }
+                        if (line[pos] == '"') {
+                            if (pos + 1 < end && line[pos + 1] == '"') {
+                                scratch[out++] = '"';
+                                pos += 2;
+                                continue;
+                            }
+                            pos++;
+                            break;
+                        }
+                        scratch[out++] = line[pos++];
+                    }
+                    while (pos < end && line[pos] != ',') {
+                        pos++;
+                    }
+                } else {
+                    while (pos < end && line[pos] != ',') {
+                        scratch[out++] = line[pos++];
+                    }
+                }
+                fieldEnd[fields++] = out;
+                if (pos >= end) {
+                    break;
+                }
+                pos++;
+            }
+            if (fields < REQUIRED_FIELDS) {
+                chunk.bad("expected at least " + REQUIRED_FIELDS + " fields but found " + fields);
+                return;
+            }
+            
+            int totalSeats = parseInt(4);
+            int availableSeats = parseInt(5);
+            double ticketPrice = parsePrice(6);
+            if (totalSeats < 0 || availableSeats < 0 || Double.isNaN(ticketPrice)) {
+                chunk.bad("seat counts and ticket price must be non-negative numbers");
+                return;
+            }
+            if (availableSeats > totalSeats) {
+                chunk.bad("available seats " + availableSeats + " exceed total seats " + totalSeats);
+                return;
+            }
+            String date = text(2);
+            Boolean validDate = validDates.get(date);
+            if (validDate == null) {
+                validDate = isIsoDate(date);
+                validDates.put(date, validDate);
+            }
+            if (!validDate) {
+                chunk.bad("invalid date " + date);
+                return;
+            }
+            
+            HallLayout layout;
+            if (fields >= 11) {
+                int rows = parseInt(9);
+                int seatsPerRow = parseInt(10);
+                if (rows <= 0 || seatsPerRow <= 0) {
+                    chunk.bad("hall rows and seats per row must be positive numbers");
+                    return;
+                }
+                layout = HallLayout.of(rows, seatsPerRow);
+            } else {
+                layout = HallLayout.forCapacity(totalSeats);
+            }
+            if (totalSeats > layout.getCapacity()) {
+                chunk.bad("hall has " + layout.getCapacity() + " seats but showtime has " + totalSeats);
+                return;
+            }
+            
+            Showtime showtime = new Showtime(text(3), totalSeats, availableSeats, ticketPrice, layout);
+            chunk.add(text(0), text(1), text(7), text(8), date, showtime);
+        }
+        
+        private String text(int field) {
+            int start = fieldStart[field];
+            int end = fieldEnd[field];
+            while (start < end && scratch[start] == ' ') {
+                start++;
+            }
+            while (end > start && scratch[end - 1] == ' ') {
+                end--;
+            }
+            return pool.intern(scratch, start, end);
+        }
+        
+        // Returns -1 if the field is not a whole number
+        private int parseInt(int field) {
+            int start = fieldStart[field];
+            int end = fieldEnd[field];
+            long value = 0;
+            boolean digits = false;
+            for (int i = start; i < end; i++) {
+                byte b = scratch[i];
+                if (b >= '0' && b <= '9') {
+                    value = value * 10 + (b - '0');
+                    digits = true;
+                    if (value > Integer.MAX_VALUE) {
+                        return -1;
+                    }
+                } else if (b != ' ') {
+                    return -1;
+                }
+            }
+            return digits ? (int) value : -1;
+        }
+        
+        // Returns NaN if the field is not a plain decimal like 12.50
+        private double parsePrice(int field) {
+            int start = fieldStart[field];
+            int end = fieldEnd[field];
+            long whole = 0;
+            long fraction = 0;
+            long scale = 1;
+            boolean point = false;
+            boolean digits = false;
+            for (int i = start; i < end; i++) {
+                byte b = scratch[i];
+                if (b >= '0' && b <= '9' && scale < 1_000_000_000_000L) {
+                    digits = true;
+                    if (point) {
+                        fraction = fraction * 10 + (b - '0');
+                        scale *= 10;
+                    } else {
+                        whole = whole * 10 + (b - '0');
+                    }
+                } else if (b == '.' && !point) {
+                    point = true;
+                } else if (b != ' ') {
+                    return Double.NaN;
+                }
+            }
+            return digits ? whole + (double) fraction / scale : Double.NaN;
+        }
+        
+        private static boolean isIsoDate(String date) {
+            try {
+                LocalDate.parse(date);
+                return true;
+            } catch (DateTimeException e) {
+                return false;
+            }
+        }
+    }
+    
+    /**
+     * Pool of strings keyed by their UTF-8 bytes, so that a value repeated on
+     * many rows is decoded once and shared.
+     */
+    private static class StringPool {
+        private byte[][] keys = new byte[256][];
+        private String[] values = new String[256];
+        private int size;
+        
+        String intern(byte[] data, int start, int end) {
+            int hash = 1;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + data[i];
+            }
+            int mask = keys.length - 1;
+            int i = (hash ^ (hash >>> 16)) & mask;
+            while (keys[i] != null) {
+                if (Arrays.equals(keys[i], 0, keys[i].length, data, start, end)) {
+                    return values[i];
+                }
+                i = (i + 1) & mask;
+            }
+            
+            // Names are mostly unique per movie; stop pooling when the pool is large
+            String value = new String(data, start, end - start, java.nio.charset.StandardCharsets.UTF_8);
+            if (size < 1 << 16) {
+                keys[i] = Arrays.copyOfRange(data, start, end);
+                values[i] = value;
+                if (++size * 2 > keys.length) {
+                    grow();
+                }
+            }
+            return value;
+        }
+        
+        private void grow() {
+            byte[][] oldKeys = keys;
+            String[] oldValues = values;
+            keys = new byte[oldKeys.length * 2][];
+            values = new String[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] != null) {
+                    int hash = 1;
+                    for (byte b : oldKeys[j]) {
+                        hash = 31 * hash + b;
+                    }
+                    int i = (hash ^ (hash >>> 16)) & mask;
+                    while (keys[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+    }
+}
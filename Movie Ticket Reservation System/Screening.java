@@ -0,0 +1,51 @@
+/**
+ * Class representing one showing of a movie: the movie, the date and the showtime.
+ */
+class Screening {
+    private final Movie movie;
+    private final String date;
+    private final long epochDay;
+    private final Showtime showtime;
+    
+    /**
+     * Constructor for Screening.
+     */
+    public Screening(Movie movie, String date, long epochDay, Showtime showtime) {
+        this.movie = movie;
+        this.date = date;
+        this.epochDay = epochDay;
+        this.showtime = showtime;
+    }
+    
+    /**
+     * Get the movie.
+     */
+    public Movie getMovie() {
+        return movie;
+    }
+    
+    /**
+     * Get the date as written in the schedule.
+     */
+    public String getDate() {
+        return date;
+    }
+    
+    /**
+     * Get the date as days since 1970-01-01.
+     */
+    public long getEpochDay() {
+        return epochDay;
+    }
+    
+    /**
+     * Get the showtime.
+     */
+    public Showtime getShowtime() {
+        return showtime;
+    }
+    
+    public String toString() {
+        return movie.getCode() + " " + date + " " + showtime;
+    }
+}
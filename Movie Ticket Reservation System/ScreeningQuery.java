@@ -0,0 +1,197 @@
+import java.time.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Query over the screenings of a MovieDatabase. Conditions are combined
+ * with AND, for example:
+ * 
+ *     movieDB.query().genre("Sci-Fi").language("English")
+ *             .on(LocalDate.of(2025, 4, 5)).slot("Evening").page(0, 20)
+ * 
+ * The query starts from whichever index gives the fewest candidates (date
+ * range, genre, language or slot) and checks the other conditions on those
+ * candidates only. Paging stops as soon as the page is full, so nothing
+ * beyond it is copied.
+ */
+class ScreeningQuery {
+    private final MovieDatabase movieDB;
+    private String genre;
+    private String language;
+    private String slot;
+    private Slot standardSlot;
+    private long fromDay = Long.MIN_VALUE;
+    private long toDay = Long.MAX_VALUE;
+    private DayOfWeek dayOfWeek;
+    
+    /**
+     * Constructor for ScreeningQuery.
+     */
+    public ScreeningQuery(MovieDatabase movieDB) {
+        this.movieDB = movieDB;
+    }
+    
+    /**
+     * Only screenings of movies in this genre.
+     */
+    public ScreeningQuery genre(String genre) {
+        this.genre = genre;
+        return this;
+    }
+    
+    /**
+     * Only screenings of movies in this language.
+     */
+    public ScreeningQuery language(String language) {
+        this.language = language;
+        return this;
+    }
+    
+    /**
+     * Only screenings in this showtime slot, e.g. "Evening".
+     */
+    public ScreeningQuery slot(String slot) {
+        this.slot = slot;
+        this.standardSlot = Slot.of(slot);
+        return this;
+    }
+    
+    /**
+     * Only screenings in this standard slot.
+     */
+    public ScreeningQuery slot(Slot slot) {
+        return slot(slot.getLabel());
+    }
+    
+    /**
+     * Only screenings from one date to another, both included.
+     */
+    public ScreeningQuery between(LocalDate from, LocalDate to) {
+        this.fromDay = from.toEpochDay();
+        this.toDay = to.toEpochDay();
+        return this;
+    }
+    
+    /**
+     * Only screenings on one date.
+     */
+    public ScreeningQuery on(LocalDate date) {
+        return between(date, date);
+    }
+    
+    /**
+     * Only screenings on this day of the week.
+     */
+    public ScreeningQuery dayOfWeek(DayOfWeek dayOfWeek) {
+        this.dayOfWeek = dayOfWeek;
+        return this;
+    }
+    
+    /**
+     * Get one page of matching screenings.
+     */
+    public List<Screening> page(int offset, int limit) {
+        ArrayList<Screening> page = new ArrayList<>(Math.min(limit, 64));
+        int skipped = 0;
+        for (Screening screening : candidates()) {
+            if (matches(screening)) {
+                if (skipped < offset) {
+                    skipped++;
+                } else if (page.size() < limit) {
+                    page.add(screening);
+                } else {
+                    break;
+                }
+            }
+        }
+        return page;
+    }
+    
+    /**
+     * Call the action for every matching screening.
+     */
+    public void forEach(Consumer<Screening> action) {
+        for (Screening screening : candidates()) {
+            if (matches(screening)) {
+                action.accept(screening);
+            }
+        }
+    }
+    
+    /**
+     * Count the matching screenings.
+     */
+    public int count() {
+        int count = 0;
+        for (Screening screening : candidates()) {
+            if (matches(screening)) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    private boolean matches(Screening screening) {
+        Movie movie = screening.getMovie();
+        return (genre == null || movie.getGenre().equalsIgnoreCase(genre))
+                && (language == null || movie.getLanguage().equalsIgnoreCase(language))
+                && (slot == null || (standardSlot != null ? screening.getShowtime().getSlot() == standardSlot 
+                        : screening.getShowtime().getTime().equalsIgnoreCase(slot)))
+                && screening.getEpochDay() >= fromDay && screening.getEpochDay() <= toDay
+                && (dayOfWeek == null || Math.floorMod(screening.getEpochDay() + 3, 7) == dayOfWeek.ordinal());
+    }
+    
+    /**
+     * Pick the index with the fewest candidates.
+     */
+    private Iterable<Screening> candidates() {
+        List<Screening> best = movieDB.getScreenings();
+        if (genre != null) {
+            best = smaller(best, movieDB.getScreeningsByGenre(genre));
+        }
+        if (language != null) {
+            best = smaller(best, movieDB.getScreeningsByLanguage(language));
+        }
+        if (slot != null) {
+            best = smaller(best, movieDB.getScreeningsBySlot(slot));
+        }
+        if (fromDay != Long.MIN_VALUE || toDay != Long.MAX_VALUE) {
+            Collection<List<Screening>> days = movieDB.getScreeningsByDay(fromDay, toDay);
+            // Stop counting once the range is no better than the best index so far
+            int count = 0;
+            for (List<Screening> day : days) {
+                count += day.size();
+                if (count >= best.size()) {
+                    return best;
+                }
+            }
+            return flatten(days);
+        }
+        return best;
+    }
+    
+    private static List<Screening> smaller(List<Screening> a, List<Screening> b) {
+        return b.size() < a.size() ? b : a;
+    }
+    
+    private static Iterable<Screening> flatten(Collection<List<Screening>> lists) {
+        return () -> new Iterator<Screening>() {
+            private final Iterator<List<Screening>> outer = lists.iterator();
+            private Iterator<Screening> inner = Collections.emptyIterator();
+            
+            public boolean hasNext() {
+                while (!inner.hasNext() && outer.hasNext()) {
+                    inner = outer.next().iterator();
+                }
+                return inner.hasNext();
+            }
+            
+            public Screening next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return inner.next();
+            }
+        };
+    }
+}
@@ -0,0 +1,213 @@
+import java.util.concurrent.atomic.*;
+
+/**
+ * Class keeping an index of free seat runs for best-available allocation.
+ * 
+ * For every row it stores the longest run of free seats next to each other,
+ * and a max segment tree over the rows answers "nearest row to the centre
+ * with a run of at least N" in O(log rows). Only the rows a claim or release
+ * touches are rescanned. The index is a hint: seats are still claimed with
+ * compare-and-set on the SeatMap, and a stale row is rescanned and the
+ * search retried.
+ * 
+ * Updates take no lock. Each tree node packs a stamp above its value. A row
+ * scan takes a fresh stamp before it starts and only replaces a leaf with an
+ * older stamp, so the last scan to start wins. Parents are recomputed with
+ * compare-and-set, twice per level: if both attempts lose, another thread
+ * recomputed the node after this leaf changed and carried it upwards
+ * (Jayanti's f-array).
+ */
+class SeatFinder {
+    private final SeatMap seats;
+    private final HallLayout layout;
+    private final int totalSeats;
+    private final int rows;
+    private final int leaves;
+    private final AtomicLongArray tree;
+    private final AtomicIntegerArray scans;
+
+    /**
+     * Constructor for SeatFinder. Indexes every row.
+     */
+    public SeatFinder(SeatMap seats, HallLayout layout, int totalSeats) {
+        this.seats = seats;
+        this.layout = layout;
+        this.totalSeats = totalSeats;
+        this.rows = (totalSeats + layout.getSeatsPerRow() - 1) / layout.getSeatsPerRow();
+        this.leaves = Integer.highestOneBit(Math.max(1, rows - 1)) << 1;
+        this.tree = new AtomicLongArray(2 * leaves);
+        this.scans = new AtomicIntegerArray(rows);
+        refreshAll();
+    }
+    
+    /**
+     * Rescan every row.
+     */
+    public void refreshAll() {
+        for (int row = 0; row < rows; row++) {
+            refreshRow(row);
+        }
+    }
+    
+    /**
+     * Get the longest run of free seats in any row.
+     */
+    public int longestRun() {
+        return value(tree.get(1));
+    }
+    
+    /**
+     * Find a block of free seats next to each other in one row, in the row
+     * nearest the centre of the hall and as near the middle of the row as
+     * possible. Returns null if no row has such a block.
+     */
+    public int[] findBlock(int numSeats) {
+        while (true) {
+            int centre = rows / 2;
+            int after = firstAtLeast(1, 0, leaves, centre, numSeats);
+            int before = lastAtLeast(1, 0, leaves, centre, numSeats);
+            int row;
+            if (after < 0 && before < 0) {
+                return null;
+            } else if (after < 0) {
+                row = before;
+            } else if (before < 0) {
+                row = after;
+            } else {
+                row = centre - before < after - centre ? before : after;
+            }
+            
+            int[] block = bestInRow(row, numSeats);
+            if (block != null) {
+                return block;
+            }
+            // The index was behind a concurrent claim; fix the row and look again
+            refreshRow(row);
+        }
+    }
+    
+    /**
+     * Rescan the rows containing the given seats after they were claimed or released.
+     */
+    public void seatsChanged(int[] changed) {
+        int lastRow = -1;
+        for (int seat : changed) {
+            int row = seat / layout.getSeatsPerRow();
+            if (row != lastRow) {
+                refreshRow(row);
+                lastRow = row;
+            }
+        }
+    }
+    
+    /**
+     * Rescan one row and update the tree up to the root.
+     */
+    public void refreshRow(int row) {
+        int stamp = scans.incrementAndGet(row);
+        int start = row * layout.getSeatsPerRow();
+        int end = Math.min(totalSeats, start + layout.getSeatsPerRow());
+        int longest = 0;
+        int run = 0;
+        for (int seat = start; seat < end; seat++) {
+            run = seats.isTaken(seat) ? 0 : run + 1;
+            longest = Math.max(longest, run);
+        }
+        int node = leaves + row;
+        while (true) {
+            long current = tree.get(node);
+            // Stamps wrap, so compare by difference; a newer scan already published
+            if (stamp - stampOf(current) <= 0) {
+                return;
+            }
+            if (tree.compareAndSet(node, current, pack(stamp, longest))) {
+                break;
+            }
+        }
+        for (node >>= 1; node > 0; node >>= 1) {
+            if (!recompute(node)) {
+                recompute(node);
+            }
+        }
+    }
+    
+    private boolean recompute(int node) {
+        long current = tree.get(node);
+        int longest = Math.max(value(tree.get(2 * node)), value(tree.get(2 * node + 1)));
+        return tree.compareAndSet(node, current, pack(stampOf(current) + 1, longest));
+    }
+    
+    private static long pack(int stamp, int value) {
+        return ((long) stamp << 32) | (value & 0xFFFFFFFFL);
+    }
+    
+    private static int stampOf(long node) {
+        return (int) (node >>> 32);
+    }
+    
+    private static int value(long node) {
+        return (int) node;
+    }
+    
+    /**
+     * Pick the free block of the given size in a row whose middle is closest
+     * to the middle of the row.
+     */
+    private int[] bestInRow(int row, int numSeats) {
+        int start = row * layout.getSeatsPerRow();
+        int width = Math.min(totalSeats, start + layout.getSeatsPerRow()) - start;
+        int bestStart = -1;
+        int bestDistance = Integer.MAX_VALUE;
+        int runStart = 0;
+        for (int col = 0; col <= width; col++) {
+            if (col < width && !seats.isTaken(start + col)) {
+                continue;
+            }
+            // Free run is [runStart, col); slide the block towards the middle within it
+            if (col - runStart >= numSeats) {
+                int first = Math.max(runStart, Math.min(col - numSeats, (width - numSeats) / 2));
+                // Distances are doubled to stay in whole numbers
+                int distance = Math.abs(2 * first + numSeats - width);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    bestStart = first;
+                }
+            }
+            runStart = col + 1;
+        }
+        if (bestStart < 0) {
+            return null;
+        }
+        int[] block = new int[numSeats];
+        for (int i = 0; i < numSeats; i++) {
+            block[i] = start + bestStart + i;
+        }
+        return block;
+    }
+    
+    // First row at or after 'from' whose longest run is at least 'min', or -1
+    private int firstAtLeast(int node, int lo, int hi, int from, int min) {
+        if (hi <= from || value(tree.get(node)) < min) {
+            return -1;
+        }
+        if (hi - lo == 1) {
+            return lo < rows ? lo : -1;
+        }
+        int mid = (lo + hi) >>> 1;
+        int found = firstAtLeast(2 * node, lo, mid, from, min);
+        return found >= 0 ? found : firstAtLeast(2 * node + 1, mid, hi, from, min);
+    }
+    
+    // Last row before 'to' whose longest run is at least 'min', or -1
+    private int lastAtLeast(int node, int lo, int hi, int to, int min) {
+        if (lo >= to || value(tree.get(node)) < min) {
+            return -1;
+        }
+        if (hi - lo == 1) {
+            return lo;
+        }
+        int mid = (lo + hi) >>> 1;
+        int found = lastAtLeast(2 * node + 1, mid, hi, to, min);
+        return found >= 0 ? found : lastAtLeast(2 * node, lo, mid, to, min);
+    }
+}
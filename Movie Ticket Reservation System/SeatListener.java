@@ -0,0 +1,7 @@
+/**
+ * Listener for seats being taken or freed on a Showtime. Called on the
+ * thread that changed the seats, after the change, so it must be quick.
+ */
+interface SeatListener {
+    void seatsChanged(Showtime showtime, int[] seats, boolean taken);
+}
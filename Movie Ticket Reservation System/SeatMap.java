@@ -0,0 +1,167 @@
+import java.lang.invoke.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Class representing which seats of a showtime are taken, one bit per seat.
+ * A 200-seat hall needs four longs.
+ * 
+ * Updates are lock-free: each 64-seat word is changed with compare-and-set,
+ * and a multi-seat claim takes its words in ascending order, undoing the
+ * words it already took if it finds a seat taken.
+ */
+class SeatMap {
+    // The words and the count are plain fields updated through handles, to
+    // save two objects per showtime over AtomicLongArray and AtomicInteger
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final AtomicIntegerFieldUpdater<SeatMap> TAKEN = 
+            AtomicIntegerFieldUpdater.newUpdater(SeatMap.class, "taken");
+    
+    private final long[] words;
+    private final int capacity;
+    private volatile int taken;
+    
+    /**
+     * Constructor for SeatMap with all seats free.
+     */
+    public SeatMap(int capacity) {
+        this.words = new long[(capacity + 63) >>> 6];
+        this.capacity = capacity;
+    }
+    
+    /**
+     * Check whether a seat is taken.
+     */
+    public boolean isTaken(int seat) {
+        return (word(seat >>> 6) & (1L << seat)) != 0;
+    }
+    
+    /**
+     * Mark a seat as taken. Returns false if it was already taken.
+     */
+    public boolean claim(int seat) {
+        return claimAll(new int[] {seat}) < 0;
+    }
+    
+    /**
+     * Mark all of the given seats as taken, or none of them.
+     * Returns -1 on success, otherwise a seat that was already taken
+     * (or listed twice).
+     */
+    public int claimAll(int[] seats) {
+        int[] sorted = seats.clone();
+        Arrays.sort(sorted);
+        
+        // Build one mask per word touched, in ascending word order
+        int[] wordIndexes = new int[sorted.length];
+        long[] masks = new long[sorted.length];
+        int count = 0;
+        for (int seat : sorted) {
+            int w = seat >>> 6;
+            if (count == 0 || wordIndexes[count - 1] != w) {
+                wordIndexes[count++] = w;
+            }
+            long bit = 1L << seat;
+            if ((masks[count - 1] & bit) != 0) {
+                return seat;
+            }
+            masks[count - 1] |= bit;
+        }
+        
+        for (int i = 0; i < count; i++) {
+            long mask = masks[i];
+            while (true) {
+                long current = word(wordIndexes[i]);
+                if ((current & mask) != 0) {
+                    // Real conflict: give back the words already taken
+                    for (int j = 0; j < i; j++) {
+                        clear(wordIndexes[j], masks[j]);
+                    }
+                    return (wordIndexes[i] << 6) + Long.numberOfTrailingZeros(current & mask);
+                }
+                if (WORDS.compareAndSet(words, wordIndexes[i], current, current | mask)) {
+                    break;
+                }
+            }
+        }
+        TAKEN.addAndGet(this, sorted.length);
+        return -1;
+    }
+    
+    /**
+     * Mark the seats from one number up to another as taken. Only for
+     * setting up a new map before other threads can see it.
+     */
+    public void claimRange(int from, int to) {
+        for (int seat = from; seat < to; ) {
+            int w = seat >>> 6;
+            int last = Math.min(to, (w + 1) << 6);
+            long mask = (last - seat == 64 ? -1L : ((1L << (last - seat)) - 1)) << seat;
+            long current = word(w);
+            WORDS.setVolatile(words, w, current | mask);
+            TAKEN.addAndGet(this, Long.bitCount(mask & ~current));
+            seat = last;
+        }
+    }
+    
+    /**
+     * Mark a seat as free. Returns false if it was already free.
+     */
+    public boolean release(int seat) {
+        long bit = 1L << seat;
+        while (true) {
+            long current = word(seat >>> 6);
+            if ((current & bit) == 0) {
+                return false;
+            }
+            if (WORDS.compareAndSet(words, seat >>> 6, current, current & ~bit)) {
+                TAKEN.decrementAndGet(this);
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Get the first free seat at or after the given one, or -1 if none.
+     */
+    public int nextFree(int from) {
+        for (int w = from >>> 6; w < words.length; w++) {
+            long free = ~word(w);
+            if (w == from >>> 6) {
+                free &= -1L << from;
+            }
+            if (free != 0) {
+                int seat = (w << 6) + Long.numberOfTrailingZeros(free);
+                return seat < capacity ? seat : -1;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Get number of free seats.
+     */
+    public int getAvailable() {
+        return capacity - taken;
+    }
+    
+    /**
+     * Get number of seats.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+    
+    private long word(int w) {
+        return (long) WORDS.getVolatile(words, w);
+    }
+    
+    private void clear(int w, long mask) {
+        while (true) {
+            long current = word(w);
+            if (WORDS.compareAndSet(words, w, current, current & ~mask)) {
+                return;
+            }
+        }
+    }
+}
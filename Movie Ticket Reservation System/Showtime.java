@@ -0,0 +1,297 @@
+import java.util.*;
+
+/**
+ * Class representing a Showtime. Showtimes sort by slot, with showtimes
+ * outside the standard slots last.
+ */
+class Showtime implements Comparable<Showtime> {
+    private static final SeatListener[] NO_LISTENERS = new SeatListener[0];
+    
+    private String time;
+    private Slot slot;
+    private int totalSeats;
+    private double ticketPrice;
+    private HallLayout layout;
+    private SeatMap seats;
+    private volatile SeatFinder finder;
+    
+    // Copied on write; most showtimes have none, so they share the empty array
+    private volatile SeatListener[] listeners = NO_LISTENERS;
+
+    /**
+     * Constructor for Showtime.
+     */
+    public Showtime(String time, int totalSeats, int availableSeats, double ticketPrice) {
+        this(time, totalSeats, availableSeats, ticketPrice, HallLayout.forCapacity(totalSeats));
+    }
+    
+    /**
+     * Constructor for Showtime in a hall with the given layout.
+     */
+    public Showtime(String time, int totalSeats, int availableSeats, double ticketPrice, HallLayout layout) {
+        if (totalSeats > layout.getCapacity()) {
+            throw new IllegalArgumentException("Hall layout has only " + layout.getCapacity() + 
+                    " seats but showtime has " + totalSeats);
+        }
+        // Standard slots share one label string instead of one per row
+        this.slot = Slot.of(time);
+        this.time = slot != null ? slot.getLabel() : time;
+        this.totalSeats = totalSeats;
+        this.ticketPrice = ticketPrice;
+        this.layout = layout;
+        this.seats = new SeatMap(totalSeats);
+        
+        // Seats already sold in the dataset are taken from the back of the hall
+        seats.claimRange(Math.max(0, availableSeats), totalSeats);
+    }
+
+    /**
+     * Get showtime.
+     */
+    public String getTime() {
+        return time;
+    }
+    
+    /**
+     * Get the slot, or null if the showtime is not in a standard slot.
+     */
+    public Slot getSlot() {
+        return slot;
+    }
+    
+    /**
+     * Get total seats.
+     */
+    public int getTotalSeats() {
+        return totalSeats;
+    }
+    
+    /**
+     * Get available seats.
+     */
+    public int getAvailableSeats() {
+        return seats.getAvailable();
+    }
+    
+    /**
+     * Get hall layout.
+     */
+    public HallLayout getLayout() {
+        return layout;
+    }
+    
+    /**
+     * Check whether a row and column is a seat in this showtime's hall.
+     */
+    public boolean isValidSeat(int row, int col) {
+        return row >= 0 && row < layout.getRows() && col >= 0 && col < layout.getSeatsPerRow() 
+                && layout.seatIndex(row, col) < totalSeats;
+    }
+    
+    /**
+     * Check whether a seat is free.
+     */
+    public boolean isSeatAvailable(int seat) {
+        return !seats.isTaken(seat);
+    }
+    
+    /**
+     * Get ticket price.
+     */
+    public double getTicketPrice() {
+        return ticketPrice;
+    }
+    
+    /**
+     * Book seats, taking the first free ones. Safe to call from many threads.
+     */
+    public int[] bookSeats(int numSeats) throws OverbookingException {
+        while (true) {
+            if (numSeats > getAvailableSeats()) {
+                throw new OverbookingException("Not enough seats available");
+            }
+            int[] chosen = new int[numSeats];
+            int seat = seats.nextFree(0);
+            for (int i = 0; i < numSeats; i++) {
+                if (seat < 0) {
+                    throw new OverbookingException("Not enough seats available");
+                }
+                chosen[i] = seat;
+                seat = seats.nextFree(seat + 1);
+            }
+            // Another booking may take one of these first, then look again
+            if (seats.claimAll(chosen) < 0) {
+                seatsChanged(chosen, true);
+                return chosen;
+            }
+            claimFailed(chosen);
+        }
+    }
+    
+    /**
+     * Book the best available seats: one block of seats next to each other
+     * in the row nearest the centre, or if no row has room for the whole
+     * group, the largest blocks nearest the centre. Safe to call from many
+     * threads; a block taken by someone else first is looked for again.
+     */
+    public int[] bookBestAvailable(int numSeats) throws OverbookingException {
+        int[] chosen = tryBookBestAvailable(numSeats);
+        if (chosen == null) {
+            throw new OverbookingException("Not enough seats available");
+        }
+        return chosen;
+    }
+    
+    /**
+     * Book the best available seats like bookBestAvailable(), but return
+     * null when there are not enough, for callers that expect to be turned
+     * away often and should not pay for an exception each time.
+     */
+    public int[] tryBookBestAvailable(int numSeats) {
+        if (numSeats <= 0 || numSeats > getAvailableSeats()) {
+            return null;
+        }
+        SeatFinder finder = finder();
+        int[] chosen = new int[numSeats];
+        int count = 0;
+        while (count < numSeats) {
+            int size = Math.min(numSeats - count, finder.longestRun());
+            if (size == 0) {
+                // Sold out while choosing: give back the blocks already taken
+                releaseSeats(Arrays.copyOf(chosen, count));
+                return null;
+            }
+            int[] block = finder.findBlock(size);
+            if (block == null) {
+                // Another booking took the run first; back off before recomputing the size
+                Thread.onSpinWait();
+                continue;
+            }
+            if (seats.claimAll(block) < 0) {
+                seatsChanged(block, true);
+                System.arraycopy(block, 0, chosen, count, size);
+                count += size;
+            } else {
+                claimFailed(block);
+            }
+        }
+        return chosen;
+    }
+    
+    /**
+     * Book specific seats. Either all of them are booked or none are.
+     * Safe to call from many threads without locking.
+     */
+    public void bookSeats(int[] seatIndexes) throws OverbookingException {
+        for (int seat : seatIndexes) {
+            if (seat < 0 || seat >= totalSeats) {
+                throw new OverbookingException("Seat " + seat + " does not exist");
+            }
+        }
+        int conflict = seats.claimAll(seatIndexes);
+        if (conflict >= 0) {
+            claimFailed(seatIndexes);
+            throw new OverbookingException("Seat " + layout.seatLabel(conflict) + " is already taken");
+        }
+        seatsChanged(seatIndexes, true);
+    }
+    
+    /**
+     * Release booked seats, e.g. on cancellation.
+     */
+    public void releaseSeats(int[] seatIndexes) {
+        for (int seat : seatIndexes) {
+            seats.release(seat);
+        }
+        seatsChanged(seatIndexes, false);
+    }
+    
+    /**
+     * Get the best-available index, building it on first use so that
+     * loading a large schedule does not pay for it.
+     */
+    private SeatFinder finder() {
+        SeatFinder current = finder;
+        if (current == null) {
+            synchronized (this) {
+                current = finder;
+                if (current == null) {
+                    current = new SeatFinder(seats, layout, totalSeats);
+                    finder = current;
+                    // A change made while the rows were scanned may have missed the index; scan again
+                    current.refreshAll();
+                }
+            }
+        }
+        return current;
+    }
+    
+    /**
+     * Add a listener told about every seat taken or freed on this showtime.
+     */
+    public synchronized void addSeatListener(SeatListener listener) {
+        SeatListener[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+        updated[listeners.length] = listener;
+        listeners = updated;
+    }
+    
+    /**
+     * Remove a seat listener.
+     */
+    public synchronized void removeSeatListener(SeatListener listener) {
+        ArrayList<SeatListener> remaining = new ArrayList<>(Arrays.asList(listeners));
+        remaining.remove(listener);
+        listeners = remaining.toArray(new SeatListener[0]);
+    }
+    
+    /**
+     * A failed claim briefly took and then gave back some of these seats. A
+     * row rescanned in between would count them as taken for good, so
+     * rescan the rows again now. Listeners are not told, as nothing changed.
+     */
+    private void claimFailed(int[] attempted) {
+        SeatFinder current = finder;
+        if (current != null) {
+            current.seatsChanged(attempted);
+        }
+    }
+    
+    private void seatsChanged(int[] changed, boolean taken) {
+        SeatFinder current = finder;
+        if (current != null) {
+            current.seatsChanged(changed);
+        }
+        for (SeatListener listener : listeners) {
+            listener.seatsChanged(this, changed, taken);
+        }
+    }
+    
+    /**
+     * Render the seat map, one line per row with X for taken seats.
+     */
+    public String renderSeatMap() {
+        StringBuilder sb = new StringBuilder();
+        for (int row = 0; row < layout.getRows(); row++) {
+            sb.append(String.format("%3d  ", row));
+            for (int col = 0; col < layout.getSeatsPerRow(); col++) {
+                int seat = layout.seatIndex(row, col);
+                if (seat < totalSeats) {
+                    sb.append(seats.isTaken(seat) ? 'X' : '.');
+                }
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+    
+    @Override
+    public int compareTo(Showtime other) {
+        int thisOrder = slot != null ? slot.ordinal() : Slot.values().length;
+        int otherOrder = other.slot != null ? other.slot.ordinal() : Slot.values().length;
+        return thisOrder != otherOrder ? Integer.compare(thisOrder, otherOrder) : time.compareTo(other.time);
+    }
+    
+    public String toString() {
+        return time + " - Available: " + getAvailableSeats() + "/" + totalSeats + " - Price: $" + ticketPrice;
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Class representing a time slot of the day for showtimes.
+ */
+enum Slot {
+    MORNING("Morning"),
+    AFTERNOON("Afternoon"),
+    EVENING("Evening"),
+    NIGHT("Night");
+    
+    // values() copies the array on every call
+    private static final Slot[] SLOTS = values();
+    
+    private final String label;
+    
+    Slot(String label) {
+        this.label = label;
+    }
+    
+    /**
+     * Get the slot name as shown to users.
+     */
+    public String getLabel() {
+        return label;
+    }
+    
+    /**
+     * Get the slot with the given name, ignoring case, or null if the
+     * showtime is not one of the standard slots.
+     */
+    public static Slot of(String time) {
+        for (Slot slot : SLOTS) {
+            if (slot.label.equalsIgnoreCase(time)) {
+                return slot;
+            }
+        }
+        return null;
+    }
+}
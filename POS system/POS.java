@@ -4,6 +4,16 @@
  * Requirements:
  * - Item entry by code and quantity
  * - Product database using CSV
+ * - Real-time stock tracking
+ * - Registered customer spend and visit tracking
+ * - Top-selling item analytics
+ * - Live revenue dashboard feed
+ * - End-of-day columnar sales export, run from the menu
+ *   (read back with: columns <file>)
+ * - Per-branch bill archives and chain-wide consolidation
+ *   (run with: consolidate <output file> <branch dir>...)
+ * - Branch shards reporting to a chain-wide revenue aggregator
+ *   (run with: aggregator [port], then each branch with: shard <branch> [port])
  * - Discount application
  * - Bill generation and printing
  * - Pending bill management
@@ -13,24 +23,97 @@
  */
 
 import java.io.*;
+import java.net.*;
 import java.time.*;
 import java.time.format.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 public class SuperSaverPOSGroup_123 {
     
     private static final Scanner scanner = new Scanner(System.in);
     private static final String DB_FILE = "products.csv";
+    private static final String STOCK_FILE = "stock.csv";
+    private static final String CUSTOMER_FILE = "customers.dat";
+    private static final String PENDING_FILE = "pending_bills.dat";
+    private static final String DASHBOARD_FILE = "revenue_dashboard.txt";
+    private static final String EXPORT_DIR = "exports";
+    private static final String ARCHIVE_DIR = "archive";
+    private static final String AGGREGATOR_JOURNAL = "aggregator.journal";
+    private static final int AGGREGATOR_PORT = 7070;
     
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("consolidate")) {
+            BillArchiveConsolidator.run(args);
+            return;
+        }
+        if (args.length > 1 && args[0].equals("columns")) {
+            ColumnarTableReader.dump(new File(args[1]), System.out);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("aggregator")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : AGGREGATOR_PORT;
+            new ChainAggregator(port, new File(AGGREGATOR_JOURNAL)).run();
+            return;
+        }
+        
+        // In shard mode this process owns one branch and reports to the aggregator
+        String shardBranch = null;
+        int aggregatorPort = AGGREGATOR_PORT;
+        if (args.length > 1 && args[0].equals("shard")) {
+            shardBranch = args[1];
+            if (args.length > 2) {
+                aggregatorPort = Integer.parseInt(args[2]);
+            }
+        }
+        
         System.out.println("Welcome to Super-Saving POS System");
         
         // Load product database
         ProductDatabase productDB = new ProductDatabase();
         productDB.loadFromCSV(DB_FILE);
         
+        // Load stock levels kept next to the catalog
+        InventoryTracker inventory = new InventoryTracker();
+        inventory.loadFromCSV(STOCK_FILE);
+        
+        // Load registered customer aggregates
+        CustomerIndex customers = new CustomerIndex(CUSTOMER_FILE);
+        customers.load();
+        
+        // Parked bills are shared by every lane in the branch
+        PendingBillRegistry pendingBills = new PendingBillRegistry(PENDING_FILE);
+        pendingBills.load();
+        
         // Initialize bill manager
-        BillManager billManager = new BillManager(productDB);
+        BillManager billManager = new BillManager(productDB, customers, pendingBills);
+        billManager.addBillListener(inventory);
+        billManager.addBillListener(customers);
+        
+        // Streaming top-seller sketches fed by finalized bills
+        SalesAnalytics analytics = new SalesAnalytics();
+        billManager.addBillListener(analytics);
+        
+        // Live per-minute revenue figures for operations staff
+        LiveRevenueFeed revenueFeed = new LiveRevenueFeed(DASHBOARD_FILE);
+        billManager.addBillListener(revenueFeed);
+        revenueFeed.start();
+        
+        // Every finalized bill is appended to this branch's archive
+        billManager.addBillListener(new BillArchiveWriter(new File(ARCHIVE_DIR)));
+        
+        ShardPublisher publisher = null;
+        if (shardBranch != null) {
+            publisher = new ShardPublisher(shardBranch, "localhost", aggregatorPort,
+                    new File("outbox-" + shardBranch.replaceAll("[^A-Za-z0-9_-]", "_") + ".dat"));
+            publisher.start();
+            billManager.addBillListener(publisher);
+            billManager.setChainClient(new ChainAggregatorClient("localhost", aggregatorPort));
+            billManager.setShardBranch(shardBranch);
+            System.out.println("Running as shard for branch " + shardBranch + 
+                    ", reporting to aggregator on port " + aggregatorPort);
+        }
         
         boolean running = true;
         while (running) {
@@ -38,10 +121,13 @@ public class SuperSaverPOSGroup_123 {
             System.out.println("1. Create New Bill");
             System.out.println("2. Resume Pending Bill");
             System.out.println("3. Generate Revenue Report");
-            System.out.println("4. Exit");
+            System.out.println("4. Low Stock Report");
+            System.out.println("5. Top-Selling Items");
+            System.out.println("6. End-of-Day Export");
+            System.out.println("7. Exit");
             System.out.print("Enter your choice: ");
             
-            int choice = getIntInput(1, 4);
+            int choice = getIntInput(1, 7);
             
             switch (choice) {
                 case 1:
@@ -54,11 +140,27 @@ public class SuperSaverPOSGroup_123 {
                     billManager.generateRevenueReport();
                     break;
                 case 4:
+                    inventory.displayLowStockReport();
+                    break;
+                case 5:
+                    System.out.print("Enter branch name (blank for chain-wide): ");
+                    analytics.displayTopSellers(scanner.nextLine().trim());
+                    break;
+                case 6:
+                    billManager.exportDay(EXPORT_DIR);
+                    break;
+                case 7:
                     running = false;
                     break;
             }
         }
         
+        customers.save();
+        revenueFeed.stop();
+        if (publisher != null) {
+            publisher.stop();
+        }
+        
         System.out.println("Thank you for using Super-Saving POS System!");
         scanner.close();
     }
@@ -153,6 +255,7 @@ class BillItem implements Serializable {
  */
 class Bill implements Serializable {
     private static final long serialVersionUID = 1L;
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
     
     private String billId;
     private String cashierName;
@@ -163,7 +266,8 @@ class Bill implements Serializable {
     private boolean isPending;
     
     public Bill(String cashierName, String branchName, String customerName) {
-        this.billId = "BILL-" + System.currentTimeMillis();
+        // Lanes can open bills in the same millisecond, so add a sequence number
+        this.billId = "BILL-" + System.currentTimeMillis() + "-" + SEQUENCE.incrementAndGet();
         this.cashierName = cashierName;
         this.branchName = branchName;
         this.customerName = customerName;
@@ -214,6 +318,14 @@ class Bill implements Serializable {
     public LocalDateTime getDateTime() { return dateTime; }
     public boolean isPending() { return isPending; }
     
+    /**
+     * Key that per-branch maps file a branch under, so "Colombo " and
+     * "colombo" land in the same entry everywhere.
+     */
+    static String branchKey(String branchName) {
+        return branchName.trim().toLowerCase();
+    }
+    
     @Override
     public String toString() {
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
@@ -305,217 +417,3162 @@ class ProductDatabase {
 }
 
 /**
- * Manages bill creation, saving, loading, and report generation.
+ * Notified by BillManager whenever a bill is finalized.
  */
-class BillManager {
-    private static final Scanner scanner = new Scanner(System.in);
-    private ProductDatabase productDB;
-    private List<Bill> completedBills;
-    private List<Bill> pendingBills;
+interface BillListener {
+    void billFinalized(Bill bill);
+}
+
+/**
+ * Stock level of a single SKU, kept in thousandths of a unit so that
+ * weighed items (e.g. 0.25 kg) can be decremented exactly.
+ * 
+ * Sales are added to a striped LongAdder, so lanes selling the same hot item
+ * update separate cells and the total is only merged when it is read.
+ */
+class StockLevel {
+    private final String itemCode;
+    private final AtomicLong received;
+    private final LongAdder sold;
+    private final long reorderLevel;
+    private volatile boolean low;
     
-    public BillManager(ProductDatabase productDB) {
-        this.productDB = productDB;
-        this.completedBills = new ArrayList<>();
-        this.pendingBills = new ArrayList<>();
-        loadPendingBills();
+    public StockLevel(String itemCode, long received, long reorderLevel) {
+        this.itemCode = itemCode;
+        this.received = new AtomicLong(received);
+        this.sold = new LongAdder();
+        this.reorderLevel = reorderLevel;
     }
     
-    public void createNewBill() {
-        System.out.println("\n===== CREATE NEW BILL =====");
-        
-        System.out.print("Enter cashier name: ");
-        String cashierName = scanner.nextLine();
-        
-        System.out.print("Enter branch name: ");
-        String branchName = scanner.nextLine();
-        
-        System.out.print("Is this a registered customer? (y/n): ");
-        String isRegistered = scanner.nextLine().trim().toLowerCase();
-        
-        String customerName = null;
-        if (isRegistered.equals("y") || isRegistered.equals("yes")) {
-            System.out.print("Enter customer name: ");
-            customerName = scanner.nextLine();
+    public void sell(long amount) {
+        sold.add(amount);
+    }
+    
+    public void restock(long amount) {
+        received.addAndGet(amount);
+    }
+    
+    public long getAvailable() {
+        return received.get() - sold.sum();
+    }
+    
+    /**
+     * Returns true if the low-stock flag changed and the index must be updated.
+     */
+    public synchronized boolean updateLowFlag() {
+        boolean nowLow = getAvailable() <= reorderLevel;
+        if (nowLow == low) {
+            return false;
         }
-        
-        Bill bill = new Bill(cashierName, branchName, customerName);
-        processBill(bill);
+        low = nowLow;
+        return true;
     }
     
-    public void resumePendingBill() {
-        if (pendingBills.isEmpty()) {
-            System.out.println("No pending bills found.");
-            return;
+    // Getters
+    public String getItemCode() { return itemCode; }
+    public long getReorderLevel() { return reorderLevel; }
+    public boolean isLow() { return low; }
+}
+
+/**
+ * Tracks per-SKU stock levels and keeps an index of SKUs at or below their
+ * reorder level, so low-stock queries never scan the whole catalog.
+ * 
+ * A sale only adds to the SKU's striped counter and marks the SKU as sold
+ * since the last query. Low-stock queries merge the counters of just those
+ * SKUs and bring the index up to date before answering.
+ */
+class InventoryTracker implements BillListener {
+    private static final long UNIT = 1000;
+    
+    private final Map<String, StockLevel> levels;
+    private final ConcurrentSkipListSet<String> lowStockIndex;
+    private final Set<String> soldSinceQuery;
+    
+    public InventoryTracker() {
+        this.levels = new ConcurrentHashMap<>();
+        this.lowStockIndex = new ConcurrentSkipListSet<>();
+        this.soldSinceQuery = ConcurrentHashMap.newKeySet();
+    }
+    
+    /**
+     * Load stock levels from a CSV file with columns:
+     * Item Code, Quantity, Reorder Level
+     */
+    public void loadFromCSV(String filename) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+            String line = reader.readLine();
+            if (line != null && (line.startsWith("Item Code") || line.startsWith("itemCode"))) {
+                line = reader.readLine();
+            }
+            
+            while (line != null) {
+                String[] parts = line.split(",");
+                if (parts.length >= 3) {
+                    String itemCode = parts[0].trim();
+                    long quantity = toUnits(Double.parseDouble(parts[1].trim()));
+                    long reorderLevel = toUnits(Double.parseDouble(parts[2].trim()));
+                    
+                    StockLevel level = new StockLevel(itemCode, quantity, reorderLevel);
+                    levels.put(itemCode, level);
+                    reindex(level);
+                }
+                line = reader.readLine();
+            }
+            
+            System.out.println("Loaded stock levels for " + levels.size() + " items.");
+        } catch (Exception e) {
+            System.err.println("Error loading stock levels: " + e.getMessage());
         }
-        
-        System.out.println("\n===== PENDING BILLS =====");
-        for (int i = 0; i < pendingBills.size(); i++) {
-            Bill bill = pendingBills.get(i);
-            System.out.println((i + 1) + ". " + bill.getBillId() + " - Items: " + 
-                    bill.getItems().size() + " - Customer: " + 
-                    (bill.getCustomerName() != null ? bill.getCustomerName() : "Anonymous"));
+    }
+    
+    /**
+     * Decrement stock for every item on a finalized bill.
+     * Items without a stock record are not tracked and are skipped.
+     */
+    @Override
+    public void billFinalized(Bill bill) {
+        for (BillItem item : bill.getItems()) {
+            StockLevel level = levels.get(item.getProduct().getItemCode());
+            if (level != null) {
+                level.sell(toUnits(item.getQuantity()));
+                // Marking a SKU that is already marked is a read-only lookup
+                soldSinceQuery.add(level.getItemCode());
+            }
         }
-        
-        System.out.print("Select bill to resume (0 to cancel): ");
-        int choice = getIntInput(0, pendingBills.size());
-        
-        if (choice == 0) {
-            return;
+    }
+    
+    public void restock(String itemCode, double quantity) {
+        StockLevel level = levels.get(itemCode);
+        if (level != null) {
+            level.restock(toUnits(quantity));
+            reindex(level);
         }
-        
-        Bill bill = pendingBills.remove(choice - 1);
-        processBill(bill);
     }
     
-    public void generateRevenueReport() {
-        System.out.println("\n===== REVENUE REPORT =====");
-        
-        if (completedBills.isEmpty()) {
-            System.out.println("No completed bills found for reporting.");
+    public double getAvailable(String itemCode) {
+        StockLevel level = levels.get(itemCode);
+        return level != null ? fromUnits(level.getAvailable()) : 0;
+    }
+    
+    /**
+     * Get item codes at or below their reorder level, in item code order.
+     */
+    public List<String> getLowStockItems() {
+        reindexSold();
+        return new ArrayList<>(lowStockIndex);
+    }
+    
+    public void displayLowStockReport() {
+        reindexSold();
+        System.out.println("\n===== LOW STOCK REPORT =====");
+        if (lowStockIndex.isEmpty()) {
+            System.out.println("All items are above their reorder level.");
             return;
         }
-        
-        System.out.print("Enter start date (YYYY-MM-DD): ");
-        String startDateStr = scanner.nextLine();
-        
-        System.out.print("Enter end date (YYYY-MM-DD): ");
-        String endDateStr = scanner.nextLine();
-        
-        try {
-            LocalDate startDate = LocalDate.parse(startDateStr);
-            LocalDate endDate = LocalDate.parse(endDateStr);
-            
-            double totalRevenue = 0;
-            int billCount = 0;
-            
-            for (Bill bill : completedBills) {
-                LocalDate billDate = bill.getDateTime().toLocalDate();
-                if ((billDate.isEqual(startDate) || billDate.isAfter(startDate)) && 
-                    (billDate.isEqual(endDate) || billDate.isBefore(endDate))) {
-                    totalRevenue += bill.getTotalCost();
-                    billCount++;
+        for (String itemCode : lowStockIndex) {
+            StockLevel level = levels.get(itemCode);
+            System.out.println(itemCode + " - Available: " + 
+                    String.format("%.3f", fromUnits(level.getAvailable())) + 
+                    " - Reorder Level: " + String.format("%.3f", fromUnits(level.getReorderLevel())));
+        }
+    }
+    
+    /**
+     * Bring the index up to date for SKUs sold since the last query. A SKU
+     * is unmarked before its total is read, so a sale racing with this is
+     * either counted now or marks the SKU again.
+     */
+    private void reindexSold() {
+        Iterator<String> marked = soldSinceQuery.iterator();
+        while (marked.hasNext()) {
+            String itemCode = marked.next();
+            marked.remove();
+            reindex(levels.get(itemCode));
+        }
+    }
+    
+    private void reindex(StockLevel level) {
+        synchronized (level) {
+            if (level.updateLowFlag()) {
+                if (level.isLow()) {
+                    lowStockIndex.add(level.getItemCode());
+                } else {
+                    lowStockIndex.remove(level.getItemCode());
                 }
             }
-            
-            System.out.println("\nRevenue Report from " + startDate + " to " + endDate);
-            System.out.println("Total Bills: " + billCount);
-            System.out.println("Total Revenue: Rs. " + String.format("%.2f", totalRevenue));
-            System.out.println("Average Bill Amount: Rs. " + 
-                    String.format("%.2f", billCount > 0 ? totalRevenue / billCount : 0));
-            
-            System.out.println("\nEmail report sent to salesteam@supersaving.lk");
-            
-        } catch (Exception e) {
-            System.out.println("Error generating report: " + e.getMessage());
         }
     }
     
-    private void processBill(Bill bill) {
-        boolean processing = true;
+    private static long toUnits(double quantity) {
+        return Math.round(quantity * UNIT);
+    }
+    
+    private static double fromUnits(long units) {
+        return (double) units / UNIT;
+    }
+}
+
+/**
+ * Spend and visit totals for one registered customer.
+ * 
+ * Rolling spend is kept in twelve monthly buckets, each stamped with the
+ * month it belongs to, so window queries cost a fixed twelve reads.
+ */
+class CustomerAggregate {
+    private static final int MONTHS = 12;
+    
+    private long lifetimeCents;
+    private int visits;
+    private long lastVisitMillis;
+    private final long[] monthCents;
+    private final int[] monthStamp;
+    
+    public CustomerAggregate() {
+        this.monthCents = new long[MONTHS];
+        this.monthStamp = new int[MONTHS];
+        Arrays.fill(monthStamp, -1);
+    }
+    
+    public synchronized void record(long cents, long epochMillis) {
+        lifetimeCents += cents;
+        visits++;
+        lastVisitMillis = Math.max(lastVisitMillis, epochMillis);
         
-        while (processing) {
-            System.out.println("\nCurrent Bill: " + bill.getBillId());
-            
-            if (!bill.getItems().isEmpty()) {
-                System.out.println("Items in bill:");
-                int index = 1;
-                for (BillItem item : bill.getItems()) {
-                    System.out.println(index + ". " + item.getProduct().getName() + 
-                            " - Qty: " + item.getQuantity() + 
-                            " - Discount: " + item.getDiscountPercentage() + "%" +
-                            " - Net: Rs. " + String.format("%.2f", item.getNetPrice()));
-                    index++;
-                }
-                System.out.println("Total: Rs. " + String.format("%.2f", bill.getTotalCost()));
-            } else {
-                System.out.println("No items in bill yet.");
+        int month = epochMonth(epochMillis);
+        int slot = month % MONTHS;
+        if (monthStamp[slot] != month) {
+            monthStamp[slot] = month;
+            monthCents[slot] = 0;
+        }
+        monthCents[slot] += cents;
+    }
+    
+    /**
+     * Spend over the last twelve calendar months including the current one.
+     */
+    public synchronized long getRollingCents(long nowMillis) {
+        int now = epochMonth(nowMillis);
+        long total = 0;
+        for (int i = 0; i < MONTHS; i++) {
+            if (monthStamp[i] > now - MONTHS && monthStamp[i] <= now) {
+                total += monthCents[i];
             }
-            
-            System.out.println("\n1. Add item");
-            System.out.println("2. Remove item");
-            System.out.println("3. Save as pending");
-            System.out.println("4. Finalize bill");
-            System.out.println("5. Cancel bill");
-            System.out.print("Enter your choice: ");
-            
-            int choice = getIntInput(1, 5);
-            
-            switch (choice) {
-                case 1:
-                    addItemToBill(bill);
-                    break;
-                case 2:
-                    removeItemFromBill(bill);
-                    break;
-                case 3:
-                    pendingBills.add(bill);
-                    savePendingBills();
-                    System.out.println("Bill saved as pending.");
-                    return;
-                case 4:
-                    bill.finalize();
-                    completedBills.add(bill);
-                    System.out.println("Bill finalized.");
-                    System.out.println(bill);
-                    saveBillAsPDF(bill); // Simulate saving as PDF
-                    return;
-                case 5:
-                    System.out.println("Bill cancelled.");
-                    return;
+        }
+        return total;
+    }
+    
+    /**
+     * Spend since the start of the current calendar year.
+     */
+    public synchronized long getYearToDateCents(long nowMillis) {
+        int now = epochMonth(nowMillis);
+        int yearStart = now - Math.floorMod(now, MONTHS);
+        long total = 0;
+        for (int i = 0; i < MONTHS; i++) {
+            if (monthStamp[i] >= yearStart && monthStamp[i] <= now) {
+                total += monthCents[i];
             }
         }
+        return total;
     }
     
-    private void addItemToBill(Bill bill) {
-        System.out.print("Enter item code: ");
-        String itemCode = scanner.nextLine().trim();
-        
-        Product product = productDB.getProduct(itemCode);
-        if (product == null) {
-            System.out.println("Product not found with code: " + itemCode);
-            return;
+    public synchronized void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(lifetimeCents);
+        out.writeInt(visits);
+        out.writeLong(lastVisitMillis);
+        for (int i = 0; i < MONTHS; i++) {
+            out.writeInt(monthStamp[i]);
+            out.writeLong(monthCents[i]);
         }
-        
-        System.out.println("Found: " + product.getName() + " - Rs. " + product.getPrice());
-        
-        System.out.print("Enter quantity: ");
-        double quantity = getDoubleInput();
-        
-        System.out.print("Enter discount percentage (0-75): ");
-        double discount = getDiscountInput();
-        
-        BillItem item = new BillItem(product, quantity, discount);
-        bill.addItem(item);
-        
-        System.out.println("Item added to bill.");
     }
     
-    private void removeItemFromBill(Bill bill) {
-        if (bill.getItems().isEmpty()) {
-            System.out.println("No items to remove.");
-            return;
+    public synchronized void readFrom(DataInputStream in) throws IOException {
+        lifetimeCents = in.readLong();
+        visits = in.readInt();
+        lastVisitMillis = in.readLong();
+        for (int i = 0; i < MONTHS; i++) {
+            monthStamp[i] = in.readInt();
+            monthCents[i] = in.readLong();
         }
-        
-        System.out.print("Enter item number to remove: ");
-        int index = getIntInput(1, bill.getItems().size());
-        
-        bill.removeItem(index - 1);
-        System.out.println("Item removed from bill.");
     }
     
-    private void saveBillAsPDF(Bill bill) {
-        // Simulate saving as PDF
-        System.out.println("Bill saved as PDF: " + bill.getBillId() + ".pdf");
+    static int epochMonth(long epochMillis) {
+        LocalDate date = Instant.ofEpochMilli(epochMillis).atZone(ZoneId.systemDefault()).toLocalDate();
+        return (date.getYear() - 1970) * MONTHS + date.getMonthValue() - 1;
     }
     
-    private void savePendingBills() {
-        // Simulate saving pending bills
-        System.out.println("Pending bills saved to system.");
+    // Getters
+    public synchronized long getLifetimeCents() { return lifetimeCents; }
+    public synchronized int getVisits() { return visits; }
+    public synchronized long getLastVisitMillis() { return lastVisitMillis; }
+}
+
+/**
+ * Index of registered customer aggregates keyed by a 64-bit hash of the
+ * normalized customer name.
+ * 
+ * Every finalized bill is appended to a small journal so the index survives
+ * a crash; save() writes a full snapshot and starts a new journal. Snapshot
+ * and journal both carry a generation number, and only the journal of the
+ * snapshot's own generation is replayed, so a crash part way through save()
+ * never counts a bill twice. Each journal entry is synced before the bill
+ * completes, so a visit survives a power loss as well as a process crash.
+ */
+class CustomerIndex implements BillListener {
+    private static final int SNAPSHOT_MAGIC = 0x43555354;
+    private static final int JOURNAL_HEADER = 8;
+    private static final int JOURNAL_RECORD = 24;
+    
+    private final String snapshotFile;
+    private final String journalFile;
+    private final Map<Long, CustomerAggregate> aggregates;
+    private FileOutputStream journalStream;
+    private DataOutputStream journal;
+    private long journalLength;
+    private long generation;
+    private boolean loadFailed;
+    
+    public CustomerIndex(String snapshotFile) {
+        this.snapshotFile = snapshotFile;
+        this.journalFile = snapshotFile + ".journal";
+        this.aggregates = new ConcurrentHashMap<>();
     }
     
-    private void loadPendingBills() {
-        // Simulate loading pending bills
-        System.out.println("Pending bills loaded from system.");
+    /**
+     * Load the last snapshot and replay the journal written after it.
+     * If either cannot be read, the files are left alone and nothing is
+     * written back until they are repaired.
+     */
+    public synchronized void load() {
+        File snapshot = new File(snapshotFile);
+        if (snapshot.exists()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(snapshot)))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("not a customer snapshot");
+                }
+                generation = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    long key = in.readLong();
+                    CustomerAggregate aggregate = new CustomerAggregate();
+                    aggregate.readFrom(in);
+                    aggregates.put(key, aggregate);
+                }
+            } catch (IOException e) {
+                System.err.println("Error loading customer index: " + e.getMessage());
+                loadFailed = true;
+            }
+        }
+        
+        File journalPath = new File(journalFile);
+        if (!loadFailed && journalPath.exists()) {
+            try {
+                replayJournal(journalPath);
+            } catch (IOException e) {
+                System.err.println("Error replaying customer journal: " + e.getMessage());
+                loadFailed = true;
+            }
+        }
+        
+        if (loadFailed) {
+            System.err.println("Customer visits will not be saved until " + snapshotFile + " is repaired.");
+        }
+        System.out.println("Loaded " + aggregates.size() + " registered customers.");
+    }
+    
+    /**
+     * Replay the journal if it belongs to the loaded snapshot and cut off a
+     * torn final entry, so later appends stay on record boundaries. A journal
+     * from an older generation was already folded into the snapshot.
+     */
+    private void replayJournal(File journalPath) throws IOException {
+        long valid = JOURNAL_HEADER;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(journalPath)))) {
+            if (in.readLong() != generation) {
+                valid = 0;
+            } else {
+                while (true) {
+                    long key = in.readLong();
+                    long cents = in.readLong();
+                    long epochMillis = in.readLong();
+                    aggregateFor(key).record(cents, epochMillis);
+                    valid += JOURNAL_RECORD;
+                }
+            }
+        } catch (EOFException e) {
+            // End of journal, a torn final entry is cut off below
+            if (valid == JOURNAL_HEADER && journalPath.length() < JOURNAL_HEADER) {
+                valid = 0;
+            }
+        }
+        
+        if (journalPath.length() != valid) {
+            try (RandomAccessFile file = new RandomAccessFile(journalPath, "rw")) {
+                file.setLength(valid);
+                file.getFD().sync();
+            }
+        }
+    }
+    
+    @Override
+    public void billFinalized(Bill bill) {
+        String name = bill.getCustomerName();
+        if (name == null || name.trim().isEmpty()) {
+            return;
+        }
+        
+        long key = keyFor(name);
+        long cents = Math.round(bill.getTotalCost() * 100);
+        long epochMillis = bill.getDateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        
+        // Held together with save() so a visit lands in exactly one of snapshot and journal
+        synchronized (this) {
+            aggregateFor(key).record(cents, epochMillis);
+            appendToJournal(key, cents, epochMillis);
+        }
+    }
+    
+    /**
+     * Get the aggregate for a customer, or null if they have no visits yet.
+     */
+    public CustomerAggregate lookup(String customerName) {
+        return aggregates.get(keyFor(customerName));
+    }
+    
+    /**
+     * Write a full snapshot of the next generation and start a fresh journal.
+     * The snapshot is synced before it replaces the old one; until the old
+     * journal is overwritten it is simply ignored as belonging to the
+     * previous generation.
+     */
+    public synchronized void save() {
+        if (loadFailed) {
+            System.err.println("Not saving customer index over " + snapshotFile + 
+                    ", it could not be loaded.");
+            return;
+        }
+        
+        File tmp = new File(snapshotFile + ".tmp");
+        long next = generation + 1;
+        try (FileOutputStream file = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(next);
+            out.writeInt(aggregates.size());
+            for (Map.Entry<Long, CustomerAggregate> entry : aggregates.entrySet()) {
+                out.writeLong(entry.getKey());
+                entry.getValue().writeTo(out);
+            }
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException e) {
+            System.err.println("Error saving customer index: " + e.getMessage());
+            return;
+        }
+        
+        try {
+            closeJournal();
+            java.nio.file.Files.move(tmp.toPath(), new File(snapshotFile).toPath(),
+                    java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            generation = next;
+            openJournal(false);
+        } catch (IOException e) {
+            System.err.println("Error saving customer index: " + e.getMessage());
+        }
+    }
+    
+    private CustomerAggregate aggregateFor(long key) {
+        return aggregates.computeIfAbsent(key, k -> new CustomerAggregate());
+    }
+    
+    private void appendToJournal(long key, long cents, long epochMillis) {
+        if (loadFailed) {
+            return;
+        }
+        try {
+            if (journal == null) {
+                openJournal(new File(journalFile).length() > 0);
+            }
+            journal.writeLong(key);
+            journal.writeLong(cents);
+            journal.writeLong(epochMillis);
+            journal.flush();
+            journalStream.getFD().sync();
+            journalLength += JOURNAL_RECORD;
+        } catch (IOException e) {
+            System.err.println("Error writing customer journal: " + e.getMessage());
+            discardJournalTail();
+        }
+    }
+    
+    /**
+     * Drop a partly written entry so the next one starts on a record boundary.
+     */
+    private void discardJournalTail() {
+        try {
+            closeJournal();
+        } catch (IOException e) {
+            // The entry being dropped is cut off below anyway
+        }
+        journal = null;
+        try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+            file.setLength(journalLength);
+            file.getFD().sync();
+        } catch (IOException e) {
+            System.err.println("Error truncating customer journal: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Open the journal, appending to the current generation's journal or
+     * replacing whatever is there with an empty one.
+     */
+    private void openJournal(boolean append) throws IOException {
+        journalLength = append ? new File(journalFile).length() : 0;
+        journalStream = new FileOutputStream(journalFile, append);
+        journal = new DataOutputStream(new BufferedOutputStream(journalStream));
+        if (!append) {
+            journal.writeLong(generation);
+            journal.flush();
+            journalStream.getFD().sync();
+        }
+        journalLength = journalStream.getChannel().position();
+    }
+    
+    private void closeJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+    
+    /**
+     * FNV-1a 64-bit hash of the trimmed, lower-cased customer name.
+     */
+    static long keyFor(String customerName) {
+        String normalized = customerName.trim().toLowerCase();
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < normalized.length(); i++) {
+            hash ^= normalized.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
+
+/**
+ * Space-Saving heavy-hitter sketch (Metwally et al.) over weighted keys.
+ * 
+ * Memory is bounded by the capacity. With total weight N, every reported
+ * count overestimates the true weight by at most N / capacity, and any key
+ * whose true weight exceeds N / capacity is guaranteed to be reported.
+ * Sketches merge by summing counters and keeping the largest (Agarwal et
+ * al.), which keeps the same bound over the combined weight.
+ */
+class SpaceSavingSketch {
+    
+    /**
+     * A tracked key with its estimated weight and maximum overestimate.
+     */
+    static class Counter {
+        private final String key;
+        private long count;
+        private long error;
+        
+        Counter(String key, long count, long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+        
+        // Getters
+        public String getKey() { return key; }
+        public long getCount() { return count; }
+        public long getError() { return error; }
+    }
+    
+    private static final Comparator<Counter> BY_COUNT = 
+            Comparator.comparingLong(Counter::getCount).thenComparing(Counter::getKey);
+    
+    private final int capacity;
+    private final Map<String, Counter> counters;
+    private final TreeSet<Counter> byCount;
+    private long totalWeight;
+    
+    public SpaceSavingSketch(int capacity) {
+        this.capacity = capacity;
+        this.counters = new HashMap<>();
+        this.byCount = new TreeSet<>(BY_COUNT);
+    }
+    
+    public synchronized void add(String key, long weight) {
+        totalWeight += weight;
+        Counter counter = counters.get(key);
+        if (counter != null) {
+            byCount.remove(counter);
+            counter.count += weight;
+            byCount.add(counter);
+        } else if (counters.size() < capacity) {
+            counter = new Counter(key, weight, 0);
+            counters.put(key, counter);
+            byCount.add(counter);
+        } else {
+            // Evict the smallest counter and inherit its count as error
+            Counter min = byCount.pollFirst();
+            counters.remove(min.key);
+            counter = new Counter(key, min.count + weight, min.count);
+            counters.put(key, counter);
+            byCount.add(counter);
+        }
+    }
+    
+    /**
+     * Get up to n keys with the largest estimated weight, largest first.
+     */
+    public synchronized List<Counter> top(int n) {
+        List<Counter> result = new ArrayList<>(Math.min(n, counters.size()));
+        for (Counter counter : byCount.descendingSet()) {
+            if (result.size() == n) {
+                break;
+            }
+            result.add(new Counter(counter.key, counter.count, counter.error));
+        }
+        return result;
+    }
+    
+    /**
+     * Fold another sketch into this one.
+     */
+    public void mergeFrom(SpaceSavingSketch other) {
+        Map<String, Counter> theirs;
+        long theirMin;
+        long theirTotal;
+        synchronized (other) {
+            theirs = new HashMap<>();
+            for (Counter counter : other.counters.values()) {
+                theirs.put(counter.key, new Counter(counter.key, counter.count, counter.error));
+            }
+            theirMin = other.minCount();
+            theirTotal = other.totalWeight;
+        }
+        
+        synchronized (this) {
+            long ourMin = minCount();
+            Map<String, Counter> combined = new HashMap<>();
+            // A key missing from a full sketch may have weighed up to its minimum
+            for (Counter counter : counters.values()) {
+                Counter match = theirs.get(counter.key);
+                long count = counter.count + (match != null ? match.count : theirMin);
+                long error = counter.error + (match != null ? match.error : theirMin);
+                combined.put(counter.key, new Counter(counter.key, count, error));
+            }
+            for (Counter counter : theirs.values()) {
+                if (!combined.containsKey(counter.key)) {
+                    combined.put(counter.key, new Counter(counter.key, 
+                            counter.count + ourMin, counter.error + ourMin));
+                }
+            }
+            
+            List<Counter> sorted = new ArrayList<>(combined.values());
+            sorted.sort(BY_COUNT.reversed());
+            counters.clear();
+            byCount.clear();
+            for (int i = 0; i < sorted.size() && i < capacity; i++) {
+                counters.put(sorted.get(i).key, sorted.get(i));
+                byCount.add(sorted.get(i));
+            }
+            totalWeight += theirTotal;
+        }
+    }
+    
+    /**
+     * Largest possible overestimate of any reported count.
+     */
+    public synchronized long getErrorBound() {
+        return totalWeight / capacity;
+    }
+    
+    public synchronized long getTotalWeight() {
+        return totalWeight;
+    }
+    
+    public synchronized void clear() {
+        counters.clear();
+        byCount.clear();
+        totalWeight = 0;
+    }
+    
+    private long minCount() {
+        return counters.size() < capacity || byCount.isEmpty() ? 0 : byCount.first().count;
+    }
+}
+
+/**
+ * Streaming top-seller analytics fed by bill finalization.
+ * 
+ * Keeps a quantity sketch and a revenue sketch per branch and chain-wide
+ * for the current day. Quantities are in thousandths of a unit and revenue
+ * in cents, so weighed items and amounts add up exactly.
+ */
+class SalesAnalytics implements BillListener {
+    private static final int SKETCH_CAPACITY = 256;
+    private static final int TOP_N = 10;
+    
+    /**
+     * Quantity and revenue sketches for one branch, or for the whole chain.
+     */
+    static class SalesSketches {
+        private final SpaceSavingSketch quantity = new SpaceSavingSketch(SKETCH_CAPACITY);
+        private final SpaceSavingSketch revenue = new SpaceSavingSketch(SKETCH_CAPACITY);
+        
+        public void mergeFrom(SalesSketches other) {
+            quantity.mergeFrom(other.quantity);
+            revenue.mergeFrom(other.revenue);
+        }
+        
+        // Getters
+        public SpaceSavingSketch getQuantity() { return quantity; }
+        public SpaceSavingSketch getRevenue() { return revenue; }
+    }
+    
+    private final Map<String, SalesSketches> branches;
+    private final SalesSketches chain;
+    private volatile LocalDate day;
+    
+    public SalesAnalytics() {
+        this.branches = new ConcurrentHashMap<>();
+        this.chain = new SalesSketches();
+        this.day = LocalDate.now();
+    }
+    
+    @Override
+    public void billFinalized(Bill bill) {
+        rollOver(bill.getDateTime().toLocalDate());
+        
+        SalesSketches branch = branches.computeIfAbsent(
+                Bill.branchKey(bill.getBranchName()), b -> new SalesSketches());
+        for (BillItem item : bill.getItems()) {
+            String itemCode = item.getProduct().getItemCode();
+            long quantity = Math.round(item.getQuantity() * 1000);
+            long cents = Math.round(item.getNetPrice() * 100);
+            
+            branch.quantity.add(itemCode, quantity);
+            branch.revenue.add(itemCode, cents);
+            chain.quantity.add(itemCode, quantity);
+            chain.revenue.add(itemCode, cents);
+        }
+    }
+    
+    /**
+     * Get today's sketches for a branch, or chain-wide for a blank name.
+     * Returns null for a branch with no sales today.
+     */
+    public SalesSketches getSketches(String branchName) {
+        if (branchName == null || branchName.isEmpty()) {
+            return chain;
+        }
+        return branches.get(Bill.branchKey(branchName));
+    }
+    
+    /**
+     * Fold in sketches from another branch or process, e.g. at head office.
+     */
+    public void mergeFrom(String branchName, SalesSketches other) {
+        branches.computeIfAbsent(Bill.branchKey(branchName), b -> new SalesSketches())
+                .mergeFrom(other);
+        chain.mergeFrom(other);
+    }
+    
+    public void displayTopSellers(String branchName) {
+        SalesSketches sketches = getSketches(branchName);
+        System.out.println("\n===== TOP-SELLING ITEMS (" + day + ", " + 
+                (branchName.isEmpty() ? "chain-wide" : branchName) + ") =====");
+        if (sketches == null || sketches.quantity.getTotalWeight() == 0) {
+            System.out.println("No sales recorded today.");
+            return;
+        }
+        
+        System.out.println("By quantity (counts may be high by up to " + 
+                String.format("%.3f", sketches.quantity.getErrorBound() / 1000.0) + "):");
+        int rank = 1;
+        for (SpaceSavingSketch.Counter counter : sketches.quantity.top(TOP_N)) {
+            System.out.println(rank++ + ". " + counter.getKey() + " - " + 
+                    String.format("%.3f", counter.getCount() / 1000.0));
+        }
+        
+        System.out.println("By revenue (amounts may be high by up to Rs. " + 
+                String.format("%.2f", sketches.revenue.getErrorBound() / 100.0) + "):");
+        rank = 1;
+        for (SpaceSavingSketch.Counter counter : sketches.revenue.top(TOP_N)) {
+            System.out.println(rank++ + ". " + counter.getKey() + " - Rs. " + 
+                    String.format("%.2f", counter.getCount() / 100.0));
+        }
+    }
+    
+    private synchronized void rollOver(LocalDate billDay) {
+        if (billDay.isAfter(day)) {
+            branches.clear();
+            chain.quantity.clear();
+            chain.revenue.clear();
+            day = billDay;
+        }
+    }
+}
+
+/**
+ * Per-minute revenue and bill counts for the last hour, kept in a ring of
+ * one-minute buckets. Each bucket is stamped with its epoch minute so stale
+ * buckets are skipped without having to be cleared.
+ */
+class RevenueWindow {
+    static final int MINUTES = 60;
+    
+    private final long[] minuteStamp;
+    private final long[] cents;
+    private final int[] bills;
+    
+    public RevenueWindow() {
+        this.minuteStamp = new long[MINUTES];
+        this.cents = new long[MINUTES];
+        this.bills = new int[MINUTES];
+        Arrays.fill(minuteStamp, -1);
+    }
+    
+    public synchronized void record(long epochMinute, long amountCents) {
+        int slot = (int) (epochMinute % MINUTES);
+        if (minuteStamp[slot] != epochMinute) {
+            minuteStamp[slot] = epochMinute;
+            cents[slot] = 0;
+            bills[slot] = 0;
+        }
+        cents[slot] += amountCents;
+        bills[slot]++;
+    }
+    
+    /**
+     * Add the totals for the last given number of minutes (including the
+     * current one) into totals[0] (cents) and totals[1] (bills).
+     */
+    public synchronized void sum(long nowMinute, int minutes, long[] totals) {
+        for (long minute = nowMinute - minutes + 1; minute <= nowMinute; minute++) {
+            int slot = (int) (minute % MINUTES);
+            if (minuteStamp[slot] == minute) {
+                totals[0] += cents[slot];
+                totals[1] += bills[slot];
+            }
+        }
+    }
+}
+
+/**
+ * Live revenue feed for the operations dashboard.
+ * 
+ * Finalized bills are counted into a per-branch RevenueWindow. Once a
+ * second the 5, 15 and 60 minute figures are written to a text file, which
+ * is replaced atomically so readers never see a half-written update.
+ */
+class LiveRevenueFeed implements BillListener {
+    private static final int[] WINDOWS = {5, 15, 60};
+    
+    private final String filename;
+    private final Map<String, RevenueWindow> branches;
+    private final Map<String, String> labels;
+    private ScheduledExecutorService refresher;
+    
+    public LiveRevenueFeed(String filename) {
+        this.filename = filename;
+        this.branches = new ConcurrentSkipListMap<>();
+        this.labels = new ConcurrentHashMap<>();
+    }
+    
+    @Override
+    public void billFinalized(Bill bill) {
+        long epochMillis = bill.getDateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        String key = Bill.branchKey(bill.getBranchName());
+        labels.putIfAbsent(key, bill.getBranchName().trim());
+        branches.computeIfAbsent(key, b -> new RevenueWindow())
+                .record(epochMillis / 60000, Math.round(bill.getTotalCost() * 100));
+    }
+    
+    public void start() {
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "revenue-feed");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.scheduleAtFixedRate(this::writeDashboard, 0, 1, TimeUnit.SECONDS);
+    }
+    
+    public void stop() {
+        if (refresher != null) {
+            refresher.shutdown();
+        }
+        writeDashboard();
+    }
+    
+    /**
+     * Get revenue in cents and bill count for the last given minutes,
+     * for one branch or chain-wide when the branch name is null.
+     */
+    public long[] getWindow(String branchName, int minutes) {
+        long[] totals = new long[2];
+        long nowMinute = System.currentTimeMillis() / 60000;
+        if (branchName != null) {
+            RevenueWindow window = branches.get(Bill.branchKey(branchName));
+            if (window != null) {
+                window.sum(nowMinute, minutes, totals);
+            }
+        } else {
+            for (RevenueWindow window : branches.values()) {
+                window.sum(nowMinute, minutes, totals);
+            }
+        }
+        return totals;
+    }
+    
+    private synchronized void writeDashboard() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("===== LIVE REVENUE (")
+          .append(LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")))
+          .append(") =====\n");
+        sb.append(String.format("%-15s", "Branch"));
+        for (int minutes : WINDOWS) {
+            sb.append(String.format(" %14s %10s", minutes + "m Rs./min", "bills/min"));
+        }
+        sb.append("\n");
+        
+        for (String branchName : branches.keySet()) {
+            appendRow(sb, labels.getOrDefault(branchName, branchName), branchName);
+        }
+        appendRow(sb, "CHAIN", null);
+        
+        File tmp = new File(filename + ".tmp");
+        try (Writer writer = new BufferedWriter(new FileWriter(tmp))) {
+            writer.write(sb.toString());
+        } catch (IOException e) {
+            System.err.println("Error writing revenue dashboard: " + e.getMessage());
+            return;
+        }
+        try {
+            java.nio.file.Files.move(tmp.toPath(), new File(filename).toPath(),
+                    java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                    java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Error writing revenue dashboard: " + e.getMessage());
+        }
+    }
+    
+    private void appendRow(StringBuilder sb, String label, String branchName) {
+        sb.append(String.format("%-15s", label));
+        for (int minutes : WINDOWS) {
+            long[] totals = getWindow(branchName, minutes);
+            sb.append(String.format(" %14.2f %10.2f", 
+                    totals[0] / 100.0 / minutes, (double) totals[1] / minutes));
+        }
+        sb.append("\n");
+    }
+}
+
+/**
+ * Writes one table to a gzip-compressed columnar file.
+ * 
+ * Rows are buffered in row groups of a fixed size and each group is written
+ * column by column, so memory stays bounded however many rows are exported.
+ * Integers are zigzag varints, optionally delta-encoded against the
+ * previous row, and repetitive strings are dictionary-encoded, with each
+ * row group carrying only the dictionary entries it introduces.
+ * 
+ * File layout: magic, version, column count, (name, type) per column, then
+ * row groups of (row count, columns...) ending with a row count of zero.
+ * A CRC32 of the values written is kept so the file can be checked against
+ * what ColumnarTableReader decodes.
+ */
+class ColumnarTableWriter implements Closeable {
+    static final int LONG = 0;
+    static final int DELTA = 1;
+    static final int DICT = 2;
+    static final int STRING = 3;
+    
+    static final int MAGIC = 0x42434f4c;
+    static final int VERSION = 1;
+    private static final int ROW_GROUP_SIZE = 4096;
+    
+    private final DataOutputStream out;
+    private final int[] types;
+    private final long[][] longs;
+    private final String[][] strings;
+    private final List<Map<String, Integer>> dictionaries;
+    private final List<List<String>> newEntries;
+    private final java.util.zip.CRC32 checksum;
+    private long totalRows;
+    private int rows;
+    
+    public ColumnarTableWriter(File file, String[] names, int[] types) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(
+                new java.util.zip.GZIPOutputStream(new FileOutputStream(file), 65536)));
+        this.types = types;
+        this.longs = new long[types.length][];
+        this.strings = new String[types.length][];
+        this.dictionaries = new ArrayList<>();
+        this.newEntries = new ArrayList<>();
+        this.checksum = new java.util.zip.CRC32();
+        
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(types.length);
+        for (int c = 0; c < types.length; c++) {
+            out.writeUTF(names[c]);
+            out.writeByte(types[c]);
+            if (types[c] == LONG || types[c] == DELTA) {
+                longs[c] = new long[ROW_GROUP_SIZE];
+            } else {
+                strings[c] = new String[ROW_GROUP_SIZE];
+            }
+            dictionaries.add(types[c] == DICT ? new HashMap<>() : null);
+            newEntries.add(types[c] == DICT ? new ArrayList<>() : null);
+        }
+    }
+    
+    public void setLong(int column, long value) {
+        longs[column][rows] = value;
+    }
+    
+    public void setString(int column, String value) {
+        strings[column][rows] = value != null ? value : "";
+    }
+    
+    public void endRow() throws IOException {
+        for (int c = 0; c < types.length; c++) {
+            if (types[c] == LONG || types[c] == DELTA) {
+                update(checksum, longs[c][rows]);
+            } else {
+                update(checksum, strings[c][rows]);
+            }
+        }
+        totalRows++;
+        rows++;
+        if (rows == ROW_GROUP_SIZE) {
+            flushRowGroup();
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        flushRowGroup();
+        out.writeInt(0);
+        out.close();
+    }
+    
+    public long getRowCount() {
+        return totalRows;
+    }
+    
+    public long getChecksum() {
+        return checksum.getValue();
+    }
+    
+    static void update(java.util.zip.CRC32 crc, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (value >>> shift));
+        }
+    }
+    
+    static void update(java.util.zip.CRC32 crc, String value) {
+        byte[] bytes = value.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        update(crc, bytes.length);
+        crc.update(bytes);
+    }
+    
+    private void flushRowGroup() throws IOException {
+        if (rows == 0) {
+            return;
+        }
+        out.writeInt(rows);
+        for (int c = 0; c < types.length; c++) {
+            switch (types[c]) {
+                case LONG:
+                    for (int r = 0; r < rows; r++) {
+                        writeVarLong(longs[c][r]);
+                    }
+                    break;
+                case DELTA:
+                    long previous = 0;
+                    for (int r = 0; r < rows; r++) {
+                        writeVarLong(longs[c][r] - previous);
+                        previous = longs[c][r];
+                    }
+                    break;
+                case DICT:
+                    writeDictionaryColumn(c);
+                    break;
+                case STRING:
+                    for (int r = 0; r < rows; r++) {
+                        out.writeUTF(strings[c][r]);
+                    }
+                    break;
+            }
+        }
+        rows = 0;
+    }
+    
+    private void writeDictionaryColumn(int column) throws IOException {
+        Map<String, Integer> dictionary = dictionaries.get(column);
+        List<String> added = newEntries.get(column);
+        int[] ids = new int[rows];
+        for (int r = 0; r < rows; r++) {
+            Integer id = dictionary.get(strings[column][r]);
+            if (id == null) {
+                id = dictionary.size();
+                dictionary.put(strings[column][r], id);
+                added.add(strings[column][r]);
+            }
+            ids[r] = id;
+        }
+        
+        writeVarLong(added.size());
+        for (String entry : added) {
+            out.writeUTF(entry);
+        }
+        added.clear();
+        for (int r = 0; r < rows; r++) {
+            writeVarLong(ids[r]);
+        }
+    }
+    
+    private void writeVarLong(long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+}
+
+/**
+ * Reads a file written by ColumnarTableWriter one row at a time, decoding
+ * one row group at a time.
+ */
+class ColumnarTableReader implements Closeable {
+    private final DataInputStream in;
+    private final String[] names;
+    private final int[] types;
+    private final long[][] longs;
+    private final String[][] strings;
+    private final List<List<String>> dictionaries;
+    private int rows;
+    private int row;
+    private boolean finished;
+    
+    public ColumnarTableReader(File file) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(
+                new java.util.zip.GZIPInputStream(new FileInputStream(file), 65536)));
+        try {
+            if (in.readInt() != ColumnarTableWriter.MAGIC) {
+                throw new IOException(file + " is not a columnar file");
+            }
+            int version = in.readInt();
+            if (version != ColumnarTableWriter.VERSION) {
+                throw new IOException(file + " has unsupported version " + version);
+            }
+            int columns = in.readInt();
+            this.names = new String[columns];
+            this.types = new int[columns];
+            this.longs = new long[columns][];
+            this.strings = new String[columns][];
+            this.dictionaries = new ArrayList<>();
+            for (int c = 0; c < columns; c++) {
+                names[c] = in.readUTF();
+                types[c] = in.readByte();
+                if (types[c] < ColumnarTableWriter.LONG || types[c] > ColumnarTableWriter.STRING) {
+                    throw new IOException(file + " has unknown column type " + types[c]);
+                }
+                dictionaries.add(types[c] == ColumnarTableWriter.DICT ? new ArrayList<>() : null);
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Move to the next row, returning false after the last one.
+     */
+    public boolean next() throws IOException {
+        row++;
+        while (row >= rows) {
+            if (finished) {
+                return false;
+            }
+            readRowGroup();
+        }
+        return true;
+    }
+    
+    public int getColumnCount() {
+        return names.length;
+    }
+    
+    public String getColumnName(int column) {
+        return names[column];
+    }
+    
+    public boolean isNumeric(int column) {
+        return types[column] == ColumnarTableWriter.LONG || types[column] == ColumnarTableWriter.DELTA;
+    }
+    
+    public long getLong(int column) {
+        return longs[column][row];
+    }
+    
+    public String getString(int column) {
+        return strings[column][row];
+    }
+    
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+    
+    /**
+     * Print a columnar file as CSV.
+     */
+    static void dump(File file, PrintStream out) {
+        try (ColumnarTableReader reader = new ColumnarTableReader(file)) {
+            StringBuilder line = new StringBuilder();
+            for (int c = 0; c < reader.getColumnCount(); c++) {
+                line.append(c > 0 ? "," : "").append(reader.getColumnName(c));
+            }
+            out.println(line);
+            while (reader.next()) {
+                line.setLength(0);
+                for (int c = 0; c < reader.getColumnCount(); c++) {
+                    line.append(c > 0 ? "," : "");
+                    if (reader.isNumeric(c)) {
+                        line.append(reader.getLong(c));
+                    } else {
+                        line.append(reader.getString(c));
+                    }
+                }
+                out.println(line);
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading " + file + ": " + e.getMessage());
+        }
+    }
+    
+    private void readRowGroup() throws IOException {
+        rows = in.readInt();
+        row = 0;
+        if (rows == 0) {
+            finished = true;
+            return;
+        }
+        if (rows < 0) {
+            throw new IOException("corrupt row group of " + rows + " rows");
+        }
+        for (int c = 0; c < types.length; c++) {
+            if (isNumeric(c) && (longs[c] == null || longs[c].length < rows)) {
+                longs[c] = new long[rows];
+            } else if (!isNumeric(c) && (strings[c] == null || strings[c].length < rows)) {
+                strings[c] = new String[rows];
+            }
+            switch (types[c]) {
+                case ColumnarTableWriter.LONG:
+                    for (int r = 0; r < rows; r++) {
+                        longs[c][r] = readVarLong();
+                    }
+                    break;
+                case ColumnarTableWriter.DELTA:
+                    long previous = 0;
+                    for (int r = 0; r < rows; r++) {
+                        previous += readVarLong();
+                        longs[c][r] = previous;
+                    }
+                    break;
+                case ColumnarTableWriter.DICT:
+                    readDictionaryColumn(c);
+                    break;
+                case ColumnarTableWriter.STRING:
+                    for (int r = 0; r < rows; r++) {
+                        strings[c][r] = in.readUTF();
+                    }
+                    break;
+            }
+        }
+    }
+    
+    private void readDictionaryColumn(int column) throws IOException {
+        List<String> dictionary = dictionaries.get(column);
+        long added = readVarLong();
+        for (long i = 0; i < added; i++) {
+            dictionary.add(in.readUTF());
+        }
+        for (int r = 0; r < rows; r++) {
+            long id = readVarLong();
+            if (id < 0 || id >= dictionary.size()) {
+                throw new IOException("dictionary id " + id + " out of range in " + names[column]);
+            }
+            strings[column][r] = dictionary.get((int) id);
+        }
+    }
+    
+    private long readVarLong() throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 63) {
+                throw new IOException("varint too long");
+            }
+            int b = in.readUnsignedByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+}
+
+/**
+ * Exports a day of completed bills to two columnar files, one for bill
+ * headers and one for line items. Amounts are fixed-point cents, quantities
+ * are thousandths of a unit and discounts are basis points.
+ * 
+ * Exports run when a cashier picks End-of-Day Export from the menu; nothing
+ * schedules them. Both files are read back after writing and the export
+ * fails if they do not decode to the rows written.
+ */
+class ColumnarBillExporter {
+    private static final String[] HEADER_COLUMNS = {
+        "bill_id", "finalized_at", "branch", "cashier", "customer",
+        "item_count", "discount_cents", "total_cents"
+    };
+    private static final int[] HEADER_TYPES = {
+        ColumnarTableWriter.STRING, ColumnarTableWriter.DELTA, ColumnarTableWriter.DICT,
+        ColumnarTableWriter.DICT, ColumnarTableWriter.DICT, ColumnarTableWriter.LONG,
+        ColumnarTableWriter.LONG, ColumnarTableWriter.LONG
+    };
+    private static final String[] ITEM_COLUMNS = {
+        "bill_row", "item_code", "quantity_milli", "unit_price_cents", 
+        "discount_bp", "net_cents"
+    };
+    private static final int[] ITEM_TYPES = {
+        ColumnarTableWriter.DELTA, ColumnarTableWriter.DICT, ColumnarTableWriter.LONG,
+        ColumnarTableWriter.LONG, ColumnarTableWriter.LONG, ColumnarTableWriter.LONG
+    };
+    
+    /**
+     * Row counts, file size and time taken for one export.
+     */
+    static class Summary {
+        private final LocalDate day;
+        private final long bills;
+        private final long items;
+        private final long bytes;
+        private final long millis;
+        
+        Summary(LocalDate day, long bills, long items, long bytes, long millis) {
+            this.day = day;
+            this.bills = bills;
+            this.items = items;
+            this.bytes = bytes;
+            this.millis = millis;
+        }
+        
+        @Override
+        public String toString() {
+            return "Exported " + bills + " bills and " + items + " items for " + day + 
+                    " (" + bytes + " bytes) in " + millis + " ms";
+        }
+    }
+    
+    private final File directory;
+    
+    public ColumnarBillExporter(File directory) {
+        this.directory = directory;
+    }
+    
+    public Summary export(LocalDate day, Iterable<Bill> bills) throws IOException {
+        long start = System.currentTimeMillis();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        File headerFile = new File(directory, "bills-" + day + ".headers.col.gz");
+        File itemFile = new File(directory, "bills-" + day + ".items.col.gz");
+        
+        long billRow = 0;
+        long itemRows = 0;
+        long headerChecksum;
+        long itemChecksum;
+        try (ColumnarTableWriter headers = new ColumnarTableWriter(headerFile, HEADER_COLUMNS, HEADER_TYPES);
+             ColumnarTableWriter items = new ColumnarTableWriter(itemFile, ITEM_COLUMNS, ITEM_TYPES)) {
+            for (Bill bill : bills) {
+                headers.setString(0, bill.getBillId());
+                headers.setLong(1, bill.getDateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+                headers.setString(2, bill.getBranchName());
+                headers.setString(3, bill.getCashierName());
+                headers.setString(4, bill.getCustomerName());
+                headers.setLong(5, bill.getItems().size());
+                headers.setLong(6, Math.round(bill.getTotalDiscount() * 100));
+                headers.setLong(7, Math.round(bill.getTotalCost() * 100));
+                headers.endRow();
+                
+                for (BillItem item : bill.getItems()) {
+                    items.setLong(0, billRow);
+                    items.setString(1, item.getProduct().getItemCode());
+                    items.setLong(2, Math.round(item.getQuantity() * 1000));
+                    items.setLong(3, Math.round(item.getProduct().getPrice() * 100));
+                    items.setLong(4, Math.round(item.getDiscountPercentage() * 100));
+                    items.setLong(5, Math.round(item.getNetPrice() * 100));
+                    items.endRow();
+                    itemRows++;
+                }
+                billRow++;
+            }
+            headerChecksum = headers.getChecksum();
+            itemChecksum = items.getChecksum();
+        }
+        verify(headerFile, billRow, headerChecksum);
+        verify(itemFile, itemRows, itemChecksum);
+        
+        return new Summary(day, billRow, itemRows,
+                headerFile.length() + itemFile.length(), System.currentTimeMillis() - start);
+    }
+    
+    /**
+     * Decode a written file and compare its rows with what the writer was given.
+     */
+    private static void verify(File file, long rows, long checksum) throws IOException {
+        java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+        long read = 0;
+        try (ColumnarTableReader reader = new ColumnarTableReader(file)) {
+            while (reader.next()) {
+                for (int c = 0; c < reader.getColumnCount(); c++) {
+                    if (reader.isNumeric(c)) {
+                        ColumnarTableWriter.update(crc, reader.getLong(c));
+                    } else {
+                        ColumnarTableWriter.update(crc, reader.getString(c));
+                    }
+                }
+                read++;
+            }
+        }
+        if (read != rows || crc.getValue() != checksum) {
+            throw new IOException(file + " does not read back as written (" + 
+                    read + " of " + rows + " rows)");
+        }
+    }
+}
+
+/**
+ * One bill in the archive format: a length-prefixed record holding the
+ * finalization time, bill ID, branch, cashier, customer and line items.
+ * Only the sort key is decoded; the rest stays as raw bytes so archives can
+ * be sorted and merged without rebuilding Bill objects.
+ */
+class ArchivedBill {
+    private final long timestamp;
+    private final String billId;
+    private final String branch;
+    private final byte[] record;
+    
+    ArchivedBill(long timestamp, String billId, String branch, byte[] record) {
+        this.timestamp = timestamp;
+        this.billId = billId;
+        this.branch = branch;
+        this.record = record;
+    }
+    
+    static final Comparator<ArchivedBill> BY_TIME = 
+            Comparator.comparingLong(ArchivedBill::getTimestamp).thenComparing(ArchivedBill::getBillId);
+    
+    /** Copies of one bill sort together, earliest first. */
+    static final Comparator<ArchivedBill> BY_BILL = 
+            Comparator.comparing(ArchivedBill::getBranch).thenComparing(ArchivedBill::getBillId)
+                    .thenComparingLong(ArchivedBill::getTimestamp);
+    
+    boolean sameBill(ArchivedBill other) {
+        return branch.equals(other.branch) && billId.equals(other.billId);
+    }
+    
+    static byte[] encode(Bill bill) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(bill.getDateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        out.writeUTF(bill.getBillId());
+        out.writeUTF(bill.getBranchName());
+        out.writeUTF(bill.getCashierName());
+        out.writeUTF(bill.getCustomerName() != null ? bill.getCustomerName() : "");
+        out.writeInt(bill.getItems().size());
+        for (BillItem item : bill.getItems()) {
+            out.writeUTF(item.getProduct().getItemCode());
+            out.writeLong(Math.round(item.getProduct().getPrice() * 100));
+            out.writeLong(Math.round(item.getQuantity() * 1000));
+            out.writeInt((int) Math.round(item.getDiscountPercentage() * 100));
+            out.writeLong(Math.round(item.getNetPrice() * 100));
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+    
+    /** Far larger than any real bill; a longer length is corruption. */
+    static final int MAX_RECORD = 16 * 1024 * 1024;
+    
+    /**
+     * Read the next record, or return null at the end of the stream. A torn
+     * or corrupt record ends the stream too, since nothing after it can be
+     * framed; it is logged against the given source.
+     */
+    static ArchivedBill read(DataInputStream in, String source) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length <= 0 || length > MAX_RECORD) {
+            System.err.println("Ignoring the rest of " + source + ": bad record length " + length);
+            return null;
+        }
+        byte[] record = new byte[length];
+        try {
+            in.readFully(record);
+        } catch (EOFException e) {
+            System.err.println("Ignoring torn record at the end of " + source);
+            return null;
+        }
+        DataInputStream key = new DataInputStream(new ByteArrayInputStream(record));
+        try {
+            return new ArchivedBill(key.readLong(), key.readUTF(), key.readUTF(), record);
+        } catch (EOFException | UTFDataFormatException e) {
+            System.err.println("Ignoring the rest of " + source + ": unreadable record");
+            return null;
+        }
+    }
+    
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(record.length);
+        out.write(record);
+    }
+    
+    // Getters
+    public long getTimestamp() { return timestamp; }
+    public String getBillId() { return billId; }
+    public String getBranch() { return branch; }
+    public int getSize() { return record.length + 4; }
+}
+
+/**
+ * Appends every finalized bill to archive/<branch>/bills-<date>.dat.
+ * 
+ * Appends are not synced, so a crash can leave a torn record at the end of
+ * a file. The first time a file is appended to after a start, anything past
+ * its last whole record is cut off, so new records are never written
+ * behind one that cannot be framed.
+ */
+class BillArchiveWriter implements BillListener {
+    private final File directory;
+    private final Set<File> checked;
+    
+    public BillArchiveWriter(File directory) {
+        this.directory = directory;
+        this.checked = new HashSet<>();
+    }
+    
+    @Override
+    public synchronized void billFinalized(Bill bill) {
+        File branchDir = new File(directory, bill.getBranchName().trim().replaceAll("[^A-Za-z0-9_-]", "_"));
+        File file = new File(branchDir, "bills-" + bill.getDateTime().toLocalDate() + ".dat");
+        try {
+            if (!branchDir.isDirectory() && !branchDir.mkdirs()) {
+                throw new IOException("cannot create " + branchDir);
+            }
+            if (checked.add(file) && file.exists()) {
+                cutTornTail(file);
+            }
+            byte[] record = ArchivedBill.encode(bill);
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true))) {
+                out.writeInt(record.length);
+                out.write(record);
+            }
+        } catch (IOException e) {
+            System.err.println("Error archiving bill " + bill.getBillId() + ": " + e.getMessage());
+        }
+    }
+    
+    private static void cutTornTail(File file) throws IOException {
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 65536))) {
+            ArchivedBill bill;
+            while ((bill = ArchivedBill.read(in, file.getPath())) != null) {
+                valid += bill.getSize();
+            }
+        }
+        if (valid < file.length()) {
+            try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                out.setLength(valid);
+            }
+        }
+    }
+}
+
+/**
+ * Consolidates per-branch bill archives into one time-ordered chain-wide
+ * archive using an external merge sort.
+ * 
+ * Input records are read into memory up to a fixed budget, sorted and
+ * spilled to run files. Runs are then k-way merged, in several passes if
+ * there are more runs than the fan-in allows. This is done twice: first by
+ * (branch, bill ID), where copies of the same bill sort next to each other
+ * and all but the earliest are dropped without keeping a set of seen IDs,
+ * then by (finalization time, bill ID) for the output.
+ */
+class BillArchiveConsolidator {
+    private static final long MEMORY_BUDGET = 64L * 1024 * 1024;
+    private static final int MAX_FAN_IN = 64;
+    
+    /**
+     * Current record of one run being merged.
+     */
+    private static class RunCursor {
+        private final DataInputStream in;
+        private final String source;
+        private ArchivedBill head;
+        
+        RunCursor(DataInputStream in, String source) throws IOException {
+            this.in = in;
+            this.source = source;
+            this.head = ArchivedBill.read(in, source);
+        }
+        
+        boolean advance() throws IOException {
+            head = ArchivedBill.read(in, source);
+            return head != null;
+        }
+    }
+    
+    private final File tempDir;
+    private long recordsIn;
+    private long bytesIn;
+    private long duplicates;
+    private long recordsOut;
+    
+    public BillArchiveConsolidator(File tempDir) {
+        this.tempDir = tempDir;
+    }
+    
+    /**
+     * Command line entry: consolidate <output file> <branch dir>...
+     */
+    static void run(String[] args) {
+        if (args.length < 3) {
+            System.out.println("Usage: consolidate <output file> <branch dir>...");
+            return;
+        }
+        try {
+            File output = new File(args[1]);
+            List<File> inputs = new ArrayList<>();
+            for (int i = 2; i < args.length; i++) {
+                collectArchives(new File(args[i]), inputs);
+            }
+            
+            File tempDir = java.nio.file.Files.createTempDirectory("consolidate").toFile();
+            BillArchiveConsolidator consolidator = new BillArchiveConsolidator(tempDir);
+            long start = System.nanoTime();
+            consolidator.consolidate(inputs, output);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            tempDir.delete();
+            
+            System.out.println("Consolidated " + inputs.size() + " archive files into " + output);
+            System.out.println("Records read: " + consolidator.recordsIn + 
+                    " - Duplicates dropped: " + consolidator.duplicates + 
+                    " - Records written: " + consolidator.recordsOut);
+            System.out.println(String.format("Time: %.2f s - Throughput: %.0f records/s, %.1f MB/s",
+                    seconds, consolidator.recordsIn / seconds, consolidator.bytesIn / seconds / 1e6));
+        } catch (IOException e) {
+            System.out.println("Error consolidating archives: " + e.getMessage());
+        }
+    }
+    
+    public void consolidate(List<File> inputs, File output) throws IOException {
+        File unique = File.createTempFile("unique", ".run", tempDir);
+        mergeAll(createSortedRuns(inputs, ArchivedBill.BY_BILL, true), unique, ArchivedBill.BY_BILL, true);
+        mergeAll(createSortedRuns(Collections.singletonList(unique), ArchivedBill.BY_TIME, false),
+                output, ArchivedBill.BY_TIME, false);
+        unique.delete();
+    }
+    
+    private void mergeAll(List<File> runs, File output, Comparator<ArchivedBill> order, 
+                          boolean dedupe) throws IOException {
+        while (runs.size() > MAX_FAN_IN) {
+            List<File> merged = new ArrayList<>();
+            for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+                List<File> group = runs.subList(i, Math.min(i + MAX_FAN_IN, runs.size()));
+                File run = File.createTempFile("merge", ".run", tempDir);
+                merge(group, run, order, dedupe, false);
+                merged.add(run);
+            }
+            runs = merged;
+        }
+        merge(runs, output, order, dedupe, !dedupe);
+    }
+    
+    /**
+     * Read inputs into sorted runs, counting input statistics on the first pass.
+     */
+    private List<File> createSortedRuns(List<File> inputs, Comparator<ArchivedBill> order, 
+                                        boolean count) throws IOException {
+        List<File> runs = new ArrayList<>();
+        List<ArchivedBill> buffer = new ArrayList<>();
+        long buffered = 0;
+        
+        for (File input : inputs) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(input), 65536))) {
+                ArchivedBill bill;
+                while ((bill = ArchivedBill.read(in, input.getPath())) != null) {
+                    if (count) {
+                        recordsIn++;
+                        bytesIn += bill.getSize();
+                    }
+                    buffer.add(bill);
+                    // Count the record plus object overhead against the budget
+                    buffered += bill.getSize() + 64;
+                    if (buffered >= MEMORY_BUDGET) {
+                        runs.add(spill(buffer, order));
+                        buffer.clear();
+                        buffered = 0;
+                    }
+                }
+            }
+        }
+        if (!buffer.isEmpty()) {
+            runs.add(spill(buffer, order));
+        }
+        return runs;
+    }
+    
+    private File spill(List<ArchivedBill> buffer, Comparator<ArchivedBill> order) throws IOException {
+        buffer.sort(order);
+        File run = File.createTempFile("sort", ".run", tempDir);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(run), 65536))) {
+            for (ArchivedBill bill : buffer) {
+                bill.write(out);
+            }
+        }
+        return run;
+    }
+    
+    /**
+     * Merge sorted runs into one sorted file and delete the runs.
+     * With dedupe set, only the first copy of each bill is kept.
+     */
+    private void merge(List<File> runs, File output, Comparator<ArchivedBill> order, 
+                       boolean dedupe, boolean last) throws IOException {
+        List<DataInputStream> readers = new ArrayList<>();
+        PriorityQueue<RunCursor> cursors = new PriorityQueue<>(
+                (a, b) -> order.compare(a.head, b.head));
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(output), 65536))) {
+            for (File run : runs) {
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(run), 65536));
+                readers.add(in);
+                RunCursor cursor = new RunCursor(in, run.getPath());
+                if (cursor.head != null) {
+                    cursors.add(cursor);
+                }
+            }
+            
+            ArchivedBill previous = null;
+            while (!cursors.isEmpty()) {
+                RunCursor cursor = cursors.poll();
+                ArchivedBill bill = cursor.head;
+                
+                if (dedupe && previous != null && previous.sameBill(bill)) {
+                    duplicates++;
+                } else {
+                    bill.write(out);
+                    if (last) {
+                        recordsOut++;
+                    }
+                    previous = bill;
+                }
+                
+                if (cursor.advance()) {
+                    cursors.add(cursor);
+                }
+            }
+        } finally {
+            for (DataInputStream in : readers) {
+                in.close();
+            }
+            for (File run : runs) {
+                run.delete();
+            }
+        }
+    }
+    
+    private static void collectArchives(File file, List<File> archives) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                Arrays.sort(children);
+                for (File child : children) {
+                    collectArchives(child, archives);
+                }
+            }
+        } else if (file.getName().endsWith(".dat")) {
+            archives.add(file);
+        }
+    }
+}
+
+/**
+ * Summary of one finalized bill as published by a branch shard.
+ * The sequence number is assigned by the shard and increases by one per bill.
+ */
+class BillSummary {
+    private final long sequence;
+    private final String billId;
+    private final long epochMillis;
+    private final long totalCents;
+    
+    BillSummary(long sequence, String billId, long epochMillis, long totalCents) {
+        this.sequence = sequence;
+        this.billId = billId;
+        this.epochMillis = epochMillis;
+        this.totalCents = totalCents;
+    }
+    
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(sequence);
+        out.writeUTF(billId);
+        out.writeLong(epochMillis);
+        out.writeLong(totalCents);
+    }
+    
+    static BillSummary readFrom(DataInputStream in) throws IOException {
+        return new BillSummary(in.readLong(), in.readUTF(), in.readLong(), in.readLong());
+    }
+    
+    long getEpochDay() {
+        return Instant.ofEpochMilli(epochMillis).atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+    }
+    
+    // Getters
+    public long getSequence() { return sequence; }
+    public String getBillId() { return billId; }
+    public long getEpochMillis() { return epochMillis; }
+    public long getTotalCents() { return totalCents; }
+}
+
+/**
+ * Wire protocol shared by the aggregator, shard publishers and report clients.
+ * Every request starts with one of these type bytes.
+ */
+class AggregatorProtocol {
+    /** Shard says hello with its branch name; reply is the last acknowledged sequence. */
+    static final int HELLO = 1;
+    /** Shard sends a count and that many summaries; reply is the new acknowledged sequence. */
+    static final int BATCH = 2;
+    /** Client sends a start and end epoch day; reply is a branch count and (branch, cents, bills) rows. */
+    static final int QUERY = 3;
+}
+
+/**
+ * Publishes finalized-bill summaries from a branch shard to the aggregator.
+ * 
+ * Summaries go to an outbox journal first, so nothing is lost if the shard
+ * or the aggregator restarts. A background sender sends them in batches and
+ * drops them from the outbox once acknowledged. After a disconnect it
+ * reconnects, learns the last acknowledged sequence and resumes from there.
+ * 
+ * A sequence number only counts once its summary is in the outbox journal,
+ * so a restart never leaves a gap. The outbox always keeps the last
+ * acknowledged summary; if it starts empty, the numbering is unknown, and
+ * the held summaries are renumbered after the aggregator's last sequence
+ * when the sender first connects.
+ */
+class ShardPublisher implements BillListener {
+    private static final int BATCH_SIZE = 256;
+    private static final int COMPACT_THRESHOLD = 10000;
+    
+    private final String branch;
+    private final String host;
+    private final int port;
+    private final File outboxFile;
+    private final ConcurrentSkipListMap<Long, BillSummary> outbox;
+    private final Object signal;
+    private long nextSequence;
+    private long acknowledged;
+    private int journalled;
+    private DataOutputStream journal;
+    private boolean renumber;
+    private volatile boolean running;
+    private Thread sender;
+    
+    public ShardPublisher(String branch, String host, int port, File outboxFile) {
+        this.branch = branch;
+        this.host = host;
+        this.port = port;
+        this.outboxFile = outboxFile;
+        this.outbox = new ConcurrentSkipListMap<>();
+        this.signal = new Object();
+    }
+    
+    public void start() {
+        loadOutbox();
+        running = true;
+        sender = new Thread(this::sendLoop, "shard-publisher");
+        sender.setDaemon(true);
+        sender.start();
+    }
+    
+    public void stop() {
+        running = false;
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+    }
+    
+    @Override
+    public void billFinalized(Bill bill) {
+        if (!branch.equals(bill.getBranchName())) {
+            System.err.println("Not publishing bill " + bill.getBillId() + " from branch " + 
+                    bill.getBranchName() + " to the " + branch + " shard");
+            return;
+        }
+        synchronized (this) {
+            BillSummary summary = new BillSummary(nextSequence + 1, bill.getBillId(),
+                    bill.getDateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(),
+                    Math.round(bill.getTotalCost() * 100));
+            try {
+                if (journal == null) {
+                    throw new IOException("outbox journal unavailable");
+                }
+                summary.writeTo(journal);
+                journal.flush();
+                journalled++;
+                outbox.put(summary.getSequence(), summary);
+            } catch (IOException e) {
+                // The journal may end in part of this entry; rewrite it with the entry included
+                outbox.put(summary.getSequence(), summary);
+                if (!compactJournal()) {
+                    outbox.remove(summary.getSequence());
+                    System.err.println("Bill " + bill.getBillId() + " not published: " + e.getMessage());
+                    return;
+                }
+            }
+            nextSequence = summary.getSequence();
+        }
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+    }
+    
+    private void sendLoop() {
+        while (running) {
+            try (Socket socket = new Socket(host, port)) {
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                
+                out.writeByte(AggregatorProtocol.HELLO);
+                out.writeUTF(branch);
+                out.flush();
+                hello(in.readLong());
+                
+                while (running) {
+                    List<BillSummary> batch = new ArrayList<>(BATCH_SIZE);
+                    for (BillSummary summary : outbox.tailMap(acknowledged, false).values()) {
+                        batch.add(summary);
+                        if (batch.size() == BATCH_SIZE) {
+                            break;
+                        }
+                    }
+                    if (batch.isEmpty()) {
+                        synchronized (signal) {
+                            if (outbox.tailMap(acknowledged, false).isEmpty()) {
+                                signal.wait(200);
+                            }
+                        }
+                        continue;
+                    }
+                    
+                    out.writeByte(AggregatorProtocol.BATCH);
+                    out.writeInt(batch.size());
+                    for (BillSummary summary : batch) {
+                        summary.writeTo(out);
+                    }
+                    out.flush();
+                    acknowledge(in.readLong());
+                }
+            } catch (IOException e) {
+                // Aggregator unavailable, keep summaries in the outbox and retry
+                sleepQuietly(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Take the aggregator's last sequence on connecting. If the outbox
+     * started empty, held summaries were numbered from zero and are moved
+     * after it; none of them can have been sent yet.
+     */
+    private synchronized void hello(long sequence) throws IOException {
+        if (renumber) {
+            List<BillSummary> held = new ArrayList<>(outbox.values());
+            outbox.clear();
+            long next = sequence;
+            for (BillSummary summary : held) {
+                next++;
+                outbox.put(next, new BillSummary(next, summary.getBillId(),
+                        summary.getEpochMillis(), summary.getTotalCents()));
+            }
+            nextSequence = next;
+            acknowledged = sequence;
+            if (!compactJournal()) {
+                throw new IOException("cannot rewrite renumbered outbox");
+            }
+            renumber = false;
+        }
+        acknowledge(sequence);
+    }
+    
+    private synchronized void acknowledge(long sequence) {
+        acknowledged = Math.max(acknowledged, sequence);
+        nextSequence = Math.max(nextSequence, acknowledged);
+        // Keep the last acknowledged summary so the sequence survives compaction
+        outbox.headMap(acknowledged, false).clear();
+        if (journalled > COMPACT_THRESHOLD) {
+            compactJournal();
+        }
+    }
+    
+    private synchronized void loadOutbox() {
+        if (outboxFile.exists()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(outboxFile)))) {
+                while (true) {
+                    BillSummary summary = BillSummary.readFrom(in);
+                    outbox.put(summary.getSequence(), summary);
+                }
+            } catch (EOFException e) {
+                // End of outbox, a torn final entry is ignored
+            } catch (IOException e) {
+                System.err.println("Error loading shard outbox: " + e.getMessage());
+            }
+        }
+        nextSequence = outbox.isEmpty() ? 0 : outbox.lastKey();
+        renumber = outbox.isEmpty();
+        compactJournal();
+    }
+    
+    /**
+     * Rewrite the outbox journal with only the summaries still held.
+     * Returns false, leaving the journal unusable, if the rewrite failed.
+     */
+    private boolean compactJournal() {
+        File tmp = new File(outboxFile.getPath() + ".tmp");
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                // Whatever it still held is rewritten below
+            }
+            journal = null;
+        }
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                for (BillSummary summary : outbox.values()) {
+                    summary.writeTo(out);
+                }
+            }
+            java.nio.file.Files.move(tmp.toPath(), outboxFile.toPath(),
+                    java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outboxFile, true)));
+            journalled = outbox.size();
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error compacting shard outbox: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+/**
+ * Chain-wide aggregator that branch shards report to over a local socket.
+ * 
+ * Each batch is checked against the branch's last acknowledged sequence so
+ * resent summaries are ignored, journalled with a chain-wide sequence
+ * number, synced to disk once per batch, and only then acknowledged. Daily
+ * revenue per branch is kept in memory, so revenue queries never touch
+ * the shards. The journal is replayed on startup.
+ */
+class ChainAggregator {
+    private final int port;
+    private final File journalFile;
+    private final Map<String, Long> lastSequence;
+    private final Map<String, TreeMap<Long, long[]>> dailyRevenue;
+    private long chainSequence;
+    private long journalLength;
+    private FileOutputStream journalFileStream;
+    private DataOutputStream journal;
+    
+    public ChainAggregator(int port, File journalFile) {
+        this.port = port;
+        this.journalFile = journalFile;
+        this.lastSequence = new HashMap<>();
+        this.dailyRevenue = new TreeMap<>();
+    }
+    
+    public void run() {
+        try {
+            replayJournal();
+            truncateJournal();
+            openJournal();
+            
+            try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+                System.out.println("Aggregator listening on port " + port + 
+                        " (chain sequence " + chainSequence + ")");
+                while (true) {
+                    Socket socket = server.accept();
+                    Thread handler = new Thread(() -> handle(socket), "aggregator-" + socket.getPort());
+                    handler.setDaemon(true);
+                    handler.start();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Aggregator stopped: " + e.getMessage());
+        }
+    }
+    
+    private void handle(Socket socket) {
+        String branch = null;
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                switch (type) {
+                    case AggregatorProtocol.HELLO:
+                        branch = in.readUTF();
+                        out.writeLong(getLastSequence(branch));
+                        System.out.println("Shard connected: " + branch);
+                        break;
+                    case AggregatorProtocol.BATCH:
+                        if (branch == null) {
+                            throw new IOException("batch before hello");
+                        }
+                        int count = in.readInt();
+                        List<BillSummary> batch = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            batch.add(BillSummary.readFrom(in));
+                        }
+                        out.writeLong(apply(branch, batch));
+                        break;
+                    case AggregatorProtocol.QUERY:
+                        writeRevenue(out, in.readLong(), in.readLong());
+                        break;
+                    default:
+                        throw new IOException("unknown message type " + type);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Connection dropped, the shard will reconnect and catch up
+        }
+        if (branch != null) {
+            System.out.println("Shard disconnected: " + branch);
+        }
+    }
+    
+    private synchronized long getLastSequence(String branch) {
+        return lastSequence.getOrDefault(branch, 0L);
+    }
+    
+    /**
+     * Apply a batch in sequence order and return the acknowledged sequence.
+     * A gap stops the batch; the shard resends from the acknowledged point.
+     * Totals only change once the batch is synced to the journal.
+     */
+    private synchronized long apply(String branch, List<BillSummary> batch) throws IOException {
+        if (journal == null) {
+            throw new IOException("aggregator journal unavailable");
+        }
+        long last = getLastSequence(branch);
+        List<BillSummary> accepted = new ArrayList<>(batch.size());
+        for (BillSummary summary : batch) {
+            if (summary.getSequence() <= last) {
+                continue;
+            }
+            if (summary.getSequence() != last + 1) {
+                break;
+            }
+            accepted.add(summary);
+            last = summary.getSequence();
+        }
+        if (accepted.isEmpty()) {
+            return last;
+        }
+        
+        try {
+            long sequence = chainSequence;
+            for (BillSummary summary : accepted) {
+                journal.writeLong(++sequence);
+                journal.writeUTF(branch);
+                summary.writeTo(journal);
+            }
+            journal.flush();
+            journalFileStream.getFD().sync();
+            chainSequence = sequence;
+            journalLength = journalFileStream.getChannel().position();
+        } catch (IOException e) {
+            discardJournalTail();
+            throw e;
+        }
+        
+        for (BillSummary summary : accepted) {
+            record(branch, summary);
+        }
+        lastSequence.put(branch, last);
+        return last;
+    }
+    
+    /**
+     * Drop a batch that failed part way through the journal. If the file
+     * cannot be cut back, the journal is closed and every later batch fails.
+     */
+    private void discardJournalTail() {
+        try {
+            journal.close();
+        } catch (IOException e) {
+            // Buffered bytes of the failed batch are dropped anyway
+        }
+        journal = null;
+        try {
+            truncateJournal();
+            openJournal();
+        } catch (IOException e) {
+            System.out.println("Aggregator journal closed after failed write: " + e.getMessage());
+        }
+    }
+    
+    private void openJournal() throws IOException {
+        journalFileStream = new FileOutputStream(journalFile, true);
+        journal = new DataOutputStream(new BufferedOutputStream(journalFileStream));
+    }
+    
+    /**
+     * Cut the journal back to its last complete record.
+     */
+    private void truncateJournal() throws IOException {
+        if (!journalFile.exists() || journalFile.length() == journalLength) {
+            return;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+            file.setLength(journalLength);
+            file.getFD().sync();
+        }
+    }
+    
+    private void record(String branch, BillSummary summary) {
+        long[] totals = dailyRevenue.computeIfAbsent(branch, b -> new TreeMap<>())
+                .computeIfAbsent(summary.getEpochDay(), d -> new long[2]);
+        totals[0] += summary.getTotalCents();
+        totals[1]++;
+    }
+    
+    private synchronized void writeRevenue(DataOutputStream out, long fromDay, long toDay) throws IOException {
+        out.writeInt(dailyRevenue.size());
+        for (Map.Entry<String, TreeMap<Long, long[]>> entry : dailyRevenue.entrySet()) {
+            long cents = 0;
+            long bills = 0;
+            for (long[] totals : entry.getValue().subMap(fromDay, true, toDay, true).values()) {
+                cents += totals[0];
+                bills += totals[1];
+            }
+            out.writeUTF(entry.getKey());
+            out.writeLong(cents);
+            out.writeLong(bills);
+        }
+    }
+    
+    private void replayJournal() throws IOException {
+        if (!journalFile.exists()) {
+            return;
+        }
+        CountingInputStream counter = new CountingInputStream(
+                new BufferedInputStream(new FileInputStream(journalFile)));
+        try (DataInputStream in = new DataInputStream(counter)) {
+            while (true) {
+                long sequence = in.readLong();
+                String branch = in.readUTF();
+                BillSummary summary = BillSummary.readFrom(in);
+                chainSequence = sequence;
+                lastSequence.put(branch, summary.getSequence());
+                record(branch, summary);
+                journalLength = counter.getCount();
+            }
+        } catch (EOFException | UTFDataFormatException e) {
+            // End of journal, a torn final entry was never acknowledged
+        }
+    }
+    
+    /**
+     * Counts bytes read so replay knows where the last complete record ends.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+        
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+        
+        long getCount() {
+            return count;
+        }
+    }
+}
+
+/**
+ * Asks the aggregator for chain-wide revenue.
+ */
+class ChainAggregatorClient {
+    private final String host;
+    private final int port;
+    
+    public ChainAggregatorClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+    
+    /**
+     * Get revenue in cents and bill count per branch for a date range.
+     */
+    public Map<String, long[]> queryRevenue(LocalDate startDate, LocalDate endDate) throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.writeByte(AggregatorProtocol.QUERY);
+            out.writeLong(startDate.toEpochDay());
+            out.writeLong(endDate.toEpochDay());
+            out.flush();
+            
+            Map<String, long[]> branches = new TreeMap<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                branches.put(in.readUTF(), new long[] {in.readLong(), in.readLong()});
+            }
+            return branches;
+        }
+    }
+}
+
+/**
+ * Branch-wide registry of parked bills, shared by every lane process.
+ * 
+ * The registry file is a log of park and claim records. Every change takes
+ * an exclusive lock on a lock file next to it, first reads the records other
+ * lanes appended since this lane last looked, then appends its own record
+ * and syncs it before the lock is released. Resuming a bill goes through
+ * claim(), which only succeeds if the bill is still parked once the log is
+ * caught up, so two lanes can never resume the same bill.
+ * 
+ * Bills are indexed in memory by bill ID, customer and cashier, and lookups
+ * are served from those indexes. A lookup only takes the lock and reads
+ * the log if the file's size or identity changed since this lane last
+ * caught up. save()
+ * rewrites the log with only the parked bills once most of it is claims,
+ * bumping the generation in the header so other lanes reread it.
+ */
+class PendingBillRegistry {
+    private static final int MAGIC = 0x50454e44;
+    private static final int HEADER = 12;
+    private static final byte PARK = 1;
+    private static final byte CLAIM = 2;
+    private static final int COMPACT_MIN_RECORDS = 64;
+    
+    private final String filename;
+    private final File lockFile;
+    private final ConcurrentHashMap<String, Bill> byId;
+    private final ConcurrentHashMap<String, Set<String>> byCustomer;
+    private final ConcurrentHashMap<String, Set<String>> byCashier;
+    private long generation;
+    private long offset;
+    private int records;
+    private Object seenKey;
+    private java.nio.file.attribute.FileTime seenModified;
+    
+    public PendingBillRegistry(String filename) {
+        this.filename = filename;
+        this.lockFile = new File(filename + ".lock");
+        this.byId = new ConcurrentHashMap<>();
+        this.byCustomer = new ConcurrentHashMap<>();
+        this.byCashier = new ConcurrentHashMap<>();
+        this.generation = -1;
+    }
+    
+    /**
+     * Park a bill for any lane to resume. If it cannot be written to the
+     * shared log it is not parked at all.
+     */
+    public synchronized void park(Bill bill) throws IOException {
+        byte[] record = serialize(bill);
+        withLog(log -> {
+            append(log, PARK, record);
+            parkLocal(bill);
+            return null;
+        });
+    }
+    
+    /**
+     * Remove a parked bill for resuming. Returns null if another lane has
+     * already claimed it.
+     */
+    public synchronized Bill claim(String billId) {
+        try {
+            return withLog(log -> {
+                if (!byId.containsKey(billId)) {
+                    return null;
+                }
+                append(log, CLAIM, billId.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+                return claimLocal(billId);
+            });
+        } catch (IOException e) {
+            System.err.println("Error claiming pending bill " + billId + ": " + e.getMessage());
+            return null;
+        }
+    }
+    
+    public Bill get(String billId) {
+        refresh();
+        return byId.get(billId);
+    }
+    
+    public List<Bill> findByCustomer(String customerName) {
+        refresh();
+        return resolve(byCustomer.get(normalize(customerName)));
+    }
+    
+    public List<Bill> findByCashier(String cashierName) {
+        refresh();
+        return resolve(byCashier.get(normalize(cashierName)));
+    }
+    
+    public List<Bill> getAll() {
+        refresh();
+        return new ArrayList<>(byId.values());
+    }
+    
+    public boolean isEmpty() {
+        refresh();
+        return byId.isEmpty();
+    }
+    
+    /**
+     * Compact the log once most of its records are for bills already resumed.
+     * Parks and claims are already on disk when they return.
+     */
+    public synchronized void save() {
+        File tmp = new File(filename + ".tmp");
+        try {
+            withLog(log -> {
+                if (records < COMPACT_MIN_RECORDS || records < 2 * byId.size()) {
+                    return null;
+                }
+                long next = generation + 1;
+                try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+                    out.setLength(0);
+                    out.writeInt(MAGIC);
+                    out.writeLong(next);
+                    for (Bill bill : byId.values()) {
+                        byte[] record = serialize(bill);
+                        out.writeByte(PARK);
+                        out.writeInt(record.length);
+                        out.write(record);
+                    }
+                    out.getFD().sync();
+                    offset = out.length();
+                }
+                java.nio.file.Files.move(tmp.toPath(), new File(filename).toPath(),
+                        java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                generation = next;
+                records = byId.size();
+                return null;
+            });
+        } catch (IOException e) {
+            System.err.println("Error compacting pending bills: " + e.getMessage());
+        }
+    }
+    
+    public void load() {
+        refresh();
+        System.out.println("Loaded " + byId.size() + " pending bills.");
+    }
+    
+    /**
+     * Pick up bills parked and claimed by other lanes.
+     */
+    private synchronized void refresh() {
+        try {
+            if (generation >= 0) {
+                java.nio.file.attribute.BasicFileAttributes attributes = java.nio.file.Files.readAttributes(
+                        new File(filename).toPath(), java.nio.file.attribute.BasicFileAttributes.class);
+                if (attributes.size() == offset && Objects.equals(attributes.fileKey(), seenKey)
+                        && attributes.lastModifiedTime().equals(seenModified)) {
+                    return;
+                }
+            }
+            withLog(log -> null);
+        } catch (IOException e) {
+            System.err.println("Error loading pending bills: " + e.getMessage());
+        }
+    }
+    
+    private interface LogAction<T> {
+        T run(RandomAccessFile log) throws IOException;
+    }
+    
+    /**
+     * Run an action on the caught-up log while holding the branch-wide lock.
+     * Callers hold this registry's monitor, since one JVM cannot take the
+     * same file lock twice.
+     */
+    private <T> T withLog(LogAction<T> action) throws IOException {
+        try (RandomAccessFile lock = new RandomAccessFile(lockFile, "rw");
+             java.nio.channels.FileChannel channel = lock.getChannel()) {
+            // Released when the channel closes
+            channel.lock();
+            T result;
+            try (RandomAccessFile log = new RandomAccessFile(filename, "rw")) {
+                catchUp(log);
+                result = action.run(log);
+            }
+            java.nio.file.attribute.BasicFileAttributes attributes = java.nio.file.Files.readAttributes(
+                    new File(filename).toPath(), java.nio.file.attribute.BasicFileAttributes.class);
+            seenKey = attributes.fileKey();
+            seenModified = attributes.lastModifiedTime();
+            return result;
+        }
+    }
+    
+    /**
+     * Apply records appended since the last call. Must hold the file lock.
+     * A record torn by a lane that crashed mid-write is cut off.
+     */
+    private void catchUp(RandomAccessFile log) throws IOException {
+        if (log.length() < HEADER) {
+            log.setLength(0);
+            log.writeInt(MAGIC);
+            log.writeLong(0);
+            log.getFD().sync();
+        }
+        log.seek(0);
+        if (log.readInt() != MAGIC) {
+            throw new IOException(filename + " is not a pending bill log");
+        }
+        long fileGeneration = log.readLong();
+        if (fileGeneration != generation) {
+            // First look, or another lane compacted the log
+            byId.clear();
+            byCustomer.clear();
+            byCashier.clear();
+            generation = fileGeneration;
+            offset = HEADER;
+            records = 0;
+        }
+        
+        byte[] tail = new byte[(int) (log.length() - offset)];
+        log.seek(offset);
+        log.readFully(tail);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(tail));
+        int position = 0;
+        while (tail.length - position >= 5) {
+            byte type = in.readByte();
+            int length = in.readInt();
+            if (length < 0 || length > tail.length - position - 5) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            apply(type, payload);
+            position += 5 + length;
+            records++;
+        }
+        offset += position;
+        if (position < tail.length) {
+            log.setLength(offset);
+            log.getFD().sync();
+        }
+    }
+    
+    private void apply(byte type, byte[] payload) throws IOException {
+        if (type == PARK) {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+                parkLocal((Bill) in.readObject());
+            } catch (ClassNotFoundException e) {
+                throw new IOException("unreadable parked bill", e);
+            }
+        } else if (type == CLAIM) {
+            claimLocal(new String(payload, java.nio.charset.StandardCharsets.UTF_8));
+        } else {
+            throw new IOException("unknown pending bill record " + type);
+        }
+    }
+    
+    private void append(RandomAccessFile log, byte type, byte[] payload) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + 5);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.write(payload);
+        log.seek(offset);
+        log.write(bytes.toByteArray());
+        log.getFD().sync();
+        offset += bytes.size();
+        records++;
+    }
+    
+    private static byte[] serialize(Bill bill) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(bill);
+        }
+        return bytes.toByteArray();
+    }
+    
+    private void parkLocal(Bill bill) {
+        byId.put(bill.getBillId(), bill);
+        if (bill.getCustomerName() != null && !bill.getCustomerName().trim().isEmpty()) {
+            addToIndex(byCustomer, bill.getCustomerName(), bill.getBillId());
+        }
+        addToIndex(byCashier, bill.getCashierName(), bill.getBillId());
+    }
+    
+    private Bill claimLocal(String billId) {
+        Bill bill = byId.remove(billId);
+        if (bill != null) {
+            if (bill.getCustomerName() != null) {
+                removeFromIndex(byCustomer, bill.getCustomerName(), billId);
+            }
+            removeFromIndex(byCashier, bill.getCashierName(), billId);
+        }
+        return bill;
+    }
+    
+    private List<Bill> resolve(Set<String> billIds) {
+        List<Bill> bills = new ArrayList<>();
+        if (billIds != null) {
+            for (String billId : billIds) {
+                Bill bill = byId.get(billId);
+                if (bill != null) {
+                    bills.add(bill);
+                }
+            }
+        }
+        return bills;
+    }
+    
+    private static void addToIndex(ConcurrentHashMap<String, Set<String>> index, String key, String billId) {
+        index.compute(normalize(key), (k, ids) -> {
+            Set<String> updated = ids != null ? ids : ConcurrentHashMap.newKeySet();
+            updated.add(billId);
+            return updated;
+        });
+    }
+    
+    private static void removeFromIndex(ConcurrentHashMap<String, Set<String>> index, String key, String billId) {
+        index.computeIfPresent(normalize(key), (k, ids) -> {
+            ids.remove(billId);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+    
+    private static String normalize(String name) {
+        return name == null ? "" : name.trim().toLowerCase();
+    }
+}
+
+/**
+ * Checkout screen renderer for a single bill.
+ * 
+ * The full bill and menu are written once when the screen opens. After that
+ * each action only writes what changed (new item lines, the renumbered
+ * lines below a removed item, the total if it moved) plus a one-line prompt,
+ * so output per scan does not grow with the bill. The total is kept as a
+ * running sum of the lines shown. Everything goes through one buffered
+ * writer that is flushed once per action.
+ */
+class CheckoutScreen {
+    private static final String PROMPT = 
+            "[1 Add | 2 Remove | 3 Pending | 4 Finalize | 5 Cancel] Enter your choice: ";
+    
+    private final PrintWriter out;
+    private final Bill bill;
+    private boolean opened;
+    private int renderedItems;
+    private double total;
+    private String renderedTotal;
+    
+    public CheckoutScreen(OutputStream stream, Bill bill) {
+        this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(stream), 8192));
+        this.bill = bill;
+    }
+    
+    /**
+     * Write everything that changed since the last call, then the prompt.
+     */
+    public void render() {
+        if (!opened) {
+            renderFull();
+        } else {
+            List<BillItem> items = bill.getItems();
+            for (int i = renderedItems; i < items.size(); i++) {
+                out.println(formatItem(i + 1, items.get(i)));
+                total += items.get(i).getNetPrice();
+            }
+            renderedItems = items.size();
+            renderTotal();
+            out.print(PROMPT);
+        }
+        out.flush();
+    }
+    
+    /**
+     * Record that the item shown at the given position has been removed and
+     * write the lines below it under their new numbers.
+     */
+    public void itemRemoved(int position, BillItem item) {
+        List<BillItem> items = bill.getItems();
+        renderedItems--;
+        // Start from zero once the bill is empty so rounding cannot build up
+        total = items.isEmpty() ? 0 : total - item.getNetPrice();
+        out.println("Removed " + position + ". " + item.getProduct().getName());
+        for (int i = position - 1; i < renderedItems; i++) {
+            out.println(formatItem(i + 1, items.get(i)));
+        }
+    }
+    
+    private void renderFull() {
+        out.println();
+        out.println("Current Bill: " + bill.getBillId());
+        
+        List<BillItem> items = bill.getItems();
+        if (!items.isEmpty()) {
+            out.println("Items in bill:");
+            for (int i = 0; i < items.size(); i++) {
+                out.println(formatItem(i + 1, items.get(i)));
+                total += items.get(i).getNetPrice();
+            }
+        } else {
+            out.println("No items in bill yet.");
+        }
+        renderedItems = items.size();
+        renderTotal();
+        
+        out.println();
+        out.println("1. Add item");
+        out.println("2. Remove item");
+        out.println("3. Save as pending");
+        out.println("4. Finalize bill");
+        out.println("5. Cancel bill");
+        out.print("Enter your choice: ");
+        opened = true;
+    }
+    
+    private void renderTotal() {
+        if (bill.getItems().isEmpty() && renderedTotal == null) {
+            return;
+        }
+        String line = "Total: Rs. " + String.format("%.2f", total);
+        if (!line.equals(renderedTotal)) {
+            out.println(line);
+            renderedTotal = line;
+        }
+    }
+    
+    private static String formatItem(int position, BillItem item) {
+        return position + ". " + item.getProduct().getName() + 
+                " - Qty: " + item.getQuantity() + 
+                " - Discount: " + item.getDiscountPercentage() + "%" +
+                " - Net: Rs. " + String.format("%.2f", item.getNetPrice());
+    }
+}
+
+/**
+ * Manages bill creation, saving, loading, and report generation.
+ */
+class BillManager {
+    private static final Scanner scanner = new Scanner(System.in);
+    private ProductDatabase productDB;
+    private CustomerIndex customers;
+    private List<BillListener> listeners;
+    private List<Bill> completedBills;
+    private PendingBillRegistry pendingBills;
+    private ChainAggregatorClient chainClient;
+    private String shardBranch;
+    
+    public BillManager(ProductDatabase productDB, CustomerIndex customers, 
+                       PendingBillRegistry pendingBills) {
+        this.productDB = productDB;
+        this.customers = customers;
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.completedBills = new ArrayList<>();
+        this.pendingBills = pendingBills;
+    }
+    
+    public void addBillListener(BillListener listener) {
+        listeners.add(listener);
+    }
+    
+    /**
+     * Answer chain-wide revenue reports from the aggregator.
+     */
+    public void setChainClient(ChainAggregatorClient chainClient) {
+        this.chainClient = chainClient;
+    }
+    
+    /**
+     * In shard mode every bill belongs to the shard's branch.
+     */
+    public void setShardBranch(String shardBranch) {
+        this.shardBranch = shardBranch;
+    }
+    
+    public void createNewBill() {
+        System.out.println("\n===== CREATE NEW BILL =====");
+        
+        System.out.print("Enter cashier name: ");
+        String cashierName = scanner.nextLine();
+        
+        String branchName;
+        if (shardBranch != null) {
+            branchName = shardBranch;
+            System.out.println("Branch: " + branchName);
+        } else {
+            System.out.print("Enter branch name: ");
+            branchName = scanner.nextLine();
+        }
+        
+        System.out.print("Is this a registered customer? (y/n): ");
+        String isRegistered = scanner.nextLine().trim().toLowerCase();
+        
+        String customerName = null;
+        if (isRegistered.equals("y") || isRegistered.equals("yes")) {
+            System.out.print("Enter customer name: ");
+            customerName = scanner.nextLine();
+            
+            CustomerAggregate aggregate = customers.lookup(customerName);
+            if (aggregate != null) {
+                long now = System.currentTimeMillis();
+                System.out.println("Visits: " + aggregate.getVisits() + 
+                        " - Spent this year: Rs. " + String.format("%.2f", aggregate.getYearToDateCents(now) / 100.0) + 
+                        " - Last 12 months: Rs. " + String.format("%.2f", aggregate.getRollingCents(now) / 100.0));
+            } else {
+                System.out.println("First visit for this customer.");
+            }
+        }
+        
+        Bill bill = new Bill(cashierName, branchName, customerName);
+        processBill(bill);
+    }
+    
+    public void resumePendingBill() {
+        if (pendingBills.isEmpty()) {
+            System.out.println("No pending bills found.");
+            return;
+        }
+        
+        System.out.println("\n===== PENDING BILLS =====");
+        System.out.print("Enter bill ID, customer or cashier name (blank to list all): ");
+        String search = scanner.nextLine().trim();
+        
+        List<Bill> matches;
+        if (search.isEmpty()) {
+            matches = pendingBills.getAll();
+        } else if (pendingBills.get(search) != null) {
+            matches = Collections.singletonList(pendingBills.get(search));
+        } else {
+            matches = new ArrayList<>(pendingBills.findByCustomer(search));
+            for (Bill bill : pendingBills.findByCashier(search)) {
+                if (!matches.contains(bill)) {
+                    matches.add(bill);
+                }
+            }
+        }
+        
+        if (matches.isEmpty()) {
+            System.out.println("No pending bills match: " + search);
+            return;
+        }
+        
+        for (int i = 0; i < matches.size(); i++) {
+            Bill bill = matches.get(i);
+            System.out.println((i + 1) + ". " + bill.getBillId() + " - Items: " + 
+                    bill.getItems().size() + " - Cashier: " + bill.getCashierName() + 
+                    " - Customer: " + 
+                    (bill.getCustomerName() != null ? bill.getCustomerName() : "Anonymous"));
+        }
+        
+        System.out.print("Select bill to resume (0 to cancel): ");
+        int choice = getIntInput(0, matches.size());
+        
+        if (choice == 0) {
+            return;
+        }
+        
+        Bill selected = matches.get(choice - 1);
+        if (shardBranch != null && !shardBranch.equals(selected.getBranchName())) {
+            System.out.println("Bill belongs to branch " + selected.getBranchName() + 
+                    ", this shard reports for " + shardBranch + ".");
+            return;
+        }
+        
+        // Another lane may have resumed the same bill while we were choosing
+        Bill bill = pendingBills.claim(selected.getBillId());
+        if (bill == null) {
+            System.out.println("Bill was already resumed on another lane.");
+            return;
+        }
+        savePendingBills();
+        processBill(bill);
+    }
+    
+    public void exportDay(String directory) {
+        System.out.println("\n===== END-OF-DAY EXPORT =====");
+        System.out.print("Enter date to export (YYYY-MM-DD, blank for today): ");
+        String dateStr = scanner.nextLine().trim();
+        
+        try {
+            LocalDate day = dateStr.isEmpty() ? LocalDate.now() : LocalDate.parse(dateStr);
+            
+            List<Bill> dayBills = new ArrayList<>();
+            for (Bill bill : completedBills) {
+                if (bill.getDateTime().toLocalDate().isEqual(day)) {
+                    dayBills.add(bill);
+                }
+            }
+            
+            ColumnarBillExporter exporter = new ColumnarBillExporter(new File(directory));
+            ColumnarBillExporter.Summary summary = exporter.export(day, dayBills);
+            System.out.println(summary);
+        } catch (Exception e) {
+            System.out.println("Error exporting bills: " + e.getMessage());
+        }
+    }
+    
+    public void generateRevenueReport() {
+        System.out.println("\n===== REVENUE REPORT =====");
+        
+        boolean chainWide = false;
+        if (chainClient != null) {
+            System.out.print("Chain-wide report from the aggregator? (y/n): ");
+            chainWide = scanner.nextLine().trim().equalsIgnoreCase("y");
+        }
+        
+        if (!chainWide && completedBills.isEmpty()) {
+            System.out.println("No completed bills found for reporting.");
+            return;
+        }
+        
+        System.out.print("Enter start date (YYYY-MM-DD): ");
+        String startDateStr = scanner.nextLine();
+        
+        System.out.print("Enter end date (YYYY-MM-DD): ");
+        String endDateStr = scanner.nextLine();
+        
+        try {
+            LocalDate startDate = LocalDate.parse(startDateStr);
+            LocalDate endDate = LocalDate.parse(endDateStr);
+            
+            if (chainWide) {
+                generateChainRevenueReport(startDate, endDate);
+                return;
+            }
+            
+            double totalRevenue = 0;
+            int billCount = 0;
+            
+            for (Bill bill : completedBills) {
+                LocalDate billDate = bill.getDateTime().toLocalDate();
+                if ((billDate.isEqual(startDate) || billDate.isAfter(startDate)) && 
+                    (billDate.isEqual(endDate) || billDate.isBefore(endDate))) {
+                    totalRevenue += bill.getTotalCost();
+                    billCount++;
+                }
+            }
+            
+            System.out.println("\nRevenue Report from " + startDate + " to " + endDate);
+            System.out.println("Total Bills: " + billCount);
+            System.out.println("Total Revenue: Rs. " + String.format("%.2f", totalRevenue));
+            System.out.println("Average Bill Amount: Rs. " + 
+                    String.format("%.2f", billCount > 0 ? totalRevenue / billCount : 0));
+            
+            System.out.println("\nEmail report sent to salesteam@supersaving.lk");
+            
+        } catch (Exception e) {
+            System.out.println("Error generating report: " + e.getMessage());
+        }
+    }
+    
+    private void generateChainRevenueReport(LocalDate startDate, LocalDate endDate) throws IOException {
+        Map<String, long[]> branches = chainClient.queryRevenue(startDate, endDate);
+        
+        long totalCents = 0;
+        long billCount = 0;
+        System.out.println("\nChain-wide Revenue Report from " + startDate + " to " + endDate);
+        for (Map.Entry<String, long[]> entry : branches.entrySet()) {
+            long[] totals = entry.getValue();
+            System.out.println(entry.getKey() + " - Bills: " + totals[1] + 
+                    " - Revenue: Rs. " + String.format("%.2f", totals[0] / 100.0));
+            totalCents += totals[0];
+            billCount += totals[1];
+        }
+        
+        System.out.println("Total Bills: " + billCount);
+        System.out.println("Total Revenue: Rs. " + String.format("%.2f", totalCents / 100.0));
+        System.out.println("Average Bill Amount: Rs. " + 
+                String.format("%.2f", billCount > 0 ? totalCents / 100.0 / billCount : 0));
+        
+        System.out.println("\nEmail report sent to salesteam@supersaving.lk");
+    }
+    
+    private void processBill(Bill bill) {
+        boolean processing = true;
+        CheckoutScreen screen = new CheckoutScreen(System.out, bill);
+        
+        while (processing) {
+            // Only the lines that changed since the last action are written
+            screen.render();
+            
+            int choice = getIntInput(1, 5);
+            
+            switch (choice) {
+                case 1:
+                    addItemToBill(bill);
+                    break;
+                case 2:
+                    removeItemFromBill(bill, screen);
+                    break;
+                case 3:
+                    try {
+                        pendingBills.park(bill);
+                    } catch (IOException e) {
+                        System.out.println("Bill could not be saved as pending: " + e.getMessage());
+                        break;
+                    }
+                    savePendingBills();
+                    System.out.println("Bill saved as pending.");
+                    return;
+                case 4:
+                    bill.finalize();
+                    completedBills.add(bill);
+                    for (BillListener listener : listeners) {
+                        listener.billFinalized(bill);
+                    }
+                    System.out.println("Bill finalized.");
+                    System.out.println(bill);
+                    saveBillAsPDF(bill); // Simulate saving as PDF
+                    return;
+                case 5:
+                    System.out.println("Bill cancelled.");
+                    return;
+            }
+        }
+    }
+    
+    private void addItemToBill(Bill bill) {
+        System.out.print("Enter item code: ");
+        String itemCode = scanner.nextLine().trim();
+        
+        Product product = productDB.getProduct(itemCode);
+        if (product == null) {
+            System.out.println("Product not found with code: " + itemCode);
+            return;
+        }
+        
+        System.out.println("Found: " + product.getName() + " - Rs. " + product.getPrice());
+        
+        System.out.print("Enter quantity: ");
+        double quantity = getDoubleInput();
+        
+        System.out.print("Enter discount percentage (0-75): ");
+        double discount = getDiscountInput();
+        
+        BillItem item = new BillItem(product, quantity, discount);
+        bill.addItem(item);
+    }
+    
+    private void removeItemFromBill(Bill bill, CheckoutScreen screen) {
+        if (bill.getItems().isEmpty()) {
+            System.out.println("No items to remove.");
+            return;
+        }
+        
+        System.out.print("Enter item number to remove: ");
+        int index = getIntInput(1, bill.getItems().size());
+        
+        BillItem item = bill.getItems().get(index - 1);
+        bill.removeItem(index - 1);
+        screen.itemRemoved(index, item);
+    }
+    
+    private void saveBillAsPDF(Bill bill) {
+        // Simulate saving as PDF
+        System.out.println("Bill saved as PDF: " + bill.getBillId() + ".pdf");
+    }
+    
+    private void savePendingBills() {
+        pendingBills.save();
+        System.out.println("Pending bills saved to system.");
     }
     
     private int getIntInput(int min, int max) {